@@ -25,25 +25,20 @@
  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonParser;
-
+import de.jetsli.graph.privacy.PlacesIndex;
+import de.jetsli.graph.privacy.PlacesLoader;
+import de.jetsli.graph.privacy.TrajectoryBatchAnalyzer;
 import de.jetsli.graph.reader.OSMReader;
 import de.jetsli.graph.storage.Graph;
-import de.jetsli.graph.trees.QuadTree;
-import de.jetsli.graph.trees.QuadTreeSimple;
+import de.jetsli.graph.storage.Location2IDQuadtree;
 import de.jetsli.graph.ui.MiniGraphUI;
-import de.jetsli.graph.util.CoordTrig;
-import de.jetsli.graph.util.CoordTrigObjEntry;
+import de.jetsli.graph.util.CmdArgs;
+import de.jetsli.graph.util.Helper;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileReader;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.BitSet;
 
 /**
  * TODO: Give a one line description.
@@ -53,8 +48,20 @@ import java.util.Map;
 public class Experiments {
 
   public static void main(String[] args) throws IOException {
-    Experiments e = new Experiments("data/westwood.osm", "data/los-angeles.amenities.json");
-    e.load();
+    CmdArgs cmdArgs = Helper.readCmdArgs(args);
+    Experiments e = new Experiments(cmdArgs.get("osm", "data/westwood.osm"),
+                                    cmdArgs.get("places", "data/los-angeles.amenities.json"));
+    String trajectories = cmdArgs.get("trajectories", "");
+    String binaryPlaces = cmdArgs.get("convertPlaces", "");
+    if (!Helper.isEmpty(binaryPlaces)) {
+      PlacesLoader.convertJsonToBinary(new File(e.mPlacesFile), new File(binaryPlaces));
+    } else if (Helper.isEmpty(trajectories)) {
+      e.load();
+    } else {
+      e.analyze(trajectories, cmdArgs.get("result", "trajectories.result.csv"),
+                cmdArgs.getInt("threads", Runtime.getRuntime().availableProcessors()),
+                cmdArgs.get("types", ""));
+    }
   }
 
   final private String mOsmFile;
@@ -62,18 +69,42 @@ public class Experiments {
 
 
   private Graph mGraph;
-  private HashMap<String, ArrayList<CoordTrig<String>>> mPlacesByType;
-  private QuadTree<String> mPlacesIndex;
+  private PlacesIndex mPlacesIndex;
 
   public Experiments(String osmFile, String placesFile) {
     mOsmFile = osmFile;
     mPlacesFile = placesFile;
     mGraph = null;
-    mPlacesByType = null;
     mPlacesIndex = null;
   }
 
   private void load() throws IOException {
+    loadGraph();
+    loadPlaces();
+    MiniGraphUI ui = new MiniGraphUI(mGraph, mPlacesIndex);
+    ui.initialize();
+    ui.visualize();
+  }
+
+  /**
+   * Runs the destination inference for every trajectory of the specified file without the UI.
+   *
+   * @param types comma separated amenity types used as candidates, empty for all types
+   */
+  private void analyze(String trajectoriesFile, String resultFile, int threads, String types)
+      throws IOException {
+    loadGraph();
+    loadPlaces();
+    BitSet typeSet = Helper.isEmpty(types) ? null : mPlacesIndex.getTypeSet(types.split(","));
+    Location2IDQuadtree roadIndex = new Location2IDQuadtree(mGraph);
+    roadIndex.prepareIndex(90000);
+    new TrajectoryBatchAnalyzer(mGraph, roadIndex, mPlacesIndex)
+        .setThreads(threads)
+        .setCandidateTypes(typeSet)
+        .analyze(new File(trajectoriesFile), new File(resultFile));
+  }
+
+  private void loadGraph() throws IOException {
     String storageLocation = "graph_storage";
     new File(storageLocation).mkdir();
     OSMReader reader = new OSMReader(storageLocation, 5 * 1000 * 1000);
@@ -91,35 +122,18 @@ public class Experiments {
     reader.flush();
 
     mGraph = reader.getGraph();
-
-    loadPlaces();
-    ArrayList<CoordTrig<String>> hospitals = mPlacesByType.get("hospital");
-    MiniGraphUI ui = new MiniGraphUI(mGraph, mPlacesIndex);
-    ui.initialize();
-    ui.visualize();
   }
 
   public void loadPlaces() throws IOException {
-    mPlacesIndex = new QuadTreeSimple<String>();
-    mPlacesByType = new HashMap<String, ArrayList<CoordTrig<String>>>();
-
-    FileReader reader = new FileReader(mPlacesFile);
-    JsonElement root = new JsonParser().parse(reader);
-    for (Map.Entry<String, JsonElement> entry : root.getAsJsonObject().entrySet()) {
-      final String amenity = entry.getKey();
-      ArrayList<CoordTrig<String>> placesList = new ArrayList<CoordTrig<String>>();
-      mPlacesByType.put(amenity, placesList);
-      for (JsonElement o : entry.getValue().getAsJsonArray()) {
-        JsonArray list = o.getAsJsonArray();
-        double lon = list.get(0).getAsDouble();
-        double lat = list.get(1).getAsDouble();
-        String name = list.get(2).getAsString();
-        // If we want to, we can also put the name of the place into the quad-tree.
-        CoordTrigObjEntry<String> coord = new CoordTrigObjEntry<String>(amenity, lat, lon);
-        placesList.add(coord);
-        mPlacesIndex.add(lat, lon, name);
+    mPlacesIndex = new PlacesIndex();
+
+    // streams the places directly into the index instead of building the whole json tree first
+    PlacesLoader.load(new File(mPlacesFile), new PlacesLoader.PlaceHandler() {
+      @Override
+      public void onPlace(String amenity, double lat, double lon, String name) {
+        mPlacesIndex.add(amenity, lat, lon, name);
       }
-    }
+    });
   }
 
 }
@@ -0,0 +1,305 @@
+/*
+ *  Copyright 2012 Peter Karich info@jetsli.de
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.graph.geohash;
+
+import de.jetsli.graph.util.CoordTrig;
+import de.jetsli.graph.util.shapes.Shape;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A thread safe SpatialHashtable for many reading and some writing threads.
+ *
+ * The buckets are split into regions of at least the size of the overflow window, i.e. all
+ * buckets which can hold overflow entries of one bucket are in the region of the bucket or the
+ * next one. Every region maps to one of the striped read-write locks. An add locks the stripes of
+ * these two regions for writing and a query locks them for reading per visited bucket - so
+ * readers do not block each other and writers of distant buckets do not block each other. The
+ * storage itself is only accessed via absolute indices.
+ *
+ * Growing the table and moving the buckets of the old table is done exclusively under a global
+ * lock. All other operations hold it shared.
+ *
+ * The map updates put and adjustOrPutValue are done exclusively. The statistic methods (getStats,
+ * getEmptyEntries, toDetailString) are not synchronized.
+ *
+ * @author Peter Karich, info@jetsli.de
+ */
+public class ConcurrentSpatialHashtable extends SpatialHashtable {
+
+    private static final int STRIPES = 64;
+    private final ReentrantReadWriteLock resizeLock = new ReentrantReadWriteLock();
+    private final ReentrantReadWriteLock[] stripes = new ReentrantReadWriteLock[STRIPES];
+    // entries added under the striped locks but not yet counted in size
+    private final AtomicInteger stripedAdds = new AtomicInteger();
+    private int regionBits;
+    private int regionMask;
+
+    public ConcurrentSpatialHashtable() {
+        this(8, 3);
+    }
+
+    public ConcurrentSpatialHashtable(int skipKeyBeginningBits) {
+        this(skipKeyBeginningBits, 3);
+    }
+
+    public ConcurrentSpatialHashtable(int skipKeyBeginningBits, int initialEntriesPerBucket) {
+        super(skipKeyBeginningBits, initialEntriesPerBucket);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    @Override
+    public ConcurrentSpatialHashtable init(long maxEntries) {
+        resizeLock.writeLock().lock();
+        try {
+            super.init(maxEntries);
+            initRegions();
+            return this;
+        } finally {
+            resizeLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean loadExisting() {
+        resizeLock.writeLock().lock();
+        try {
+            boolean res = super.loadExisting();
+            if (res)
+                initRegions();
+            return res;
+        } finally {
+            resizeLock.writeLock().unlock();
+        }
+    }
+
+    private void initRegions() {
+        regionBits = 0;
+        while ((1 << regionBits) < getOverflowWindow()) {
+            regionBits++;
+        }
+        // maxBuckets is a power of two
+        regionMask = Math.max(1, maxBuckets >>> regionBits) - 1;
+    }
+
+    @Override
+    public long size() {
+        return super.size() + stripedAdds.get();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public void add(long key, long value) {
+        resizeLock.readLock().lock();
+        try {
+            if (!isResizing(stripedAdds.get() + 1)) {
+                int bucketIndex = getBucketIndex(key);
+                lock(bucketIndex, true);
+                try {
+                    addEntry(key, value);
+                    stripedAdds.incrementAndGet();
+                    return;
+                } catch (TableFullException ex) {
+                    // grow below
+                } finally {
+                    unlock(bucketIndex, true);
+                }
+            }
+        } finally {
+            resizeLock.readLock().unlock();
+        }
+
+        resizeLock.writeLock().lock();
+        try {
+            int maxBucketsBefore = maxBuckets;
+            size += stripedAdds.getAndSet(0);
+            super.add(key, value);
+            if (maxBucketsBefore != maxBuckets)
+                initRegions();
+        } finally {
+            resizeLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Map updates are done exclusively to keep the check for an existing key and the add atomic
+     */
+    @Override
+    public void put(long key, long value) {
+        resizeLock.writeLock().lock();
+        try {
+            size += stripedAdds.getAndSet(0);
+            super.put(key, value);
+            initRegions();
+        } finally {
+            resizeLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public long adjustOrPutValue(long key, long adjust, long putValue) {
+        resizeLock.writeLock().lock();
+        try {
+            size += stripedAdds.getAndSet(0);
+            long res = super.adjustOrPutValue(key, adjust, putValue);
+            initRegions();
+            return res;
+        } finally {
+            resizeLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public long get(long key) {
+        resizeLock.readLock().lock();
+        try {
+            return super.get(key);
+        } finally {
+            resizeLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean containsKey(long key) {
+        resizeLock.readLock().lock();
+        try {
+            return super.containsKey(key);
+        } finally {
+            resizeLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    protected void getLeafNodes(LeafWorker worker, long key) {
+        int bucketIndex = getBucketIndex(key);
+        lock(bucketIndex, false);
+        try {
+            super.getLeafNodes(worker, key);
+        } finally {
+            unlock(bucketIndex, false);
+        }
+    }
+
+    private Lock getLock(int region, boolean write) {
+        ReentrantReadWriteLock rwl = stripes[region & (STRIPES - 1)];
+        return write ? rwl.writeLock() : rwl.readLock();
+    }
+
+    /**
+     * Locks the stripes of the region of the bucket and of the next region (ring) in ascending
+     * order to avoid dead locks.
+     */
+    private void lock(int bucketIndex, boolean write) {
+        int region = bucketIndex >>> regionBits;
+        int s1 = region & (STRIPES - 1);
+        int s2 = ((region + 1) & regionMask) & (STRIPES - 1);
+        getLock(Math.min(s1, s2), write).lock();
+        if (s1 != s2)
+            getLock(Math.max(s1, s2), write).lock();
+    }
+
+    private void unlock(int bucketIndex, boolean write) {
+        int region = bucketIndex >>> regionBits;
+        int s1 = region & (STRIPES - 1);
+        int s2 = ((region + 1) & regionMask) & (STRIPES - 1);
+        if (s1 != s2)
+            getLock(Math.max(s1, s2), write).unlock();
+        getLock(Math.min(s1, s2), write).unlock();
+    }
+
+    @Override
+    public Collection<CoordTrig<Long>> getNodes(Shape searchArea) {
+        resizeLock.readLock().lock();
+        try {
+            return super.getNodes(searchArea);
+        } finally {
+            resizeLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Collection<CoordTrig<Long>> getNodesFromValue(double lat, double lon, Long v) {
+        resizeLock.readLock().lock();
+        try {
+            return super.getNodesFromValue(lat, lon, v);
+        } finally {
+            resizeLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    List<CoordTrig<Long>> getNodes(long requestedKey) {
+        resizeLock.readLock().lock();
+        try {
+            return super.getNodes(requestedKey);
+        } finally {
+            resizeLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<CoordTrig<Long>> getKNearest(double lat, double lon, int k) {
+        resizeLock.readLock().lock();
+        try {
+            return super.getKNearest(lat, lon, k);
+        } finally {
+            resizeLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        resizeLock.writeLock().lock();
+        try {
+            stripedAdds.set(0);
+            super.clear();
+        } finally {
+            resizeLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void flush() {
+        resizeLock.writeLock().lock();
+        try {
+            size += stripedAdds.getAndSet(0);
+            super.flush();
+        } finally {
+            resizeLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        resizeLock.writeLock().lock();
+        try {
+            size += stripedAdds.getAndSet(0);
+            super.close();
+        } finally {
+            resizeLock.writeLock().unlock();
+        }
+    }
+}
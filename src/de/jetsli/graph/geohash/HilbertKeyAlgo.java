@@ -0,0 +1,150 @@
+/*
+ *  Copyright 2012 Peter Karich info@jetsli.de
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.graph.geohash;
+
+import de.jetsli.graph.util.CoordTrig;
+
+/**
+ * Orders the cells of the spatial key along a Hilbert curve instead of the Z-order of
+ * SpatialKeyAlgo. The quantization of latitude and longitude is the same, but consecutive keys are
+ * always neighbouring cells - so ranges of keys are more compact and e.g. an array sorted by key
+ * has a better locality. The first two bits still select the quadrant (bottom-left, top-left,
+ * top-right, bottom-right - rotated per level), so key prefixes are quadtree cells.
+ *
+ * For an odd number of bits the first bit is a latitude bit (like in SpatialKeyAlgo) and both
+ * halves are ordered along a Hilbert curve of the remaining bits.
+ *
+ * @author Peter Karich, info@jetsli.de
+ */
+public class HilbertKeyAlgo extends SpatialKeyAlgo {
+
+    // bits of the lon coordinate = order of the curve
+    private int order;
+    private long orderMask;
+    // the extra latitude bit of an odd number of bits
+    private long topBit;
+
+    public HilbertKeyAlgo(int allBits) {
+        super(allBits);
+        order = (int) getBits() - getLatBits();
+        orderMask = (1L << order) - 1;
+        topBit = getLatBits() > order ? 1L << (2 * order) : 0;
+    }
+
+    @Override
+    public HilbertKeyAlgo setInitialBounds(double minLonInit, double maxLonInit, double minLatInit, double maxLatInit) {
+        super.setInitialBounds(minLonInit, maxLonInit, minLatInit, maxLatInit);
+        return this;
+    }
+
+    @Override
+    public long encode(double lat, double lon) {
+        long latQ = quantizeLat(lat);
+        long lonQ = quantizeLon(lon);
+        long key = xy2d(lonQ, latQ & orderMask, order);
+        if (latQ > orderMask)
+            key |= topBit;
+        return key;
+    }
+
+    @Override
+    public void encode(double[] lats, double[] lons, long[] keys) {
+        int len = lats.length;
+        if (lons.length < len || keys.length < len)
+            throw new IllegalArgumentException("arrays need the same length " + len + ", "
+                    + lons.length + ", " + keys.length);
+
+        for (int i = 0; i < len; i++) {
+            keys[i] = encode(lats[i], lons[i]);
+        }
+    }
+
+    @Override
+    public void decode(long spatialKey, CoordTrig<?> latLon) {
+        long xy = d2xy(spatialKey & ~topBit, order);
+        long latQ = xy & 0xFFFFFFFFL;
+        if ((spatialKey & topBit) != 0)
+            latQ |= orderMask + 1;
+        latLon.lat = toLat(latQ);
+        latLon.lon = toLon(xy >>> 32);
+    }
+
+    @Override
+    public void decode(long[] keys, double[] lats, double[] lons) {
+        int len = keys.length;
+        if (lats.length < len || lons.length < len)
+            throw new IllegalArgumentException("arrays need the same length " + len + ", "
+                    + lats.length + ", " + lons.length);
+
+        CoordTrig<Object> tmp = new CoordTrig<Object>();
+        for (int i = 0; i < len; i++) {
+            decode(keys[i], tmp);
+            lats[i] = tmp.lat;
+            lons[i] = tmp.lon;
+        }
+    }
+
+    /**
+     * @return the distance along the Hilbert curve of the specified order for the cell x,y
+     */
+    static long xy2d(long x, long y, int order) {
+        long mask = (1L << order) - 1;
+        long d = 0;
+        for (int s = order - 1; s >= 0; s--) {
+            long rx = (x >>> s) & 1;
+            long ry = (y >>> s) & 1;
+            d |= ((3 * rx) ^ ry) << (2 * s);
+            // rotate the quadrant so that the sub curve starts and ends at the right corners
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = mask - x;
+                    y = mask - y;
+                }
+                long t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return d;
+    }
+
+    /**
+     * Reverse of xy2d
+     *
+     * @return x in the upper and y in the lower 32 bits
+     */
+    static long d2xy(long d, int order) {
+        long x = 0, y = 0;
+        for (int s = 0; s < order; s++) {
+            long rx = 1 & (d >>> 1);
+            long ry = 1 & (d ^ rx);
+            if (ry == 0) {
+                if (rx == 1) {
+                    long mask = (1L << s) - 1;
+                    x = mask - x;
+                    y = mask - y;
+                }
+                long t = x;
+                x = y;
+                y = t;
+            }
+            x |= rx << s;
+            y |= ry << s;
+            d >>>= 2;
+        }
+        return x << 32 | y;
+    }
+}
@@ -66,7 +66,7 @@ import de.jetsli.graph.util.CoordTrig;
 //  |----|----|----|----|
 //            |
 //  lon0 == 0 | lon0 == 1
-public class SpatialKeyAlgo {
+public class SpatialKeyAlgo implements SpatialKeyCurve {
 
     // private int factorForPrecision;
     // normally -180 degree
@@ -79,6 +79,13 @@ public class SpatialKeyAlgo {
     private double maxLatI;
     private int allBits;
     private long initialBits;
+    // fixed-point quantization: the first bit is a latitude bit => lat gets the extra bit if odd
+    private int latBits;
+    private long maxLatQ, maxLonQ;
+    private double latStep, lonStep;
+    // half of the smallest latitude step, decode uses it for both as the old bisection did
+    private double latCenter, lonCenter;
+    private int latShift, lonShift;
 
     public SpatialKeyAlgo(int allBits) {
         myinit(allBits);
@@ -96,13 +103,25 @@ public class SpatialKeyAlgo {
 
         this.allBits = allBits;
         initialBits = 1L << (allBits - 1);
+        latBits = (allBits + 1) / 2;
+        maxLatQ = (1L << latBits) - 1;
+        maxLonQ = (1L << (allBits - latBits)) - 1;
+        // bit layout: ... | lat_(n-1) lon_(n-1) | lat_n => lat bits are on the odd positions if even
+        latShift = 1 - (allBits & 1);
+        lonShift = allBits & 1;
         setWorldBounds();
     }
 
+    @Override
     public long getBits() {
         return allBits;
     }
 
+    protected int getLatBits() {
+        return latBits;
+    }
+
+    @Override
     public int getExactPrecision() {
         // 360 / 2^(allBits/2) = 1/precision
         int p = (int) (Math.pow(2, allBits) / 360);
@@ -111,11 +130,18 @@ public class SpatialKeyAlgo {
         return (int) Math.log10(p);
     }
 
+    @Override
     public SpatialKeyAlgo setInitialBounds(double minLonInit, double maxLonInit, double minLatInit, double maxLatInit) {
         minLonI = minLonInit;
         maxLonI = maxLonInit;
         minLatI = minLatInit;
         maxLatI = maxLatInit;
+        // divisions by a power of two are exact, so are the cell borders min + q * step for the
+        // world bounds - that makes the results identical to a bisection via doubles
+        latStep = (maxLatI - minLatI) / (maxLatQ + 1.0);
+        lonStep = (maxLonI - minLonI) / (maxLonQ + 1.0);
+        latCenter = (maxLatI - minLatI) / (maxLatQ + 1.0) / 2;
+        lonCenter = (maxLonI - minLonI) / (maxLatQ + 1.0) / 2;
         return this;
     }
 
@@ -132,47 +158,29 @@ public class SpatialKeyAlgo {
      *
      * @return the spatial key
      */
-    public final long encode(double lat, double lon) {
-        // PERFORMANCE: int operations would be faster than double (for further comparison etc)
-        // but we would need 'long' because 'int factorForPrecision' is not enough (problem: coord!=decode(encode(coord)) see testBijection)
-        // and 'long'-ops are more expensive than double (at least on 32bit systems)
-        long hash = 0;
-        double minLat = minLatI;
-        double maxLat = maxLatI;
-        double minLon = minLonI;
-        double maxLon = maxLonI;
-        int i = 0;
-        while (true) {
-            if (minLat < maxLat) {
-                double midLat = (minLat + maxLat) / 2;
-                if (lat > midLat) {
-                    hash |= 1;
-                    minLat = midLat;
-                } else
-                    maxLat = midLat;
-            }
-            i++;
-            if (i < allBits)
-                hash <<= 1;
-            // if allBits is an odd number
-            else
-                break;
-
-            if (minLon < maxLon) {
-                double midLon = (minLon + maxLon) / 2;
-                if (lon > midLon) {
-                    hash |= 1;
-                    minLon = midLon;
-                } else
-                    maxLon = midLon;
-            }
-            i++;
-            if (i < allBits)
-                hash <<= 1;
-            else
-                break;
+    @Override
+    public long encode(double lat, double lon) {
+        // PERFORMANCE: instead of bisecting bit by bit the coordinates are quantized to integers
+        // and interleaved via shifts and masks (Morton order)
+        long latQ = quantize(lat, minLatI, latStep, maxLatQ);
+        long lonQ = quantize(lon, minLonI, lonStep, maxLonQ);
+        return spread(latQ) << latShift | spread(lonQ) << lonShift;
+    }
+
+    /**
+     * Encodes all coordinates at once, e.g. for bulk loading an index.
+     */
+    @Override
+    public void encode(double[] lats, double[] lons, long[] keys) {
+        int len = lats.length;
+        if (lons.length < len || keys.length < len)
+            throw new IllegalArgumentException("arrays need the same length " + len + ", "
+                    + lons.length + ", " + keys.length);
+
+        for (int i = 0; i < len; i++) {
+            keys[i] = spread(quantize(lats[i], minLatI, latStep, maxLatQ)) << latShift
+                    | spread(quantize(lons[i], minLonI, lonStep, maxLonQ)) << lonShift;
         }
-        return hash;
     }
 
     /**
@@ -180,36 +188,93 @@ public class SpatialKeyAlgo {
      *
      * @param spatialKey is the input
      */
-    public final void decode(long spatialKey, CoordTrig latLon) {
-        // Performance: calculating 'midLon' and 'midLat' on the fly is not slower than using 
-        // precalculated values from arrays and for 'bits' a precalculated array is even slightly slower!
-
-        // Use the value in the middle => start from "min" use "max" as initial step-size
-        double midLat = (maxLatI - minLatI) / 2;
-        double midLon = (maxLonI - minLonI) / 2;
-        double lat = minLatI;
-        double lon = minLonI;
-        long bits = initialBits;
-        while (true) {
-            if ((spatialKey & bits) != 0)
-                lat += midLat;
-
-            midLat /= 2;
-            bits >>>= 1;
-            if ((spatialKey & bits) != 0)
-                lon += midLon;
-
-            midLon /= 2;
-            if (bits > 1)
-                bits >>>= 1;
-            else
-                break;
+    @Override
+    public void decode(long spatialKey, CoordTrig<?> latLon) {
+        // use the value in the middle of the cell
+        latLon.lat = minLatI + compact(spatialKey >>> latShift) * latStep + latCenter;
+        latLon.lon = minLonI + compact(spatialKey >>> lonShift) * lonStep + lonCenter;
+    }
+
+    /**
+     * Decodes all keys at once into the specified arrays.
+     */
+    @Override
+    public void decode(long[] keys, double[] lats, double[] lons) {
+        int len = keys.length;
+        if (lats.length < len || lons.length < len)
+            throw new IllegalArgumentException("arrays need the same length " + len + ", "
+                    + lats.length + ", " + lons.length);
+
+        for (int i = 0; i < len; i++) {
+            long key = keys[i];
+            lats[i] = minLatI + compact(key >>> latShift) * latStep + latCenter;
+            lons[i] = minLonI + compact(key >>> lonShift) * lonStep + lonCenter;
         }
+    }
 
-        // stable rounding - see testBijection
-        lat += midLat;
-        lon += midLon;
-        latLon.lat = lat;
-        latLon.lon = lon;
+    protected final long quantizeLat(double lat) {
+        return quantize(lat, minLatI, latStep, maxLatQ);
+    }
+
+    protected final long quantizeLon(double lon) {
+        return quantize(lon, minLonI, lonStep, maxLonQ);
+    }
+
+    /**
+     * @return the latitude in the middle of the cell latQ
+     */
+    protected final double toLat(long latQ) {
+        return minLatI + latQ * latStep + latCenter;
+    }
+
+    protected final double toLon(long lonQ) {
+        return minLonI + lonQ * lonStep + lonCenter;
+    }
+
+    /**
+     * Same result as the bisection: cell q contains the values in (min + q*step, min + (q+1)*step]
+     * and values outside are mapped to the first or last cell.
+     */
+    private static long quantize(double val, double min, double step, long maxQ) {
+        double diff = val - min;
+        if (!(diff > 0))
+            return 0;
+
+        long q = (long) (diff / step);
+        if (q > maxQ)
+            return maxQ;
+
+        // correct rounding errors of the division at the cell borders
+        if (val <= min + q * step)
+            q--;
+        else if (q < maxQ && val > min + (q + 1) * step)
+            q++;
+        return q < 0 ? 0 : q;
+    }
+
+    /**
+     * Moves the lower 32 bits of the specified value to the even bit positions.
+     */
+    static long spread(long x) {
+        x &= 0xFFFFFFFFL;
+        x = (x | x << 16) & 0x0000FFFF0000FFFFL;
+        x = (x | x << 8) & 0x00FF00FF00FF00FFL;
+        x = (x | x << 4) & 0x0F0F0F0F0F0F0F0FL;
+        x = (x | x << 2) & 0x3333333333333333L;
+        x = (x | x << 1) & 0x5555555555555555L;
+        return x;
+    }
+
+    /**
+     * Reverse of spread: collects the even bits into the lower 32 bits.
+     */
+    static long compact(long x) {
+        x &= 0x5555555555555555L;
+        x = (x | x >>> 1) & 0x3333333333333333L;
+        x = (x | x >>> 2) & 0x0F0F0F0F0F0F0F0FL;
+        x = (x | x >>> 4) & 0x00FF00FF00FF00FFL;
+        x = (x | x >>> 8) & 0x0000FFFF0000FFFFL;
+        x = (x | x >>> 16) & 0x00000000FFFFFFFFL;
+        return x;
     }
 }
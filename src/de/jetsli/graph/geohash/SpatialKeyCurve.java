@@ -0,0 +1,46 @@
+/*
+ *  Copyright 2012 Peter Karich info@jetsli.de
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.graph.geohash;
+
+import de.jetsli.graph.util.CoordTrig;
+
+/**
+ * Maps latitude and longitude to a spatial key along a space filling curve and back. For an even
+ * number of bits the first 2*n bits of a key describe the quadrant of depth n - so a key prefix is
+ * a cell of the implicit quadtree for every curve. Only the numbering of the 4 children of a cell
+ * depends on the curve. See SpatialKeyAlgo (Z-order) and HilbertKeyAlgo.
+ *
+ * @author Peter Karich, info@jetsli.de
+ */
+public interface SpatialKeyCurve {
+
+    long getBits();
+
+    int getExactPrecision();
+
+    SpatialKeyCurve setInitialBounds(double minLon, double maxLon, double minLat, double maxLat);
+
+    long encode(double lat, double lon);
+
+    void encode(double[] lats, double[] lons, long[] keys);
+
+    /**
+     * Returns the center of the cell of the specified key via latLon
+     */
+    void decode(long spatialKey, CoordTrig<?> latLon);
+
+    void decode(long[] keys, double[] lats, double[] lons);
+}
@@ -0,0 +1,1175 @@
+/*
+ *  Copyright 2012 Peter Karich info@jetsli.de
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.graph.geohash;
+
+import de.jetsli.graph.storage.SegmentedBuffer;
+import de.jetsli.graph.util.Helper;
+
+import gnu.trove.map.hash.TIntIntHashMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A big hashtable from spatial keys to primitive values stored in bytes. Neighboring keys end up
+ * in neighboring buckets which is the base for the spatial queries of SpatialHashtable.
+ *
+ * # key compression: the bucket index is derived from the spatial key (see getBucketIndex) and
+ * only the rest of the key is stored (bytesPerKeyRest). Use setSpatialKeyBits to reduce the
+ * precision and the bytes per key and setBytesPerValue for the bytes per value (unsigned).
+ *
+ * # no separate overflow area necessary -> use the same buckets and use one byte in an overflow
+ * entries to indentify the origin of it (count distance to original bucket). ring: at the end use
+ * beginning as overflow area
+ *
+ * # duplicate keys are allowed via add. put and adjustOrPutValue update existing entries
+ *
+ * # grows automatically if more than maxEntries are added: a table for twice the entries is
+ * allocated and the buckets of the old table are moved incrementally, a few per add. Until then
+ * lookups look into both tables.
+ *
+ * # no integer limit: the buckets are stored in a SegmentedBuffer with long pointers. With
+ * setLocation the buckets are memory mapped and the table can be reopened via loadExisting
+ *
+ * # not thread safe, see ConcurrentSpatialHashtable for striped read-write locks
+ *
+ * @author Peter Karich, info@jetsli.de
+ */
+public class SpatialKeyLongMap {
+
+    // bits & byte stuff
+    private static final int BITS8 = 8;
+    protected int size;
+    protected int maxBuckets;
+    protected SpatialKeyCurve algo;
+    private boolean hilbert;
+    private boolean compressKey = true;
+    
+    private SegmentedBuffer storage;
+    // directory of the memory mapped buckets or null if in-memory
+    private String location;
+    // increased for every grow to get a new file for the buckets
+    private int generation;
+    protected int bytesPerBucket;
+    protected int bytesPerEntry;
+    protected int bytesPerValue;
+    protected int bytesPerOverflowEntry;
+    private int maxEntriesPerBucket;
+    // key compression
+    private int unusedBits = BITS8;
+    private int skipKeyBeginningBits, skipKeyEndBits;
+    private int bytesPerKeyRest;
+    private int spatialKeyBits;
+    private int bucketIndexBits;
+    private long rightMask;
+    private int findOverflowFactor = 4;
+    // the offset of an overflow entry is stored in 7 bits of one byte
+    private static final int MAX_OVERFLOW_OFFSET = 127;
+    // growing
+    private static final int MIGRATE_BUCKETS_PER_ADD = 4;
+    private boolean autoGrow = true;
+    private int initialEntriesPerBucket;
+    private long maxEntries;
+    // the previous table while its buckets are moved into this one
+    private SpatialKeyLongMap oldTable;
+    private int migratedBuckets;
+    private int oldTableSize;
+    private long noValue = -1;
+
+    public SpatialKeyLongMap() {
+        this(8, 3);
+    }
+
+    public SpatialKeyLongMap(int skipKeyBeginningBits) {
+        this(skipKeyBeginningBits, 3);
+    }
+
+    public SpatialKeyLongMap(int skipKeyBeginningBits, int initialEntriesPerBucket) {
+        this.skipKeyBeginningBits = skipKeyBeginningBits;
+        this.maxEntriesPerBucket = initialEntriesPerBucket;
+    }
+
+    /**
+     * If true (default) the table grows instead of running out of overflow space if more entries
+     * than specified in init are added.
+     */
+    public SpatialKeyLongMap setAutoGrow(boolean autoGrow) {
+        this.autoGrow = autoGrow;
+        return this;
+    }
+
+    public SpatialKeyLongMap setCompressKey(boolean compressKey) {
+        this.compressKey = compressKey;
+        return this;
+    }
+
+    /**
+     * Stores the buckets memory mapped in the specified directory. Call this before init or
+     * loadExisting.
+     */
+    public SpatialKeyLongMap setLocation(String location) {
+        this.location = location;
+        return this;
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+    /**
+     * Sets the precision of the spatial keys (default 56, even). Less bits mean less stored bytes
+     * per key. Call this before init.
+     */
+    public SpatialKeyLongMap setSpatialKeyBits(int bits) {
+        if (bits <= 0 || bits > 8 * BITS8 || (bits & 0x1) == 1)
+            throw new IllegalArgumentException("spatial key bits have to be even and within (0, 64] but were " + bits);
+        unusedBits = 8 * BITS8 - bits;
+        return this;
+    }
+
+    /**
+     * If true the spatial keys are ordered along a Hilbert curve instead of the Z-order, see
+     * HilbertKeyAlgo. Call this before init.
+     */
+    public SpatialKeyLongMap setHilbert(boolean hilbert) {
+        this.hilbert = hilbert;
+        return this;
+    }
+
+    public boolean isHilbert() {
+        return hilbert;
+    }
+
+    /**
+     * The value returned from get for missing keys. Default is -1.
+     */
+    public SpatialKeyLongMap setNoValue(long noValue) {
+        this.noValue = noValue;
+        return this;
+    }
+
+    public long getNoValue() {
+        return noValue;
+    }
+
+    SpatialKeyLongMap setFindOverflowFactor(int factor) {
+        this.findOverflowFactor = factor;
+        return this;
+    }
+
+    public SpatialKeyLongMap init(long maxEntries) {
+        if (location != null)
+            Helper.deleteDir(new File(location));
+
+        this.maxEntries = maxEntries;
+        initialEntriesPerBucket = maxEntriesPerBucket;
+        initKey();
+        initBucketSizes((int) maxEntries);
+        initBuffers();
+        return this;
+    }
+
+    protected void initKey() {
+        // TODO calculate necessary spatial key precision (=>unusedBits) from maxEntries
+        //
+        // one unused byte in spatial key (making encode/decode a bit faster) => but still higher precision than float        
+        spatialKeyBits = 8 * BITS8 - unusedBits;
+        algo = createCurve(spatialKeyBits);
+
+        // skip the first byte for the bucket index + the unused byte
+        if (skipKeyBeginningBits < 0)
+            skipKeyBeginningBits = BITS8 + unusedBits;
+        else
+            skipKeyBeginningBits += unusedBits;
+    }
+
+    protected SpatialKeyCurve createCurve(int bits) {
+        if (hilbert)
+            return new HilbertKeyAlgo(bits);
+        return new SpatialKeyAlgo(bits);
+    }
+
+    int correctDivide(int val, int div) {
+        if (val % div == 0)
+            return val / div;
+        else
+            return val / div + 1;
+    }
+
+    //####################
+    // bucket byte layout: 1 byte + maxEntriesPerBucket * bytesPerEntry
+    //   | size | entry1 | entry2 | ... | empty space | ... | oe2 | overflow entry1 |
+    //
+    // size byte layout
+    //   entries per bucket (without overflowed entries!) (7 bits) | overflowed bit - marks if the current bucket is already overflowed
+    //
+    // overflow entry layout:
+    //   offset to original bucket (7 bits) | stop bit | overflow entry    
+    //
+    // spatial key bit layout
+    // | skipBeginning (incl. unusedBits) | bucketIndexBits | veryRightSide (bucketIndexBits) | skipEnd |        
+    //####################
+    //
+    protected void initBucketSizes(int maxEntries) {
+        maxBuckets = correctDivide(maxEntries, maxEntriesPerBucket);
+
+        // Always use lower bits to guarantee that all indices are smaller than maxBuckets
+        bucketIndexBits = (int) (Math.log(maxBuckets) / Math.log(2));
+
+        // now adjust maxBuckets and maxEntriesPerBucket to avoid memory waste and fit a power of 2
+        maxBuckets = (int) Math.pow(2, bucketIndexBits);
+        maxEntriesPerBucket = correctDivide(maxEntries, maxBuckets);
+
+        // introduce hash overflow area
+        if (maxEntriesPerBucket < 5)
+            maxEntriesPerBucket++;
+        else if (maxEntriesPerBucket < 8)
+            maxEntriesPerBucket += 2;
+        else
+            maxEntriesPerBucket *= 1.25;
+
+        // TODO overflow area: When keys are uncompressed we could easily increase maxBucket size.
+        // maxBuckets *= 1.1;
+        // For the compressed case we would need to adjust bucketIndexBits to use the bigger buckets
+
+        // if compressed then all data except 'y' which is indirectly encoded as bucket index needs to be stored 
+        // => skip y of spatial key and store 'rest'
+        if (compressKey) {
+            bytesPerKeyRest = correctDivide(spatialKeyBits - bucketIndexBits, BITS8);
+            skipKeyEndBits = 8 * BITS8 - skipKeyBeginningBits - bucketIndexBits * 2;
+            if (skipKeyEndBits < 0)
+                throw new IllegalStateException("Too many entries (" + maxEntries + ") for this"
+                        + " skipBeginning value (" + skipKeyBeginningBits
+                        + "). Or increase spatialKeyBits (" + spatialKeyBits + ")");
+        } else {
+            skipKeyEndBits = 0;
+            // complete key
+            bytesPerKeyRest = 8;
+        }
+
+        if (bytesPerValue <= 0 || bytesPerValue > 8)
+            bytesPerValue = 4;
+        bytesPerEntry = bytesPerKeyRest + bytesPerValue;
+        bytesPerOverflowEntry = bytesPerEntry + 1;
+        // store used entries per bucket in one byte (use one bit to mark bucket as full)
+        // => maximum entries per bucket = 128
+        int bytesForLength = 1;
+        bytesPerBucket = maxEntriesPerBucket * bytesPerEntry + bytesForLength;
+        if (skipKeyEndBits > 0)
+            rightMask = (1L << skipKeyEndBits) - 1;
+    }
+
+    public void setBytesPerValue(int bytesPerValue) {
+        this.bytesPerValue = bytesPerValue;
+    }
+
+    protected void initBuffers() {
+        String file = null;
+        if (location != null) {
+            new File(location).mkdirs();
+            // a new table starts with empty buckets
+            getBucketsFile(generation).delete();
+            file = getBucketsFile(generation).getPath();
+        }
+        storage = new SegmentedBuffer(file, SegmentedBuffer.DEFAULT_SEGMENT_POWER);
+        storage.ensureCapacity(getCapacityInBytes());
+    }
+
+    private File getBucketsFile(int generation) {
+        return new File(location, "buckets" + generation);
+    }
+
+    private File getSettingsFile() {
+        return new File(location, "settings");
+    }
+
+    /**
+     * Loads the table from the directory specified via setLocation.
+     *
+     * @return false if there is no table
+     */
+    public boolean loadExisting() {
+        if (location == null || !getSettingsFile().exists())
+            return false;
+
+        try {
+            Object[] ob = Helper.readSettings(getSettingsFile().getPath());
+            if (ob.length < 10)
+                throw new IllegalStateException("invalid file format");
+
+            skipKeyBeginningBits = (Integer) ob[0];
+            initialEntriesPerBucket = (Integer) ob[1];
+            compressKey = (Boolean) ob[2];
+            bytesPerValue = (Integer) ob[3];
+            findOverflowFactor = (Integer) ob[4];
+            maxEntries = (Long) ob[5];
+            size = (Integer) ob[6];
+            generation = (Integer) ob[7];
+            long capacity = (Long) ob[8];
+            unusedBits = (Integer) ob[9];
+            hilbert = ob.length > 10 && (Boolean) ob[10];
+
+            maxEntriesPerBucket = initialEntriesPerBucket;
+            initKey();
+            initBucketSizes((int) maxEntries);
+            if (capacity != getCapacityInBytes())
+                throw new IllegalStateException("Bucket layout does not match the stored one " + capacity
+                        + " vs. " + getCapacityInBytes());
+
+            storage = new SegmentedBuffer(getBucketsFile(generation).getPath(), SegmentedBuffer.DEFAULT_SEGMENT_POWER);
+            if (storage.getCapacity() < capacity)
+                throw new IllegalStateException("Buckets file is too small " + storage.getCapacity()
+                        + " vs. " + capacity);
+            return true;
+        } catch (IOException ex) {
+            throw new RuntimeException("Couldn't load data from disc. location=" + location, ex);
+        }
+    }
+
+    /**
+     * Writes the buckets and settings to disc. A pending migration of a grow is finished before.
+     */
+    public void flush() {
+        if (location == null)
+            return;
+
+        if (oldTable != null)
+            migrate(oldTable.maxBuckets);
+
+        storage.flush();
+        try {
+            Helper.writeSettings(getSettingsFile().getPath(), skipKeyBeginningBits - unusedBits,
+                    initialEntriesPerBucket, compressKey, bytesPerValue, findOverflowFactor,
+                    maxEntries, size, generation, getCapacityInBytes(), unusedBits, hilbert);
+        } catch (IOException ex) {
+            throw new RuntimeException("Couldn't write data to disc. location=" + location, ex);
+        }
+    }
+
+    /**
+     * Flushes and releases the storage. This table cannot be used afterwards.
+     */
+    public void close() {
+        flush();
+        releaseOldTable();
+        storage.close();
+    }
+
+    void setBucketIndexBits(int bucketIndexBits) {
+        this.bucketIndexBits = bucketIndexBits;
+    }
+
+    int getBytesPerBucket() {
+        return bytesPerBucket;
+    }
+
+    int getBytesPerEntry() {
+        return bytesPerEntry;
+    }
+
+    public int getSkipKeyBeginningBits() {
+        return skipKeyBeginningBits;
+    }
+
+    public int getBucketIndexBits() {
+        return bucketIndexBits;
+    }
+
+    public SpatialKeyCurve getAlgo() {
+        return algo;
+    }
+
+    public int getEntriesPerBucket() {
+        return maxEntriesPerBucket;
+    }
+
+    public long getMaxBuckets() {
+        return maxBuckets;
+    }
+
+    int getSkipKeyEndBits() {
+        return skipKeyEndBits;
+    }
+
+    /**
+     * @return the depth in bits at which the implicit quadtree of the spatial key reaches a bucket
+     */
+    int getLeafDepth() {
+        return bucketIndexBits * 2 + skipKeyBeginningBits - unusedBits;
+    }
+
+
+    int getBucketIndex(long spatialKey) {
+        if (!compressKey)
+            return Math.abs((int) (spatialKey % (maxBuckets - 1)));
+
+        // 2^28 * 3 ..  6 = ~800-1600 mio -> not possible to address this in a bytebuffer (int index)
+        // bucket index = leftSide ^= veryRightSide
+
+        // System.out.println(BitUtil.toBitString(spatialKey));
+        long veryRightSide = spatialKey;
+        veryRightSide <<= skipKeyBeginningBits + bucketIndexBits;
+        // System.out.println(BitUtil.toBitString(veryRightSide));
+        veryRightSide >>>= 8 * BITS8 - bucketIndexBits;
+        // System.out.println(BitUtil.toBitString(veryRightSide));
+
+        spatialKey <<= skipKeyBeginningBits;
+        // System.out.println(BitUtil.toBitString(spatialKey));
+        spatialKey >>>= skipKeyBeginningBits + skipKeyEndBits + bucketIndexBits;
+        // System.out.println(BitUtil.toBitString(spatialKey));
+        spatialKey ^= veryRightSide;
+
+        // maxBuckets is a power of two so x-1 is very likely 'some kind' of prime number :)
+        // spatialKey %= maxBuckets - 1;
+
+        // bit operations are ~20% faster but there is only this equivalence: x % 2^n == x & (2^n - 1) 
+        // which is not sufficient for a good distribution. We would need: x % (2^n-1)= .. this is ok now: x^y
+        if (spatialKey >= maxBuckets || spatialKey < 0)
+            throw new IllegalStateException("Index devived from spatial key is to high or negative!? " + spatialKey
+                    + " vs. " + maxBuckets + " skipBeginning:" + skipKeyBeginningBits
+                    + " skipEnd:" + skipKeyEndBits + " log(index):" + Math.log(spatialKey) / Math.log(2));
+
+        return (int) spatialKey;
+    }
+
+    /**
+     * First part of spatialKey should be smaller than second. (In this implementation they are the
+     * same length but to use more than 2^32 buckets => it is necessary to make a different length.
+     * And second part is better distributed and 'first' XOR 'second' is better distributed only if
+     * second is longer) And because it is smaller => less space consumed. Also the first part is
+     * more equal to other spatialKeys => in future implementations this could be better
+     * compressable.
+     */
+    long getStoredKey(long spatialKey) {
+        if (!compressKey)
+            return spatialKey;
+
+        // | skipKeyBeginningBits | x (bucketIndexBits) | y (bucketIndexBits) | skipped
+        // => REMOVE y
+        long skippedRight = spatialKey & rightMask;
+//        System.out.println(BitUtil.toBitString(spatialKey));
+        spatialKey >>>= bucketIndexBits + skipKeyEndBits;
+        spatialKey <<= skipKeyEndBits;
+//        System.out.println(BitUtil.toBitString(spatialKey));
+//        System.out.println(BitUtil.toBitString(skippedRight));
+        return spatialKey | skippedRight;
+    }
+
+    long toUncompressedKey(long storedKey, int bucketIndex) {
+        if (!compressKey)
+            return storedKey;
+
+        // | skipKeyBeginningBits | x (bucketIndexBits) | y (bucketIndexBits) | skipped
+        // => INSERT y
+        int tmp = BITS8 * 8 - skipKeyEndBits;
+        long right = storedKey;
+        right <<= tmp;
+        right >>>= tmp;
+        long x = storedKey << BITS8 * 8 - bucketIndexBits - skipKeyEndBits;
+        x >>>= BITS8 * 8 - bucketIndexBits;
+        storedKey >>>= skipKeyEndBits;
+        storedKey <<= skipKeyEndBits + bucketIndexBits;
+//        System.out.println(BitUtil.toBitString(storedKey));
+//        System.out.println(BitUtil.toBitString(right));
+        storedKey |= right;
+//        System.out.println(BitUtil.toBitString(bucketIndex));
+        long y = (bucketIndex ^ x) << skipKeyEndBits;
+//        System.out.println(BitUtil.toBitString(x));
+//        System.out.println(BitUtil.toBitString(y));
+        return storedKey | y;
+    }
+
+    public long size() {
+        return size + oldTableSize;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Adds an entry even if there are already entries with the same key
+     */
+    public void add(long key, long value) {
+        checkValue(value);
+        if (autoGrow && size >= maxEntries)
+            grow();
+
+        try {
+            addEntry(key, value);
+        } catch (TableFullException ex) {
+            if (!autoGrow)
+                throw ex;
+            // the overflow area is exhausted before maxEntries is reached (bad key distribution)
+            grow();
+            addEntry(key, value);
+        }
+        size++;
+        if (oldTable != null)
+            migrate(MIGRATE_BUCKETS_PER_ADD);
+    }
+
+    /**
+     * Sets the value of all entries with the specified key or adds an entry if there is none
+     */
+    public void put(long key, long value) {
+        checkValue(value);
+        if (replaceValues(key, value) == 0)
+            add(key, value);
+    }
+
+    public void put(double lat, double lon, long value) {
+        put(algo.encode(lat, lon), value);
+    }
+
+    /**
+     * @return the value of the first entry with the specified key or getNoValue() if none
+     */
+    public long get(long key) {
+        ValueFinder finder = new ValueFinder(key);
+        getLeafNodes(finder, key);
+        return finder.found ? finder.value : noValue;
+    }
+
+    public long get(double lat, double lon) {
+        return get(algo.encode(lat, lon));
+    }
+
+    public boolean containsKey(long key) {
+        ValueFinder finder = new ValueFinder(key);
+        getLeafNodes(finder, key);
+        return finder.found;
+    }
+
+    /**
+     * Adds adjust to the value of the entries with the specified key or adds an entry with
+     * putValue if there is none, e.g. to count visits.
+     *
+     * @return the new value of the first entry
+     */
+    public long adjustOrPutValue(long key, long adjust, long putValue) {
+        ValueFinder finder = new ValueFinder(key);
+        getLeafNodes(finder, key);
+        if (!finder.found) {
+            add(key, putValue);
+            return putValue;
+        }
+
+        long value = finder.value + adjust;
+        checkValue(value);
+        replaceValues(key, value);
+        return value;
+    }
+
+    private void checkValue(long value) {
+        if (bytesPerValue < 8 && (value >>> 8 * bytesPerValue) != 0)
+            throw new IllegalArgumentException("Value " + value + " does not fit into " + bytesPerValue + " bytes");
+    }
+
+    /**
+     * Overwrites the value of all entries with the specified key - including the ones of the old
+     * table which are not yet migrated.
+     *
+     * @return the number of changed entries
+     */
+    int replaceValues(long key, long value) {
+        int count = replaceValuesOfBucket(key, value);
+        if (oldTable != null && oldTable.getBucketIndex(key) >= migratedBuckets)
+            count += oldTable.replaceValuesOfBucket(key, value);
+        return count;
+    }
+
+    private int replaceValuesOfBucket(final long key, final long value) {
+        final AtomicInteger count = new AtomicInteger();
+        getNodes(new LeafWorker() {
+
+            @Override public boolean doWork(long tmpKey, long oldValue) {
+                if (tmpKey != key)
+                    return false;
+                putValue(valuePointer, value);
+                count.incrementAndGet();
+                return true;
+            }
+        }, getBucketIndex(key), key);
+        return count.get();
+    }
+
+    private static class ValueFinder extends LeafWorker {
+
+        final long key;
+        boolean found;
+        long value;
+
+        public ValueFinder(long key) {
+            this.key = key;
+        }
+
+        @Override protected boolean doWork(long tmpKey, long tmpValue) {
+            if (tmpKey != key || found)
+                return false;
+            found = true;
+            value = tmpValue;
+            return true;
+        }
+    }
+
+    /**
+     * Replaces the storage with one for twice the entries. The entries are not copied here but
+     * bucket by bucket in the following calls of add to avoid a long pause - see migrate.
+     */
+    private void grow() {
+        if (oldTable != null)
+            migrate(oldTable.maxBuckets);
+
+        if (maxEntries * 2 > Integer.MAX_VALUE)
+            throw new IllegalStateException("Cannot grow beyond " + maxEntries + " entries");
+
+        oldTable = copyTable();
+        oldTableSize = size;
+        generation++;
+        migratedBuckets = 0;
+        size = 0;
+        maxEntries *= 2;
+        maxEntriesPerBucket = initialEntriesPerBucket;
+        initBucketSizes((int) maxEntries);
+        initBuffers();
+    }
+
+    /**
+     * @return a table with the current settings and storage - used as old table while growing
+     */
+    private SpatialKeyLongMap copyTable() {
+        SpatialKeyLongMap copy = new SpatialKeyLongMap(skipKeyBeginningBits, maxEntriesPerBucket);
+        copy.autoGrow = false;
+        copy.size = size;
+        copy.maxBuckets = maxBuckets;
+        copy.algo = algo;
+        copy.hilbert = hilbert;
+        copy.compressKey = compressKey;
+        copy.storage = storage;
+        copy.bytesPerBucket = bytesPerBucket;
+        copy.bytesPerEntry = bytesPerEntry;
+        copy.bytesPerValue = bytesPerValue;
+        copy.bytesPerOverflowEntry = bytesPerOverflowEntry;
+        copy.unusedBits = unusedBits;
+        copy.noValue = noValue;
+        copy.skipKeyEndBits = skipKeyEndBits;
+        copy.bytesPerKeyRest = bytesPerKeyRest;
+        copy.spatialKeyBits = spatialKeyBits;
+        copy.bucketIndexBits = bucketIndexBits;
+        copy.rightMask = rightMask;
+        copy.findOverflowFactor = findOverflowFactor;
+        return copy;
+    }
+
+    /**
+     * Moves the entries of the next buckets (including their overflow entries) from the old table
+     * into this one. The old table is dropped after its last bucket.
+     */
+    private void migrate(int buckets) {
+        LeafWorker mover = new LeafWorker() {
+
+            @Override public boolean doWork(long key, long value) {
+                addEntry(key, value);
+                size++;
+                oldTableSize--;
+                return true;
+            }
+        };
+        int end = Math.min(oldTable.maxBuckets, migratedBuckets + buckets);
+        for (; migratedBuckets < end; migratedBuckets++) {
+            oldTable.getNodes(mover, migratedBuckets, null);
+        }
+        if (migratedBuckets >= oldTable.maxBuckets)
+            releaseOldTable();
+    }
+
+    private void releaseOldTable() {
+        if (oldTable == null)
+            return;
+
+        oldTable.storage.close();
+        if (location != null)
+            getBucketsFile(generation - 1).delete();
+        oldTable = null;
+        oldTableSize = 0;
+    }
+
+    /**
+     * @return true if the next add grows the table or moves buckets of the old table
+     */
+    boolean isResizing(int pendingEntries) {
+        return oldTable != null || autoGrow && size + pendingEntries >= maxEntries;
+    }
+
+    /**
+     * @return the number of buckets which the overflow entries of one bucket can occupy,
+     * beginning with the bucket itself
+     */
+    int getOverflowWindow() {
+        return MAX_OVERFLOW_OFFSET * findOverflowFactor + 1;
+    }
+
+    /**
+     * Writes the entry into its bucket or the overflow area without counting it
+     */
+    void addEntry(long key, long value) {
+        int bucketIndex = getBucketIndex(key);
+        long storedKey = getStoredKey(key);
+
+        // convert bucketIndex to byte pointer
+        long pointer = (long) bucketIndex * bytesPerBucket;
+        if (isBucketFull(pointer)) {
+            pointer = findExistingOverflow(pointer + bytesPerBucket, storedKey);
+        } else {
+            byte no = getNoOfEntries(pointer);
+            int ovflBytes = getNoOfOverflowEntries(pointer, no);
+
+            // will the new entry fit into the current bucket or do we need to overflow?
+            if (ovflBytes * bytesPerOverflowEntry + (no + 1) * bytesPerEntry + 1 <= bytesPerBucket) {
+                // store current entries in this bucket
+                writeNoOfEntries(pointer, no + 1, false);
+                // skip old entries and one byte for length info
+                pointer += no * bytesPerEntry + 1;
+            } else {
+                // store overflowed bit but old size
+                writeNoOfEntries(pointer, no, true);
+                // Use overflow area! Ie. empty space from right to left of one bucket
+                pointer = findFreeOverflow(pointer + bytesPerBucket, 0);
+            }
+        }
+
+        putKey(pointer, storedKey);
+        putValue(pointer + bytesPerKeyRest, value);
+    }
+
+    void writeNoOfEntries(long bucketPointer, int no, boolean fullBucket) {
+        if (no > maxEntriesPerBucket)
+            throw new IllegalStateException("Entries shouldn't exceed maxEntriesPerBucket! Was "
+                    + no + " vs. " + maxEntriesPerBucket);
+        no <<= 1;
+        if (fullBucket)
+            putByte(bucketPointer, (byte) (no | 0x1));
+        else
+            putByte(bucketPointer, (byte) no);
+    }
+
+    boolean isBucketFull(long bucketPointer) {
+        return (getByte(bucketPointer) & 0x1) == 1;
+    }
+
+    protected byte getNoOfEntries(long bucketPointer) {
+        byte no = getByte(bucketPointer);
+        // skip overflowed bit
+        no >>>= 1;
+        if (no > maxEntriesPerBucket)
+            throw new IllegalStateException("Entries shouldn't exceed maxEntriesPerBucket! Was "
+                    + no + " vs. " + maxEntriesPerBucket + " at " + bucketPointer
+                    + " problematic bp? " + bucketPointer % bytesPerBucket);
+        return no;
+    }
+
+    /**
+     * find last overflow entry with identical key and stopbit (1).
+     *
+     * @param bytesPointer use the pointer from the overflow area (next to the original bucket)
+     */
+    private long findExistingOverflow(long bytesPointer, long storedKey) {
+        BucketOverflowLoop loop1 = new KeyCheckLoop(storedKey);
+        bytesPointer = loop1.throughBuckets(bytesPointer);
+        // write offset and remove stopbit
+        putByte(loop1.overflowPointer, (byte) ((loop1.lastOffset >>> 1) << 1));
+        return findFreeOverflow(bytesPointer, loop1.newOffset - 1);
+    }
+
+    /**
+     * find next free overflow entry.
+     *
+     * @param bytesPointer use the pointer from the overflow area (next to the original bucket)
+     */
+    private long findFreeOverflow(long bytesPointer, int oldOffset) {
+        BucketOverflowLoop loop2 = new BucketOverflowLoop();
+        loop2.newOffset = oldOffset;
+        loop2.throughBuckets(bytesPointer);
+
+        // write offset and set stopbit
+        putByte(loop2.overflowPointer, (byte) ((loop2.newOffset << 1) | 0x1));
+        // skip the overflow-offset byte
+        return loop2.overflowPointer + 1;
+    }
+
+    /**
+     * @return count the number of used overflow bytes
+     */
+    protected int getNoOfOverflowEntries(long buckerPointer) {
+        int no = getNoOfEntries(buckerPointer);
+        return getNoOfOverflowEntries(buckerPointer, no);
+    }
+
+    private int getNoOfOverflowEntries(long bucketPointer, int entriesNo) {
+        long overflowPointer = bucketPointer + bytesPerBucket - bytesPerOverflowEntry;
+        long lastEntryByte = bucketPointer + 1 + entriesNo * bytesPerEntry - 1;
+
+        // loop until last normal entry!
+        int count = 0;
+        while (lastEntryByte < overflowPointer) {
+            byte offsetAndStopBit = getByte(overflowPointer);
+            if (offsetAndStopBit == 0)
+                break;
+
+            count++;
+            overflowPointer -= bytesPerOverflowEntry;
+        }
+        return count;
+    }
+
+    final long getKey(long pointer, int bucketIndex) {
+        long storedKey = getHelper(pointer, pointer + bytesPerKeyRest);
+        return toUncompressedKey(storedKey, bucketIndex);
+    }
+
+    final long getValue(long pointer) {
+        return getHelper(pointer, pointer + bytesPerValue);
+    }
+
+    private long getHelper(long pointer, long max) {
+        long key = 0;
+        while (true) {
+            // byte converted to long makes all longish bits to 1 so remove them via & 0xff!
+            key |= getByte(pointer) & 0xff;
+            pointer++;
+            if (pointer >= max)
+                break;
+            key <<= BITS8;
+        }
+        return key;
+    }
+
+    final byte getByte(long pointer) {
+        // unsufficient error message from ByteBuffer!
+        if (pointer < 0)
+            throw new IllegalStateException("negative pointer! " + pointer);
+        return storage.get(pointer);
+    }
+
+    final void putValue(long pointer, long val) {
+        putHelper(pointer, bytesPerValue, val);
+    }
+
+    final void putKey(long pointer, long storedKey) {
+        putHelper(pointer, bytesPerKeyRest, storedKey);
+    }
+
+    /**
+     * Writes all bytes (big endian) - leading zeros too, otherwise an overwrite would keep the high
+     * bytes of the former value
+     */
+    private void putHelper(long pointer, int bytes, long val) {
+        for (long p = pointer + bytes - 1; p >= pointer; p--) {
+            putByte(p, (byte) val);
+            val >>>= BITS8;
+        }
+    }
+
+    private void putByte(long pointer, byte b) {
+        storage.put(pointer, b);
+    }
+
+    /**
+     * allows the worker to process the nodes of the leaf cell of the specified key - including
+     * the ones of the old table which are not yet migrated
+     */
+    protected void getLeafNodes(final LeafWorker worker, final long key) {
+        getNodes(worker, getBucketIndex(key), key);
+        if (oldTable == null)
+            return;
+
+        int oldBucketIndex = oldTable.getBucketIndex(key);
+        if (oldBucketIndex < migratedBuckets)
+            return;
+
+        // the bucket of the old table is shared by a bigger cell => filter the other entries
+        final int shift = skipKeyEndBits;
+        oldTable.getNodes(new LeafWorker() {
+
+            @Override public boolean doWork(long oldKey, long value) {
+                if ((oldKey >>> shift) != (key >>> shift))
+                    return false;
+                return worker.doWork(oldKey, value);
+            }
+        }, oldBucketIndex, key);
+    }
+
+    /**
+     * allows the worker to process nodes of the specified bucketIndex
+     */
+    protected void getNodes(final LeafWorker worker, final int bucketIndex, final Long requestedKey) {
+        long bucketPointer = (long) bucketIndex * bytesPerBucket;
+        byte no = getNoOfEntries(bucketPointer);
+        long max = bucketPointer + no * bytesPerEntry + 1;
+        for (long pointer = bucketPointer + 1; pointer < max; pointer += bytesPerEntry) {
+            _add(worker, getKey(pointer, bucketIndex), pointer, requestedKey);
+        }
+
+        if (isBucketFull(bucketPointer)) {
+            // iterate through overflow entries of the next buckets until an empty one is found
+            new BucketOverflowLoop(true) {
+
+                @Override
+                boolean doWork() {
+                    // skip overflow entries of other buckets - decoding them with our bucketIndex
+                    // would result in wrong keys which could accidentally pass the check in _add
+                    if (((lastOffset & 0xFF) >>> 1) != newOffset)
+                        return false;
+
+                    // the stopbit only marks the last entry of one key, not of the bucket =>
+                    // continue until the first empty overflow entry
+                    _add(worker, getKey(overflowPointer + 1, bucketIndex), overflowPointer + 1, requestedKey);
+                    return false;
+                }
+            }.throughBuckets(bucketPointer + bytesPerBucket);
+        }
+    }
+
+    boolean _add(LeafWorker worker, long key, long pointer, Long requestedKey) {
+        if (pointer + bytesPerKeyRest + bytesPerValue > getCapacityInBytes())
+            throw new IllegalStateException("pointer " + pointer + " "
+                    + getCapacityInBytes() + " " + bytesPerKeyRest);
+
+        // do expensive encoding contains check only if beginning bits of key are identical!
+        if (requestedKey != null && (requestedKey >> skipKeyEndBits + bucketIndexBits) != (key >> skipKeyEndBits + bucketIndexBits)) {
+//            System.out.println("rkey " + BitUtil.toBitString(requestedKey));
+//            System.out.println(" key " + BitUtil.toBitString(key));
+            return false;
+        }
+
+        worker.valuePointer = pointer + bytesPerKeyRest;
+        return worker.doWork(key, getValue(worker.valuePointer));
+    }
+
+    protected static abstract class LeafWorker {
+
+        // pointer to the value of the current entry
+        long valuePointer;
+
+        public LeafWorker() {
+        }
+
+        protected abstract boolean doWork(long key, long value);
+    }
+
+    public void clear() {
+        size = 0;
+        releaseOldTable();
+        storage.close();
+        initBuffers();
+    }
+
+    // for tests: get the offset of the overflow entry before we found an empty place
+    public int getLastOffset(int bucketIndex) {
+        final AtomicInteger integ = new AtomicInteger(-1);
+        BucketOverflowLoop loop = new BucketOverflowLoop() {
+
+            @Override
+            boolean doWork() {
+                integ.set(lastOffset >>> 1);
+                return super.doWork();
+            }
+        };
+        long bucketPointer = (long) bucketIndex * bytesPerBucket;
+        loop.throughOverflowEntries(bucketPointer);
+        return integ.get();
+    }
+
+    public TIntIntHashMap getStats(int max) {
+        TIntIntHashMap stats = new TIntIntHashMap(max);
+        for (int i = 0; i < max; i++) {
+            stats.put(i, 0);
+        }
+        for (int bucketIndex = 0; bucketIndex < maxBuckets; bucketIndex++) {
+            long bucketPointer = (long) bucketIndex * bytesPerBucket;
+            int entryBytes = getNoOfEntries(bucketPointer) * bytesPerEntry;
+            int ovflBytes = getNoOfOverflowEntries(bucketPointer) * bytesPerOverflowEntry;
+            int unusedBytes = bytesPerBucket - 1 - (entryBytes + ovflBytes);
+            stats.increment(unusedBytes / bytesPerEntry);
+        }
+        return stats;
+    }
+
+    public String toDetailString() {
+        int max = 100;
+        TIntIntHashMap stats = getStats(max);
+        int maxFill = -1;
+        int whichI = -1;
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < max; i++) {
+            int v = stats.get(i);
+            if (v > 0) {
+                maxFill = v;
+                whichI = i;
+            }
+            sb.append(v).append("\t");
+        }
+        if (maxFill > 200)
+            return "";
+
+        return sb.toString() + " maxFill:" + maxFill + "[" + whichI + "]";
+    }
+
+    public long getMemoryUsageInBytes(int factor) {
+        if (oldTable != null)
+            return getCapacityInBytes() + oldTable.getCapacityInBytes();
+        return getCapacityInBytes();
+    }
+
+    final long getCapacityInBytes() {
+        return (long) maxBuckets * bytesPerBucket;
+    }
+
+    public long getEmptyEntries(boolean onlyBranches) {
+        if (onlyBranches)
+            return 0;
+
+        long countEmptyBytes = 0;
+        for (int bucketIndex = 0; bucketIndex < maxBuckets; bucketIndex++) {
+            long bucketPointer = (long) bucketIndex * bytesPerBucket;
+            int entries = getNoOfEntries(bucketPointer);
+            int ovfl = getNoOfOverflowEntries(bucketPointer);
+            countEmptyBytes += bytesPerBucket - 1 - (entries * bytesPerEntry + ovfl * bytesPerOverflowEntry);
+        }
+        return countEmptyBytes;
+    }
+
+    /**
+     * Thrown if no overflow place can be found for a new entry. Tables with auto growing enabled
+     * handle it via growing.
+     */
+    static class TableFullException extends IllegalStateException {
+
+        private static final long serialVersionUID = 1L;
+
+        public TableFullException(String msg) {
+            super(msg);
+        }
+    }
+
+    class BucketOverflowLoop {
+
+        int lastOffset;
+        int newOffset;
+        long overflowPointer;
+        int startBucketIndex;
+        // if true the loop stops at the maximum offset instead of failing
+        final boolean readOnly;
+
+        BucketOverflowLoop() {
+            this(false);
+        }
+
+        BucketOverflowLoop(boolean readOnly) {
+            this.readOnly = readOnly;
+        }
+
+        /**
+         * steps through bucket by bucket and restarts at 0 if "too far"
+         */
+        long throughBuckets(long bucketPointer) {
+            startBucketIndex = (int) (bucketPointer / bytesPerBucket);
+            long tmp = bucketPointer;
+            int i = -1;
+            if (findOverflowFactor <= 0)
+                findOverflowFactor = 2000;
+            double factor = findOverflowFactor;
+            MAIN:
+            for (; i < maxBuckets; i++) {
+                newOffset++;
+                if (newOffset > MAX_OVERFLOW_OFFSET) {
+                    // no overflow entry can be further away from its bucket
+                    if (readOnly)
+                        break;
+                    throw new TableFullException("overflow entry too far away from its bucket " + startBucketIndex
+                            + ", offset:" + newOffset + " size:" + size);
+                }
+                // byte area is connected like a ring
+                while (tmp >= getCapacityInBytes()) {
+                    tmp -= getCapacityInBytes();
+                }
+
+                if (throughOverflowEntries(tmp))
+                    break;
+
+                if (newOffset > 200000 || tmp < 0)
+                    throw new TableFullException("no empty overflow place found - too full or bad hash distribution? "
+                            + "TODO rehash if too small. Now at:" + tmp + " offset:" + newOffset + " size:" + size
+                            + " requested bucketIndex " + startBucketIndex);
+                tmp += factor * bytesPerBucket;
+                // searches are 10% faster with this:
+                // factor++;
+            }
+            if (i >= maxBuckets && !readOnly)
+                throw new TableFullException("maxBuckets is too small => TODO rehash!");
+
+            return tmp;
+        }
+
+        /**
+         * loops through overflow entries of one bucket
+         *
+         * @return 1 if overflow entry of identical key with stopbit found, and -1 if not found.
+         * returns 0 if empty overflow space found.
+         */
+        boolean throughOverflowEntries(long bucketPointer) {
+            byte no = getNoOfEntries(bucketPointer);
+            overflowPointer = bucketPointer + bytesPerBucket - bytesPerOverflowEntry;
+            long minBytes = bucketPointer + 1 + no * bytesPerEntry - 1;
+            while (overflowPointer > minBytes) {
+                lastOffset = getByte(overflowPointer);
+                if (lastOffset == 0)
+                    return true;
+
+                if (doWork())
+                    return true;
+                overflowPointer -= bytesPerOverflowEntry;
+            }
+            return false;
+        }
+
+        boolean doWork() {
+            return false;
+        }
+    }
+
+    class KeyCheckLoop extends BucketOverflowLoop {
+
+        long storedKey;
+
+        public KeyCheckLoop(long storedKey) {
+            this.storedKey = storedKey;
+        }
+
+        @Override
+        boolean doWork() {
+            // stopbit
+            if ((lastOffset & 0x1) == 1) {
+                long tmpKey = getKey(overflowPointer + 1, startBucketIndex);
+                if (tmpKey == storedKey)
+                    return true;
+            }
+            return false;
+        }
+    }
+};
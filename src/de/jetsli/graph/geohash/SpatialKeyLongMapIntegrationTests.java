@@ -0,0 +1,78 @@
+/*
+ *  Copyright 2012 Peter Karich info@jetsli.de
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.graph.geohash;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that overwriting or adjusting a value of a SpatialKeyLongMap replaces all of its bytes.
+ *
+ * @author Peter Karich
+ */
+public class SpatialKeyLongMapIntegrationTests {
+
+    private final List<String> list = new ArrayList<String>();
+
+    public static void main(String[] args) {
+        new SpatialKeyLongMapIntegrationTests().start();
+    }
+
+    public void start() {
+        testOverwriteSmallerValue();
+        testDecrementValue();
+
+        if (list.size() > 0) {
+            System.out.println("\n-------------------------------\n");
+            System.out.println("FOUND " + list.size() + " ERRORS.");
+            for (String s : list) {
+                System.out.println(s);
+            }
+        } else
+            System.out.println("SUCCESS!");
+    }
+
+    private SpatialKeyLongMap createMap() {
+        return new SpatialKeyLongMap().init(1000);
+    }
+
+    void testOverwriteSmallerValue() {
+        SpatialKeyLongMap map = createMap();
+        long key = 123456789L;
+        map.put(key, 256);
+        map.put(key, 5);
+        assertEquals("overwrite 256 with 5", 5, map.get(key));
+
+        map.put(key, 0x10203);
+        map.put(key, 0);
+        assertEquals("overwrite 0x10203 with 0", 0, map.get(key));
+    }
+
+    void testDecrementValue() {
+        SpatialKeyLongMap map = createMap();
+        long key = 987654321L;
+        map.put(key, 300);
+        assertEquals("decrement 300 by 100", 200, map.adjustOrPutValue(key, -100, 1));
+        assertEquals("get after decrement", 200, map.get(key));
+        map.adjustOrPutValue(key, 56, 1);
+        assertEquals("increment 200 by 56", 256, map.get(key));
+    }
+
+    private void assertEquals(String name, long expected, long value) {
+        if (expected != value)
+            list.add(name + ": expected " + expected + " but was " + value);
+    }
+}
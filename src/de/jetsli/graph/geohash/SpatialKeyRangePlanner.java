@@ -0,0 +1,274 @@
+/*
+ *  Copyright 2012 Peter Karich info@jetsli.de
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.graph.geohash;
+
+import de.jetsli.graph.util.shapes.BBox;
+import de.jetsli.graph.util.shapes.Shape;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Splits a query shape into a few contiguous ranges of spatial keys - see SpatialKeyAlgo. Every
+ * spatial key cell (the keys with a common prefix) is one range of keys, so a shape can be
+ * covered by the cells it touches. The cells are refined breadth first until the cell budget is
+ * used up, then the remaining cells are taken as they are.
+ *
+ * A range is marked as contained if all its cells are completely inside the shape. Entries of
+ * such a range need no further check - for the other ranges the decoded coordinate still has to
+ * be tested.
+ *
+ * The ranges can be scanned in every structure which is ordered by spatial keys, e.g. the buckets
+ * of SpatialHashtable or a sorted index on disk. The in-memory quadtrees keep their recursive
+ * descent for queries: there the floating point tests saved by the ranges did not pay off for the
+ * planning.
+ *
+ * @author Peter Karich, info@jetsli.de
+ */
+public class SpatialKeyRangePlanner {
+
+    private final int allBits;
+    private final SpatialKeyAlgo algo;
+    private int maxCells = 8;
+
+    public SpatialKeyRangePlanner(int allBits) {
+        if (allBits > 64 || allBits <= 0)
+            throw new IllegalArgumentException("allBits must be in [1, 64] but was " + allBits);
+        this.allBits = allBits;
+        algo = new SpatialKeyAlgo(allBits);
+    }
+
+    /**
+     * More cells result in less keys outside of the shape but in more ranges.
+     */
+    public SpatialKeyRangePlanner setMaxCells(int maxCells) {
+        if (maxCells < 1)
+            throw new IllegalArgumentException("maxCells must be positive");
+        this.maxCells = maxCells;
+        return this;
+    }
+
+    public Ranges plan(Shape shape) {
+        List<Cell> open = new ArrayList<Cell>();
+        List<Cell> result = new ArrayList<Cell>();
+        addStartCells(shape.getBBox(), open);
+        // breadth first: refine all cells of one level before going deeper
+        for (int i = 0; i < open.size(); i++) {
+            Cell cell = open.get(i);
+            BBox bbox = new BBox(cell.minLon, cell.maxLon, cell.minLat, cell.maxLat);
+            if (!shape.intersect(bbox))
+                continue;
+
+            if (shape.contains(bbox)) {
+                cell.contained = true;
+                result.add(cell);
+            } else if (allBits - cell.bits < 2 || result.size() + open.size() - i + 3 > maxCells)
+                result.add(cell);
+            else {
+                double lat12 = (cell.minLat + cell.maxLat) / 2;
+                double lon12 = (cell.minLon + cell.maxLon) / 2;
+                long prefix = cell.prefix << 2;
+                int bits = cell.bits + 2;
+                open.add(new Cell(prefix, bits, cell.minLat, lat12, cell.minLon, lon12));
+                open.add(new Cell(prefix | 1, bits, cell.minLat, lat12, lon12, cell.maxLon));
+                open.add(new Cell(prefix | 2, bits, lat12, cell.maxLat, cell.minLon, lon12));
+                open.add(new Cell(prefix | 3, bits, lat12, cell.maxLat, lon12, cell.maxLon));
+            }
+        }
+
+        Collections.sort(result, new Comparator<Cell>() {
+            @Override public int compare(Cell o1, Cell o2) {
+                long from1 = getFrom(o1);
+                long from2 = getFrom(o2);
+                return from1 == from2 ? 0 : lessThan(from1, from2) ? -1 : 1;
+            }
+        });
+        Ranges ranges = new Ranges(result.size());
+        for (Cell cell : result) {
+            ranges.add(getFrom(cell), getTo(cell), cell.contained);
+        }
+        return ranges;
+    }
+
+    /**
+     * Avoids refining the levels above the shape: starts with the (up to four) cells of the
+     * deepest level where a cell is still as big as the bounding box of the shape.
+     */
+    private void addStartCells(BBox bbox, List<Cell> open) {
+        int bits = 0;
+        double height = 180;
+        double width = 360;
+        while (bits + 2 <= allBits && height / 2 >= bbox.maxLat - bbox.minLat && width / 2 >= bbox.maxLon - bbox.minLon) {
+            bits += 2;
+            height /= 2;
+            width /= 2;
+        }
+        if (bits == 0) {
+            open.add(new Cell(0, 0, -90, 90, -180, 180));
+            return;
+        }
+
+        long[] prefixes = new long[]{
+            algo.encode(bbox.minLat, bbox.minLon) >>> (allBits - bits),
+            algo.encode(bbox.minLat, bbox.maxLon) >>> (allBits - bits),
+            algo.encode(bbox.maxLat, bbox.minLon) >>> (allBits - bits),
+            algo.encode(bbox.maxLat, bbox.maxLon) >>> (allBits - bits)};
+        NEXT:
+        for (int i = 0; i < prefixes.length; i++) {
+            for (int j = 0; j < i; j++) {
+                if (prefixes[j] == prefixes[i])
+                    continue NEXT;
+            }
+            open.add(createCell(prefixes[i], bits));
+        }
+    }
+
+    private Cell createCell(long prefix, int bits) {
+        double minLat = -90, maxLat = 90, minLon = -180, maxLon = 180;
+        for (int b = bits - 2; b >= 0; b -= 2) {
+            double lat12 = (minLat + maxLat) / 2;
+            double lon12 = (minLon + maxLon) / 2;
+            if (((prefix >>> (b + 1)) & 1) != 0)
+                minLat = lat12;
+            else
+                maxLat = lat12;
+
+            if (((prefix >>> b) & 1) != 0)
+                minLon = lon12;
+            else
+                maxLon = lon12;
+        }
+        return new Cell(prefix, bits, minLat, maxLat, minLon, maxLon);
+    }
+
+    private long getFrom(Cell cell) {
+        int shift = allBits - cell.bits;
+        return shift == 64 ? 0 : cell.prefix << shift;
+    }
+
+    private long getTo(Cell cell) {
+        int shift = allBits - cell.bits;
+        return shift == 64 ? -1L : getFrom(cell) | ((1L << shift) - 1);
+    }
+
+    /**
+     * @return true if a is smaller than b if both are treated as unsigned numbers
+     */
+    public static boolean lessThan(long a, long b) {
+        return a + Long.MIN_VALUE < b + Long.MIN_VALUE;
+    }
+
+    private static class Cell {
+
+        final long prefix;
+        final int bits;
+        final double minLat, maxLat, minLon, maxLon;
+        boolean contained;
+
+        Cell(long prefix, int bits, double minLat, double maxLat, double minLon, double maxLon) {
+            this.prefix = prefix;
+            this.bits = bits;
+            this.minLat = minLat;
+            this.maxLat = maxLat;
+            this.minLon = minLon;
+            this.maxLon = maxLon;
+        }
+    }
+
+    /**
+     * Sorted and non overlapping ranges of spatial keys where from and to are inclusive. Adjacent
+     * ranges are merged if both are either contained or not.
+     */
+    public static class Ranges {
+
+        private final long[] from;
+        private final long[] to;
+        private final boolean[] contained;
+        private int size;
+
+        Ranges(int capacity) {
+            from = new long[capacity];
+            to = new long[capacity];
+            contained = new boolean[capacity];
+        }
+
+        void add(long f, long t, boolean c) {
+            if (size > 0 && contained[size - 1] == c && to[size - 1] + 1 == f) {
+                to[size - 1] = t;
+                return;
+            }
+            from[size] = f;
+            to[size] = t;
+            contained[size] = c;
+            size++;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public long getFrom(int index) {
+            return from[index];
+        }
+
+        public long getTo(int index) {
+            return to[index];
+        }
+
+        public boolean isContained(int index) {
+            return contained[index];
+        }
+
+        /**
+         * @return true if the key is inside one of the ranges
+         */
+        public boolean contains(long key) {
+            int index = findFirst(key);
+            return index < size && !lessThan(key, from[index]);
+        }
+
+        /**
+         * @return the index of the first range which ends at or after the specified key
+         */
+        public int findFirst(long key) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (lessThan(to[mid], key))
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            return low;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < size; i++) {
+                if (i > 0)
+                    sb.append(", ");
+                sb.append(Long.toHexString(from[i])).append("-").append(Long.toHexString(to[i]));
+                if (contained[i])
+                    sb.append("*");
+            }
+            return sb.toString();
+        }
+    }
+}
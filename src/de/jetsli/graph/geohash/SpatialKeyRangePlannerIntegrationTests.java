@@ -0,0 +1,112 @@
+/*
+ *  Copyright 2012 Peter Karich info@jetsli.de
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.graph.geohash;
+
+import de.jetsli.graph.util.shapes.BBox;
+import de.jetsli.graph.util.shapes.Circle;
+import de.jetsli.graph.util.shapes.Shape;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that the ranges of SpatialKeyRangePlanner cover every point of the shape and that
+ * contained ranges only hold points of the shape.
+ *
+ * @author Peter Karich
+ */
+public class SpatialKeyRangePlannerIntegrationTests {
+
+    private final List<String> list = new ArrayList<String>();
+
+    public static void main(String[] args) {
+        new SpatialKeyRangePlannerIntegrationTests().start();
+    }
+
+    public void start() {
+        testBBox();
+        testCircle();
+        testCellBudget();
+
+        if (list.size() > 0) {
+            System.out.println("\n-------------------------------\n");
+            System.out.println("FOUND " + list.size() + " ERRORS.");
+            for (String s : list) {
+                System.out.println(s);
+            }
+        } else
+            System.out.println("SUCCESS!");
+    }
+
+    void testBBox() {
+        Random rand = new Random(1);
+        for (int i = 0; i < 100; i++) {
+            double lat = 45 + rand.nextDouble() * 10;
+            double lon = 5 + rand.nextDouble() * 10;
+            double size = 0.01 + rand.nextDouble();
+            check("bbox " + i, new BBox(lon, lon + size, lat, lat + size), 8, rand);
+        }
+    }
+
+    void testCircle() {
+        Random rand = new Random(2);
+        for (int i = 0; i < 100; i++) {
+            double lat = 45 + rand.nextDouble() * 10;
+            double lon = 5 + rand.nextDouble() * 10;
+            check("circle " + i, new Circle(lat, lon, 1 + rand.nextDouble() * 50), 16, rand);
+        }
+    }
+
+    void testCellBudget() {
+        Shape shape = new Circle(50, 10, 20);
+        for (int maxCells = 1; maxCells < 64; maxCells *= 2) {
+            SpatialKeyRangePlanner.Ranges ranges = new SpatialKeyRangePlanner(64).setMaxCells(maxCells).plan(shape);
+            if (ranges.size() > maxCells)
+                list.add("cells " + maxCells + ": " + ranges.size() + " ranges");
+        }
+    }
+
+    private void check(String name, Shape shape, int maxCells, Random rand) {
+        SpatialKeyAlgo algo = new SpatialKeyAlgo(64);
+        SpatialKeyRangePlanner.Ranges ranges = new SpatialKeyRangePlanner(64).setMaxCells(maxCells).plan(shape);
+        for (int i = 1; i < ranges.size(); i++) {
+            if (!SpatialKeyRangePlanner.lessThan(ranges.getTo(i - 1), ranges.getFrom(i))) {
+                list.add(name + ": ranges not sorted " + ranges);
+                return;
+            }
+        }
+
+        BBox bbox = shape.getBBox();
+        for (int i = 0; i < 1000; i++) {
+            // sample around the shape to get points inside and outside of it
+            double lat = bbox.minLat + (rand.nextDouble() * 1.4 - 0.2) * (bbox.maxLat - bbox.minLat);
+            double lon = bbox.minLon + (rand.nextDouble() * 1.4 - 0.2) * (bbox.maxLon - bbox.minLon);
+            long key = algo.encode(lat, lon);
+            boolean inside = shape.contains(lat, lon);
+            if (inside && !ranges.contains(key)) {
+                list.add(name + ": " + lat + "," + lon + " inside the shape but not in " + ranges);
+                return;
+            }
+
+            int index = ranges.findFirst(key);
+            if (!inside && ranges.contains(key) && ranges.isContained(index)) {
+                list.add(name + ": " + lat + "," + lon + " outside the shape but in a contained range");
+                return;
+            }
+        }
+    }
+}
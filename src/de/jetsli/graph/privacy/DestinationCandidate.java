@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2012, UCLA Networked and Embedded Systems Lab (NESL)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the UCLA nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.jetsli.graph.privacy;
+
+import de.jetsli.graph.util.CoordTrig;
+
+/**
+ * A candidate destination together with the detour a user would have taken if they were heading
+ * to it.
+ *
+ * @author Kasturi Rangan Raghavan (kastur@gmail.com)
+ */
+public class DestinationCandidate implements Comparable<DestinationCandidate> {
+
+  final private CoordTrig<String> mPlace;
+  final private int mNodeId;
+  final private double mDirectWeight;
+  final private double mObservedWeight;
+
+  public DestinationCandidate(
+      CoordTrig<String> place, int nodeId, double directWeight, double observedWeight) {
+    mPlace = place;
+    mNodeId = nodeId;
+    mDirectWeight = directWeight;
+    mObservedWeight = observedWeight;
+  }
+
+  public CoordTrig<String> getPlace() {
+    return mPlace;
+  }
+
+  public int getNodeId() {
+    return mNodeId;
+  }
+
+  /**
+   * @return the weight of the direct route from the start to this candidate.
+   */
+  public double getDirectWeight() {
+    return mDirectWeight;
+  }
+
+  /**
+   * @return the weight of the observed route through all waypoints plus the remaining route from
+   * the last waypoint to this candidate.
+   */
+  public double getObservedWeight() {
+    return mObservedWeight;
+  }
+
+  /**
+   * @return observed / direct. 1 means the user is exactly on the shortest route to this candidate,
+   * Double.POSITIVE_INFINITY means the candidate is not reachable.
+   */
+  public double getDetourRatio() {
+    if (mDirectWeight == Double.MAX_VALUE || mObservedWeight == Double.MAX_VALUE) {
+      return Double.POSITIVE_INFINITY;
+    }
+    if (mDirectWeight <= 0) {
+      return mObservedWeight <= 0 ? 1 : Double.POSITIVE_INFINITY;
+    }
+    return mObservedWeight / mDirectWeight;
+  }
+
+  @Override
+  public int compareTo(DestinationCandidate o) {
+    return Double.compare(getDetourRatio(), o.getDetourRatio());
+  }
+
+  @Override
+  public String toString() {
+    return mPlace + " detour:" + getDetourRatio();
+  }
+}
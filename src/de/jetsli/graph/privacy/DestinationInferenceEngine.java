@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2012, UCLA Networked and Embedded Systems Lab (NESL)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the UCLA nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.jetsli.graph.privacy;
+
+import de.jetsli.graph.routing.AlgoType;
+import de.jetsli.graph.routing.OneToManyDijkstra;
+import de.jetsli.graph.storage.Graph;
+import de.jetsli.graph.storage.Location2IDIndex;
+import de.jetsli.graph.util.CoordTrig;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Infers which of the nearby places a user is heading to from their start place and the waypoints
+ * observed so far. Instead of one point-to-point route per candidate this runs one one-to-many
+ * search from the start and one from the last waypoint.
+ *
+ * Not thread safe - use one engine per thread.
+ *
+ * @author Kasturi Rangan Raghavan (kastur@gmail.com)
+ */
+public class DestinationInferenceEngine {
+
+  final private Location2IDIndex mRoadIndex;
+  final private OneToManyDijkstra mRouter;
+
+  public DestinationInferenceEngine(Graph roadGraph, Location2IDIndex roadIndex) {
+    mRoadIndex = roadIndex;
+    mRouter = new OneToManyDijkstra(roadGraph);
+    mRouter.setType(AlgoType.FASTEST);
+  }
+
+  public DestinationInferenceEngine setType(AlgoType type) {
+    mRouter.setType(type);
+    return this;
+  }
+
+  /**
+   * @param startPlace where the trajectory started
+   * @param waypoints the observed waypoints in visiting order, the last one is the current location
+   * @param candidates the places the user could be heading to
+   * @return all candidates ordered by their detour ratio, most likely destination first
+   */
+  public List<DestinationCandidate> infer(CoordTrig<String> startPlace,
+                                          List<CoordTrig<String>> waypoints,
+                                          Collection<CoordTrig<String>> candidates) {
+    if (waypoints.isEmpty()) {
+      throw new IllegalArgumentException("At least one waypoint is required");
+    }
+
+    int startId = mRoadIndex.findID(startPlace.lat, startPlace.lon);
+    double observedWeight = 0;
+    int prevId = startId;
+    for (CoordTrig<String> waypoint : waypoints) {
+      int currId = mRoadIndex.findID(waypoint.lat, waypoint.lon);
+      if (currId != prevId) {
+        double legWeight = mRouter.calcWeights(prevId, currId)[0];
+        if (legWeight == Double.MAX_VALUE) {
+          observedWeight = Double.MAX_VALUE;
+          break;
+        }
+        observedWeight += legWeight;
+      }
+      prevId = currId;
+    }
+    int lastWaypointId = mRoadIndex.findID(waypoints.get(waypoints.size() - 1).lat,
+                                           waypoints.get(waypoints.size() - 1).lon);
+
+    int[] candidateIds = new int[candidates.size()];
+    int i = 0;
+    for (CoordTrig<String> candidate : candidates) {
+      candidateIds[i++] = mRoadIndex.findID(candidate.lat, candidate.lon);
+    }
+
+    double[] directWeights = mRouter.calcWeights(startId, candidateIds);
+    double[] remainingWeights = observedWeight == Double.MAX_VALUE
+        ? null : mRouter.calcWeights(lastWaypointId, candidateIds);
+
+    List<DestinationCandidate> result = new ArrayList<DestinationCandidate>(candidates.size());
+    Iterator<CoordTrig<String>> candidateIterator = candidates.iterator();
+    for (i = 0; i < candidateIds.length; i++) {
+      double viaWeight = Double.MAX_VALUE;
+      if (remainingWeights != null && remainingWeights[i] != Double.MAX_VALUE) {
+        viaWeight = observedWeight + remainingWeights[i];
+      }
+      result.add(new DestinationCandidate(
+          candidateIterator.next(), candidateIds[i], directWeights[i], viaWeight));
+    }
+    Collections.sort(result);
+    return result;
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2012, UCLA Networked and Embedded Systems Lab (NESL)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the UCLA nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.jetsli.graph.privacy;
+
+import de.jetsli.graph.trees.KNearestCollector;
+import de.jetsli.graph.trees.QuadTree;
+import de.jetsli.graph.trees.QuadTreeSimple;
+import de.jetsli.graph.util.CalcDistance;
+import de.jetsli.graph.util.CoordTrig;
+import de.jetsli.graph.util.shapes.Circle;
+import de.jetsli.graph.util.shapes.Shape;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Spatial index of places which keeps one quad tree per amenity type. A query only descends into
+ * the trees of the requested types, so asking for hospitals does not pay for all the restaurants
+ * in range.
+ *
+ * Types are identified by their id and selected via a BitSet of ids, see getTypeSet. A null set
+ * selects all types.
+ *
+ * @author Kasturi Rangan Raghavan (kastur@gmail.com)
+ */
+public class PlacesIndex {
+
+  final private Map<String, Integer> mTypeIds = new HashMap<String, Integer>();
+  final private List<String> mTypes = new ArrayList<String>();
+  final private List<QuadTree<String>> mIndexes = new ArrayList<QuadTree<String>>();
+  private CalcDistance mCalc = new CalcDistance();
+  private long mSize;
+
+  public void add(String type, double lat, double lon, String name) {
+    mIndexes.get(addType(type)).add(lat, lon, name);
+    mSize++;
+  }
+
+  /**
+   * @return the id of the specified type. The type is created if it does not exist yet.
+   */
+  public int addType(String type) {
+    Integer typeId = mTypeIds.get(type);
+    if (typeId == null) {
+      typeId = mTypes.size();
+      mTypeIds.put(type, typeId);
+      mTypes.add(type);
+      mIndexes.add(new QuadTreeSimple<String>());
+    }
+    return typeId;
+  }
+
+  /**
+   * @return the id of the type or -1 if there is no such type
+   */
+  public int getTypeId(String type) {
+    Integer typeId = mTypeIds.get(type);
+    return typeId == null ? -1 : typeId;
+  }
+
+  public String getType(int typeId) {
+    return mTypes.get(typeId);
+  }
+
+  public List<String> getTypes() {
+    return mTypes;
+  }
+
+  /**
+   * @return the set of the ids of all specified types
+   * @throws IllegalArgumentException if one of the types is unknown
+   */
+  public BitSet getTypeSet(String... types) {
+    BitSet typeSet = new BitSet(mTypes.size());
+    for (String type : types) {
+      int typeId = getTypeId(type);
+      if (typeId < 0) {
+        throw new IllegalArgumentException("Unknown type " + type + ", known types: " + mTypes);
+      }
+      typeSet.set(typeId);
+    }
+    return typeSet;
+  }
+
+  public long size() {
+    return mSize;
+  }
+
+  /**
+   * @return the places of all types near the specified latitude/longitude
+   */
+  public Collection<CoordTrig<String>> getNodes(double lat, double lon, double distanceInKm) {
+    return getNodes(lat, lon, distanceInKm, null);
+  }
+
+  /**
+   * @return the places near the specified latitude/longitude which have one of the types
+   */
+  public Collection<CoordTrig<String>> getNodes(
+      double lat, double lon, double distanceInKm, BitSet typeSet) {
+    return getNodes(new Circle(lat, lon, distanceInKm, mCalc), typeSet);
+  }
+
+  public Collection<CoordTrig<String>> getNodes(Shape shape, BitSet typeSet) {
+    List<CoordTrig<String>> result = new ArrayList<CoordTrig<String>>();
+    for (int typeId = nextType(typeSet, 0); typeId >= 0; typeId = nextType(typeSet, typeId + 1)) {
+      result.addAll(mIndexes.get(typeId).getNodes(shape));
+    }
+    return result;
+  }
+
+  /**
+   * @return the k places of all types nearest to the specified latitude/longitude, nearest first
+   */
+  public List<CoordTrig<String>> getKNearest(double lat, double lon, int k) {
+    return getKNearest(lat, lon, k, null);
+  }
+
+  /**
+   * @return the k places nearest to the specified latitude/longitude which have one of the types,
+   * nearest first
+   */
+  public List<CoordTrig<String>> getKNearest(double lat, double lon, int k, BitSet typeSet) {
+    KNearestCollector<String> collector = new KNearestCollector<String>(k);
+    for (int typeId = nextType(typeSet, 0); typeId >= 0; typeId = nextType(typeSet, typeId + 1)) {
+      for (CoordTrig<String> place : mIndexes.get(typeId).getKNearest(lat, lon, k)) {
+        collector.add(mCalc.calcNormalizedDist(lat, lon, place.lat, place.lon), place);
+      }
+    }
+    return collector.toList();
+  }
+
+  /**
+   * @return the first existing type id of the set at or after fromId or -1 if there is none
+   */
+  private int nextType(BitSet typeSet, int fromId) {
+    int typeId = typeSet == null ? fromId : typeSet.nextSetBit(fromId);
+    return typeId >= 0 && typeId < mTypes.size() ? typeId : -1;
+  }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2012, UCLA Networked and Embedded Systems Lab (NESL)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the UCLA nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.jetsli.graph.privacy;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import de.jetsli.graph.util.Helper;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads places without building the whole document in memory. Two formats are supported:
+ *
+ * The json format {"amenity": [[lon, lat, "name"], ...], ...} is read token by token.
+ *
+ * The binary format is read from a memory mapped file and looks like: magic, version, number of
+ * types, number of places, the type dictionary (each type as UTF), one 16 byte record per place
+ * (int typeId, float lat, float lon, int nameOffset) and finally the string table where every name
+ * is stored as UTF. Create it via convertJsonToBinary.
+ *
+ * @author Kasturi Rangan Raghavan (kastur@gmail.com)
+ */
+public class PlacesLoader {
+
+  final private static int MAGIC = 0x504c4353;
+  final private static int VERSION = 1;
+  final private static int PLACE_BYTES = 16;
+
+  /**
+   * Receives every loaded place - e.g. to insert it directly into an index.
+   */
+  public interface PlaceHandler {
+
+    void onPlace(String type, double lat, double lon, String name);
+  }
+
+  /**
+   * Picks the format from the file name: ".json" is parsed as json everything else as binary.
+   *
+   * @return the number of loaded places
+   */
+  public static int load(File file, PlaceHandler handler) throws IOException {
+    if (file.getName().endsWith(".json")) {
+      Reader reader = Helper.createBuffReader(file);
+      try {
+        return loadJson(reader, handler);
+      } finally {
+        Helper.close(reader);
+      }
+    }
+    return loadBinary(file, handler);
+  }
+
+  public static int loadJson(Reader reader, PlaceHandler handler) throws IOException {
+    JsonReader json = new JsonReader(reader);
+    int counter = 0;
+    json.beginObject();
+    while (json.hasNext()) {
+      String type = json.nextName();
+      json.beginArray();
+      while (json.hasNext()) {
+        json.beginArray();
+        double lon = json.nextDouble();
+        double lat = json.nextDouble();
+        String name;
+        if (json.peek() == JsonToken.NULL) {
+          json.nextNull();
+          name = "";
+        } else {
+          name = json.nextString();
+        }
+        // ignore additional properties
+        while (json.hasNext()) {
+          json.skipValue();
+        }
+        json.endArray();
+        handler.onPlace(type, lat, lon, name);
+        counter++;
+      }
+      json.endArray();
+    }
+    json.endObject();
+    return counter;
+  }
+
+  public static int loadBinary(File file, PlaceHandler handler) throws IOException {
+    RandomAccessFile raFile = new RandomAccessFile(file, "r");
+    MappedByteBuffer buffer = null;
+    try {
+      buffer = raFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raFile.length());
+      if (buffer.getInt() != MAGIC) {
+        throw new IllegalStateException(file + " is not a places file");
+      }
+      int version = buffer.getInt();
+      if (version != VERSION) {
+        throw new IllegalStateException("Unsupported version " + version + " of " + file);
+      }
+      String[] types = new String[buffer.getInt()];
+      int places = buffer.getInt();
+      for (int i = 0; i < types.length; i++) {
+        types[i] = readUTF(buffer, buffer.position());
+        buffer.position(buffer.position() + 2 + (buffer.getShort(buffer.position()) & 0xFFFF));
+      }
+
+      int placesStart = buffer.position();
+      int namesStart = placesStart + places * PLACE_BYTES;
+      for (int i = 0; i < places; i++) {
+        int pointer = placesStart + i * PLACE_BYTES;
+        String type = types[buffer.getInt(pointer)];
+        float lat = buffer.getFloat(pointer + 4);
+        float lon = buffer.getFloat(pointer + 8);
+        String name = readUTF(buffer, namesStart + buffer.getInt(pointer + 12));
+        handler.onPlace(type, lat, lon, name);
+      }
+      return places;
+    } finally {
+      Helper.cleanMappedByteBuffer(buffer);
+      Helper.close(raFile);
+    }
+  }
+
+  /**
+   * Reads a string written via DataOutputStream.writeUTF. The names are mostly ASCII so this
+   * avoids the overhead of a DataInputStream around the buffer.
+   */
+  private static String readUTF(MappedByteBuffer buffer, int pointer) {
+    int length = buffer.getShort(pointer) & 0xFFFF;
+    char[] chars = new char[length];
+    int charCount = 0;
+    int end = pointer + 2 + length;
+    for (int i = pointer + 2; i < end; ) {
+      int b = buffer.get(i) & 0xFF;
+      if (b < 0x80) {
+        chars[charCount++] = (char) b;
+        i++;
+      } else if ((b & 0xE0) == 0xC0) {
+        chars[charCount++] = (char) (((b & 0x1F) << 6) | (buffer.get(i + 1) & 0x3F));
+        i += 2;
+      } else {
+        chars[charCount++] = (char) (((b & 0x0F) << 12) | ((buffer.get(i + 1) & 0x3F) << 6)
+                                     | (buffer.get(i + 2) & 0x3F));
+        i += 3;
+      }
+    }
+    return new String(chars, 0, charCount);
+  }
+
+  /**
+   * Converts the json places file into the binary format. The type dictionary comes first in the
+   * binary file but is only complete after all places were read, so the records and the names are
+   * streamed into two temporary files which are appended after the header. The memory usage does
+   * not depend on the number of places.
+   *
+   * @return the number of converted places
+   */
+  public static int convertJsonToBinary(File jsonFile, File binaryFile) throws IOException {
+    final Map<String, Integer> typeIds = new HashMap<String, Integer>();
+    final List<String> types = new ArrayList<String>();
+    File dir = binaryFile.getAbsoluteFile().getParentFile();
+    File placesFile = File.createTempFile("places", ".tmp", dir);
+    File namesFile = File.createTempFile("names", ".tmp", dir);
+    try {
+      final DataOutputStream placesOut = createOutput(placesFile);
+      final DataOutputStream namesOut = createOutput(namesFile);
+      final IOException[] error = new IOException[1];
+      Reader reader = Helper.createBuffReader(jsonFile);
+      int places;
+      try {
+        places = loadJson(reader, new PlaceHandler() {
+          @Override
+          public void onPlace(String type, double lat, double lon, String name) {
+            if (error[0] != null) {
+              return;
+            }
+            Integer typeId = typeIds.get(type);
+            if (typeId == null) {
+              typeId = types.size();
+              typeIds.put(type, typeId);
+              types.add(type);
+            }
+            try {
+              placesOut.writeInt(typeId);
+              placesOut.writeFloat((float) lat);
+              placesOut.writeFloat((float) lon);
+              placesOut.writeInt(namesOut.size());
+              namesOut.writeUTF(name);
+            } catch (IOException ex) {
+              error[0] = ex;
+            }
+          }
+        });
+      } finally {
+        Helper.close(reader);
+        Helper.close(placesOut);
+        Helper.close(namesOut);
+      }
+      if (error[0] != null) {
+        throw error[0];
+      }
+
+      DataOutputStream out = createOutput(binaryFile);
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(types.size());
+        out.writeInt(places);
+        for (String type : types) {
+          out.writeUTF(type);
+        }
+        append(placesFile, out);
+        append(namesFile, out);
+      } finally {
+        out.close();
+      }
+      return places;
+    } finally {
+      placesFile.delete();
+      namesFile.delete();
+    }
+  }
+
+  private static DataOutputStream createOutput(File file) throws IOException {
+    return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+  }
+
+  private static void append(File file, OutputStream out) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      byte[] bytes = new byte[64 * 1024];
+      int read;
+      while ((read = in.read(bytes)) >= 0) {
+        out.write(bytes, 0, read);
+      }
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2012, UCLA Networked and Embedded Systems Lab (NESL)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the UCLA nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package de.jetsli.graph.privacy;
+
+import de.jetsli.graph.routing.AlgoType;
+import de.jetsli.graph.storage.Graph;
+import de.jetsli.graph.storage.Location2IDIndex;
+import de.jetsli.graph.util.CoordTrig;
+import de.jetsli.graph.util.CoordTrigObjEntry;
+import de.jetsli.graph.util.Helper;
+import de.jetsli.graph.util.StopWatch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Headless version of the 'b', 'r', 'w', 'a' key sequence of MiniGraphUI. Reads a file of
+ * trajectories and computes for every trajectory the rank of the true destination among the
+ * nearby places.
+ *
+ * Every line of the trajectories file is one trajectory of semicolon separated "lat,lon" pairs.
+ * The first pair is the start, the last pair is the true destination and everything in between
+ * are the observed waypoints. Lines starting with '#' are skipped.
+ *
+ * The result file is streamed as CSV with the columns: line, rank, candidates, detourRatio. As the
+ * trajectories are processed in parallel the lines are not ordered.
+ *
+ * @author Kasturi Rangan Raghavan (kastur@gmail.com)
+ */
+public class TrajectoryBatchAnalyzer {
+
+  final private static String DESTINATION = "destination";
+  final private Logger mLogger = LoggerFactory.getLogger(getClass());
+
+  final private Graph mRoadGraph;
+  final private Location2IDIndex mRoadIndex;
+  final private PlacesIndex mPlacesIndex;
+
+  private int mThreads = Runtime.getRuntime().availableProcessors();
+  private double mCandidateRadiusKm = 2.0;
+  private BitSet mCandidateTypes;
+  private AlgoType mType = AlgoType.FASTEST;
+
+  public TrajectoryBatchAnalyzer(
+      Graph roadGraph, Location2IDIndex roadIndex, PlacesIndex placesIndex) {
+    mRoadGraph = roadGraph;
+    mRoadIndex = roadIndex;
+    mPlacesIndex = placesIndex;
+  }
+
+  public TrajectoryBatchAnalyzer setThreads(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("At least one thread is required");
+    }
+    mThreads = threads;
+    return this;
+  }
+
+  /**
+   * The candidates of a trajectory are all places within this radius around its last waypoint.
+   */
+  public TrajectoryBatchAnalyzer setCandidateRadiusKm(double candidateRadiusKm) {
+    mCandidateRadiusKm = candidateRadiusKm;
+    return this;
+  }
+
+  /**
+   * Restricts the candidates to the specified types, see PlacesIndex.getTypeSet. Null (the
+   * default) selects all types.
+   */
+  public TrajectoryBatchAnalyzer setCandidateTypes(BitSet typeSet) {
+    mCandidateTypes = typeSet;
+    return this;
+  }
+
+  public TrajectoryBatchAnalyzer setType(AlgoType type) {
+    mType = type;
+    return this;
+  }
+
+  /**
+   * @return the number of analyzed trajectories
+   */
+  public int analyze(File trajectoriesFile, File resultFile) throws IOException {
+    StopWatch sw = new StopWatch().start();
+    final BlockingQueue<Trajectory> queue = new ArrayBlockingQueue<Trajectory>(mThreads * 64);
+    final BufferedWriter writer = Helper.createBuffWriter(resultFile);
+    final AtomicInteger counter = new AtomicInteger();
+    ExecutorService service = Executors.newFixedThreadPool(mThreads);
+    List<Future<?>> workers = new ArrayList<Future<?>>(mThreads);
+    BufferedReader reader = Helper.createBuffReader(trajectoriesFile);
+    try {
+      writer.write("line,rank,candidates,detourRatio\n");
+      for (int i = 0; i < mThreads; i++) {
+        workers.add(service.submit(new Worker(queue, writer, counter)));
+      }
+
+      String line;
+      int lineNumber = 0;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        if (line.trim().isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        put(queue, parse(lineNumber, line), workers);
+      }
+
+      for (int i = 0; i < mThreads; i++) {
+        put(queue, Trajectory.END, workers);
+      }
+      for (Future<?> worker : workers) {
+        worker.get();
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while analyzing " + trajectoriesFile, ex);
+    } catch (ExecutionException ex) {
+      throw new RuntimeException("Couldn't analyze " + trajectoriesFile, ex.getCause());
+    } finally {
+      service.shutdownNow();
+      Helper.close(reader);
+      Helper.close(writer);
+    }
+
+    mLogger.info("analyzed " + counter.get() + " trajectories with " + mThreads + " threads in "
+                 + sw.stop().getSeconds() + "s");
+    return counter.get();
+  }
+
+  /**
+   * Avoids waiting forever on a full queue if a worker died.
+   */
+  private void put(BlockingQueue<Trajectory> queue, Trajectory trajectory, List<Future<?>> workers)
+      throws InterruptedException, ExecutionException {
+    while (!queue.offer(trajectory, 1, TimeUnit.SECONDS)) {
+      for (Future<?> worker : workers) {
+        if (worker.isDone()) {
+          worker.get();
+          throw new IllegalStateException("Worker stopped before all trajectories were analyzed");
+        }
+      }
+    }
+  }
+
+  static Trajectory parse(int lineNumber, String line) {
+    String[] pairs = line.split(";");
+    if (pairs.length < 3) {
+      throw new IllegalArgumentException(
+          "Line " + lineNumber + " needs a start, at least one waypoint and a destination");
+    }
+    List<CoordTrig<String>> coords = new ArrayList<CoordTrig<String>>(pairs.length);
+    for (String pair : pairs) {
+      String[] latLon = pair.split(",");
+      if (latLon.length != 2) {
+        throw new IllegalArgumentException("Line " + lineNumber + " contains invalid pair " + pair);
+      }
+      coords.add(new CoordTrigObjEntry<String>(
+          null, Double.parseDouble(latLon[0].trim()), Double.parseDouble(latLon[1].trim())));
+    }
+    CoordTrig<String> dest = coords.get(coords.size() - 1);
+    dest.setValue(DESTINATION);
+    return new Trajectory(
+        lineNumber, coords.get(0), coords.subList(1, coords.size() - 1), dest);
+  }
+
+  /**
+   * @return the rank of the true destination, 1 means it had the smallest detour ratio of all
+   * candidates
+   */
+  static int rankOf(List<DestinationCandidate> ranked, CoordTrig<String> dest) {
+    for (int i = 0; i < ranked.size(); i++) {
+      if (ranked.get(i).getPlace() == dest) {
+        // ties count in favour of the destination
+        double ratio = ranked.get(i).getDetourRatio();
+        int rank = i;
+        while (rank > 0 && ranked.get(rank - 1).getDetourRatio() == ratio) {
+          rank--;
+        }
+        return rank + 1;
+      }
+    }
+    throw new IllegalStateException("destination is not among the candidates");
+  }
+
+  static class Trajectory {
+
+    final static Trajectory END = new Trajectory(-1, null, null, null);
+    final int mLineNumber;
+    final CoordTrig<String> mStart;
+    final List<CoordTrig<String>> mWaypoints;
+    final CoordTrig<String> mDestination;
+
+    Trajectory(int lineNumber, CoordTrig<String> start, List<CoordTrig<String>> waypoints,
+               CoordTrig<String> destination) {
+      mLineNumber = lineNumber;
+      mStart = start;
+      mWaypoints = waypoints;
+      mDestination = destination;
+    }
+  }
+
+  private class Worker implements Runnable {
+
+    final private BlockingQueue<Trajectory> mQueue;
+    final private BufferedWriter mWriter;
+    final private AtomicInteger mCounter;
+    // every worker needs its own engine as routing algorithms must not be shared between threads
+    final private DestinationInferenceEngine mEngine;
+
+    Worker(BlockingQueue<Trajectory> queue, BufferedWriter writer, AtomicInteger counter) {
+      mQueue = queue;
+      mWriter = writer;
+      mCounter = counter;
+      mEngine = new DestinationInferenceEngine(mRoadGraph, mRoadIndex).setType(mType);
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          Trajectory trajectory = mQueue.take();
+          if (trajectory == Trajectory.END) {
+            return;
+          }
+
+          CoordTrig<String> lastWaypoint =
+              trajectory.mWaypoints.get(trajectory.mWaypoints.size() - 1);
+          Collection<CoordTrig<String>> candidates = new ArrayList<CoordTrig<String>>(
+              mPlacesIndex.getNodes(
+                  lastWaypoint.lat, lastWaypoint.lon, mCandidateRadiusKm, mCandidateTypes));
+          candidates.add(trajectory.mDestination);
+          List<DestinationCandidate> ranked =
+              mEngine.infer(trajectory.mStart, trajectory.mWaypoints, candidates);
+          int rank = rankOf(ranked, trajectory.mDestination);
+          String line = trajectory.mLineNumber + "," + rank + "," + ranked.size() + ","
+                        + ranked.get(rank - 1).getDetourRatio() + "\n";
+          synchronized (mWriter) {
+            mWriter.write(line);
+          }
+          int count = mCounter.incrementAndGet();
+          if (count % 10000 == 0) {
+            mLogger.info("analyzed " + count + " trajectories");
+          }
+        }
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      } catch (IOException ex) {
+        throw new RuntimeException("Couldn't write result", ex);
+      }
+    }
+  }
+}
@@ -102,7 +102,8 @@ public class OSMReader {
      * Opens or creates a graph. The specified args need a property 'graph' (a folder) and if no
      * such folder exist it'll create a graph from the provided osm file (property 'osm'). A
      * property 'size' is used to preinstantiate a datastructure/graph to avoid over-memory
-     * allocation or reallocation (default is 5mio)
+     * allocation or reallocation (default is 5mio). With 'mmap=true' an existing graph is memory
+     * mapped read-only.
      */
     public static Graph osm2Graph(CmdArgs args) throws IOException {
         String storageFolder = args.get("graph", "graph-storage");
@@ -110,7 +111,10 @@ public class OSMReader {
             throw new IllegalArgumentException("Please specify a folder where to store the graph");
 
         int size = (int) args.getLong("size", 5 * 1000 * 1000);
-        return osm2Graph(new OSMReader(storageFolder, size), args);
+        OSMReader reader = new OSMReader(storageFolder, size);
+        if (args.getBool("mmap", false) && reader.storage instanceof MemoryGraphSafeStorage)
+            ((MemoryGraphSafeStorage) reader.storage).setMapped(true);
+        return osm2Graph(reader, args);
     }
 
     public static Graph osm2Graph(OSMReader osmReader, CmdArgs args) throws IOException {
@@ -0,0 +1,139 @@
+/*
+ *  Copyright 2012 Peter Karich info@jetsli.de
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.graph.routing;
+
+import de.jetsli.graph.coll.MyOpenBitSet;
+import de.jetsli.graph.storage.EdgeEntry;
+import de.jetsli.graph.storage.Graph;
+import de.jetsli.graph.util.EdgeIterator;
+
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/**
+ * Grows one shortest path tree from a single start node until all specified target nodes are
+ * settled. Useful if you need the weights to hundreds of candidates - calling calcPath for every
+ * candidate would mean one full search per candidate.
+ *
+ * Make sure you reuse this instance from the same thread.
+ *
+ * @author Peter Karich
+ */
+public class OneToManyDijkstra extends AbstractRoutingAlgorithm {
+
+    private TIntObjectMap<EdgeEntry> shortestDistMap = new TIntObjectHashMap<EdgeEntry>();
+    private int from = -1;
+
+    public OneToManyDijkstra(Graph graph) {
+        super(graph);
+    }
+
+    @Override public RoutingAlgorithm clear() {
+        shortestDistMap.clear();
+        from = -1;
+        return this;
+    }
+
+    /**
+     * @return the weights from the start node to every target node in the order of the specified
+     * targets. Double.MAX_VALUE if the target is not reachable.
+     */
+    public double[] calcWeights(int from, int... targets) {
+        clear();
+        this.from = from;
+        double[] weights = new double[targets.length];
+        Arrays.fill(weights, Double.MAX_VALUE);
+        MyOpenBitSet targetSet = new MyOpenBitSet(graph.getNodes());
+        int open = 0;
+        for (int i = 0; i < targets.length; i++) {
+            if (!targetSet.contains(targets[i])) {
+                targetSet.add(targets[i]);
+                open++;
+            }
+        }
+
+        MyOpenBitSet visited = new MyOpenBitSet(graph.getNodes());
+        PriorityQueue<EdgeEntry> heap = new PriorityQueue<EdgeEntry>();
+        EdgeEntry currEdge = new EdgeEntry(from, 0);
+        shortestDistMap.put(from, currEdge);
+        heap.add(currEdge);
+        while (open > 0 && !heap.isEmpty()) {
+            currEdge = heap.poll();
+            int currNode = currEdge.node;
+            // instead of the expensive heap.remove we skip outdated entries here
+            if (visited.contains(currNode))
+                continue;
+
+            visited.add(currNode);
+            if (targetSet.contains(currNode))
+                open--;
+
+            EdgeIterator iter = graph.getOutgoing(currNode);
+            while (iter.next()) {
+                int tmpV = iter.node();
+                if (visited.contains(tmpV))
+                    continue;
+
+                double tmpWeight = getWeight(iter) + currEdge.weight;
+                EdgeEntry nEdge = shortestDistMap.get(tmpV);
+                if (nEdge == null || nEdge.weight > tmpWeight) {
+                    nEdge = new EdgeEntry(tmpV, tmpWeight);
+                    nEdge.prevEntry = currEdge;
+                    shortestDistMap.put(tmpV, nEdge);
+                    heap.add(nEdge);
+                }
+            }
+        }
+
+        for (int i = 0; i < targets.length; i++) {
+            if (visited.contains(targets[i]))
+                weights[i] = shortestDistMap.get(targets[i]).weight;
+        }
+        return weights;
+    }
+
+    /**
+     * Extracts the path to the specified target from the last calculated shortest path tree.
+     *
+     * @return null if the target was not reached
+     */
+    public Path extractPath(int to) {
+        EdgeEntry currEdge = shortestDistMap.get(to);
+        if (currEdge == null)
+            return null;
+
+        Path path = new Path();
+        while (currEdge.node != from) {
+            int tmpFrom = currEdge.node;
+            path.add(tmpFrom);
+            currEdge = currEdge.prevEntry;
+            path.updateProperties(graph.getIncoming(tmpFrom), currEdge.node);
+        }
+        path.add(from);
+        path.reverseOrder();
+        return path;
+    }
+
+    @Override public Path calcPath(int from, int to) {
+        double[] weights = calcWeights(from, to);
+        if (weights[0] == Double.MAX_VALUE)
+            return null;
+        return extractPath(to);
+    }
+}
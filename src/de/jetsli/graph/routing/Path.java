@@ -65,6 +65,13 @@ public class Path {
         return locations.get(index);
     }
 
+    /**
+     * @return a copy of the node ids of this path
+     */
+    public int[] toArray() {
+        return locations.toArray();
+    }
+
     public double distance() {
         return distance;
     }
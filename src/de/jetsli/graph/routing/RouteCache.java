@@ -0,0 +1,117 @@
+/*
+ *  Copyright 2012 Peter Karich info@jetsli.de
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.graph.routing;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded LRU cache for routes. Only the node ids and the distance are stored - not the full
+ * Path - to keep the memory footprint small.
+ *
+ * Not thread safe.
+ *
+ * @author Peter Karich
+ */
+public class RouteCache {
+
+    private static final CachedPath NOT_FOUND = new CachedPath(new int[0], -1);
+    private final Map<Key, CachedPath> map;
+
+    public RouteCache(final int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive but was " + capacity);
+
+        map = new LinkedHashMap<Key, CachedPath>(Math.min(capacity, 1024), 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override protected boolean removeEldestEntry(Map.Entry<Key, CachedPath> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @return the cached route or calculates it with the specified algorithm. Returns null if
+     * there is no route between from and to
+     */
+    public CachedPath calcPath(RoutingAlgorithm algo, AlgoType type, int from, int to) {
+        Key key = new Key(from, to, type);
+        CachedPath cached = map.get(key);
+        if (cached == null) {
+            Path path = algo.clear().setType(type).calcPath(from, to);
+            cached = path == null ? NOT_FOUND : new CachedPath(path.toArray(), path.distance());
+            map.put(key, cached);
+        }
+        return cached == NOT_FOUND ? null : cached;
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public void clear() {
+        map.clear();
+    }
+
+    public static class CachedPath {
+
+        private final int[] nodes;
+        private final double distance;
+
+        public CachedPath(int[] nodes, double distance) {
+            this.nodes = nodes;
+            this.distance = distance;
+        }
+
+        public int locations() {
+            return nodes.length;
+        }
+
+        public int location(int index) {
+            return nodes[index];
+        }
+
+        public double distance() {
+            return distance;
+        }
+    }
+
+    private static class Key {
+
+        final int from;
+        final int to;
+        final AlgoType type;
+
+        Key(int from, int to, AlgoType type) {
+            this.from = from;
+            this.to = to;
+            this.type = type;
+        }
+
+        @Override public boolean equals(Object obj) {
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key) obj;
+            return from == other.from && to == other.to && type == other.type;
+        }
+
+        @Override public int hashCode() {
+            int hash = 31 * from + to;
+            return 31 * hash + (type == null ? 0 : type.ordinal());
+        }
+    }
+}
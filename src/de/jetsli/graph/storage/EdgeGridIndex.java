@@ -0,0 +1,186 @@
+/*
+ *  Copyright 2012 Peter Karich info@jetsli.de
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.graph.storage;
+
+import de.jetsli.graph.util.EdgeIterator;
+import de.jetsli.graph.util.StopWatch;
+import de.jetsli.graph.util.shapes.BBox;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A uniform grid over the bounds of a graph where every cell knows the edges crossing it. Built
+ * once it makes it possible to fetch the edges of a bounding box without scanning all nodes.
+ *
+ * The edges of all cells are stored in compact int arrays: cellStart[cell] points into edgeNodeA
+ * and edgeNodeB. An edge is stored in every cell its bounding box overlaps but is reported only
+ * once per query.
+ *
+ * Not thread safe while preparing, but queries can be done from several threads afterwards.
+ *
+ * @author Peter Karich
+ */
+public class EdgeGridIndex {
+
+    private Logger logger = LoggerFactory.getLogger(getClass());
+    private final Graph g;
+    private int cellsPerAxis;
+    private double minLat, minLon;
+    private double cellHeight, cellWidth;
+    private int[] cellStart;
+    private int[] edgeNodeA;
+    private int[] edgeNodeB;
+
+    public EdgeGridIndex(Graph g) {
+        this.g = g;
+    }
+
+    /**
+     * @param edgesPerCell the average number of edges a cell should contain. The number of cells
+     * is estimated from the node count assuming roughly one edge per node, as it is for road
+     * networks. A smaller value means more cells and less superfluous edges per query.
+     */
+    public EdgeGridIndex prepareIndex(int edgesPerCell) {
+        StopWatch sw = new StopWatch().start();
+        int nodes = g.getNodes();
+        double maxLat = -Double.MAX_VALUE, maxLon = -Double.MAX_VALUE;
+        minLat = Double.MAX_VALUE;
+        minLon = Double.MAX_VALUE;
+        for (int nodeId = 0; nodeId < nodes; nodeId++) {
+            double lat = g.getLatitude(nodeId);
+            double lon = g.getLongitude(nodeId);
+            minLat = Math.min(minLat, lat);
+            maxLat = Math.max(maxLat, lat);
+            minLon = Math.min(minLon, lon);
+            maxLon = Math.max(maxLon, lon);
+        }
+        if (nodes == 0) {
+            minLat = minLon = 0;
+            maxLat = maxLon = 1;
+        }
+
+        cellsPerAxis = Math.max(1, (int) Math.sqrt(nodes / Math.max(1, edgesPerCell)));
+        // avoid zero sized cells for degenerated graphs
+        cellHeight = Math.max(maxLat - minLat, 1e-7) / cellsPerAxis;
+        cellWidth = Math.max(maxLon - minLon, 1e-7) / cellsPerAxis;
+
+        // first pass counts, second pass fills
+        cellStart = new int[cellsPerAxis * cellsPerAxis + 1];
+        addEdges(null);
+        int sum = 0;
+        for (int cell = 0; cell < cellStart.length; cell++) {
+            int tmp = cellStart[cell];
+            cellStart[cell] = sum;
+            sum += tmp;
+        }
+        edgeNodeA = new int[sum];
+        edgeNodeB = new int[sum];
+        int[] fill = new int[cellStart.length];
+        System.arraycopy(cellStart, 0, fill, 0, fill.length);
+        addEdges(fill);
+        logger.info("prepared edge grid with " + cellsPerAxis + "x" + cellsPerAxis + " cells and "
+                + sum + " entries in " + sw.stop().getSeconds() + "s");
+        return this;
+    }
+
+    private void addEdges(int[] fill) {
+        int nodes = g.getNodes();
+        for (int nodeA = 0; nodeA < nodes; nodeA++) {
+            double latA = g.getLatitude(nodeA);
+            double lonA = g.getLongitude(nodeA);
+            EdgeIterator iter = g.getEdges(nodeA);
+            while (iter.next()) {
+                int nodeB = iter.node();
+                // store every edge only once - not for every direction
+                if (nodeB < nodeA)
+                    continue;
+
+                double latB = g.getLatitude(nodeB);
+                double lonB = g.getLongitude(nodeB);
+                int minRow = getRow(Math.min(latA, latB)), maxRow = getRow(Math.max(latA, latB));
+                int minCol = getCol(Math.min(lonA, lonB)), maxCol = getCol(Math.max(lonA, lonB));
+                for (int row = minRow; row <= maxRow; row++) {
+                    for (int col = minCol; col <= maxCol; col++) {
+                        int cell = row * cellsPerAxis + col;
+                        if (fill == null)
+                            cellStart[cell]++;
+                        else {
+                            int index = fill[cell]++;
+                            edgeNodeA[index] = nodeA;
+                            edgeNodeB[index] = nodeB;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private int getRow(double lat) {
+        int row = (int) ((lat - minLat) / cellHeight);
+        return Math.max(0, Math.min(cellsPerAxis - 1, row));
+    }
+
+    private int getCol(double lon) {
+        int col = (int) ((lon - minLon) / cellWidth);
+        return Math.max(0, Math.min(cellsPerAxis - 1, col));
+    }
+
+    /**
+     * Calls the visitor for every edge of the cells intersecting the specified bounding box. Edges
+     * slightly outside of the box could be reported too.
+     *
+     * @return the number of visited edges
+     */
+    public int visitEdges(BBox bbox, EdgeVisitor visitor) {
+        if (cellStart == null)
+            throw new IllegalStateException("call prepareIndex first");
+
+        int minRow = getRow(bbox.minLat), maxRow = getRow(bbox.maxLat);
+        int minCol = getCol(bbox.minLon), maxCol = getCol(bbox.maxLon);
+        int counter = 0;
+        for (int row = minRow; row <= maxRow; row++) {
+            for (int col = minCol; col <= maxCol; col++) {
+                int cell = row * cellsPerAxis + col;
+                int end = cellStart[cell + 1];
+                for (int index = cellStart[cell]; index < end; index++) {
+                    int nodeA = edgeNodeA[index];
+                    int nodeB = edgeNodeB[index];
+                    double latA = g.getLatitude(nodeA), lonA = g.getLongitude(nodeA);
+                    double latB = g.getLatitude(nodeB), lonB = g.getLongitude(nodeB);
+                    // report the edge only in the first visible cell it is stored in
+                    int firstRow = Math.max(minRow, getRow(Math.min(latA, latB)));
+                    int firstCol = Math.max(minCol, getCol(Math.min(lonA, lonB)));
+                    if (firstRow != row || firstCol != col)
+                        continue;
+
+                    visitor.onEdge(nodeA, latA, lonA, nodeB, latB, lonB);
+                    counter++;
+                }
+            }
+        }
+        return counter;
+    }
+
+    public long getMemoryUsageInBytes() {
+        return 4L * (cellStart.length + edgeNodeA.length + edgeNodeB.length);
+    }
+
+    public interface EdgeVisitor {
+
+        void onEdge(int nodeA, double latA, double lonA, int nodeB, double latB, double lonB);
+    }
+}
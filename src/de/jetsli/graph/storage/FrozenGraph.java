@@ -0,0 +1,233 @@
+/*
+ *  Copyright 2012 Peter Karich info@jetsli.de
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.graph.storage;
+
+import de.jetsli.graph.reader.CarFlags;
+import de.jetsli.graph.util.EdgeIterator;
+
+/**
+ * A read-only graph in compressed sparse row layout for fast traversals. The edges of node n are
+ * stored consecutively in targets and weights from offsets[n] to offsets[n+1] - there are no links
+ * to follow. Within one node the edges are grouped by direction:
+ *
+ * | no direction | forward only | both directions | backward only |
+ *
+ * so getOutgoing (forward + both) and getIncoming (both + backward) are slices of this range too.
+ * The distance and the flags relative to the node are packed into one integer per edge.
+ *
+ * @author Peter Karich
+ */
+public class FrozenGraph implements Graph {
+
+    private static final float DIST_UNIT = 10000f;
+    private static final int FLAGS_BITS = 8;
+    private static final int FLAGS_MASK = (1 << FLAGS_BITS) - 1;
+    private static final int MAX_DIST = Integer.MAX_VALUE >>> FLAGS_BITS;
+    private final int nodes;
+    private final float[] lats;
+    private final float[] lons;
+    private final int[] offsets;
+    // start of the forward only, both directions and backward only edges of a node
+    private final int[] outStart;
+    private final int[] inStart;
+    private final int[] outEnd;
+    private final int[] targets;
+    // distance << FLAGS_BITS | flags
+    private final int[] weights;
+
+    /**
+     * Copies the specified graph. Call optimize() on it before to remove deleted nodes.
+     */
+    public FrozenGraph(Graph g) {
+        nodes = g.getNodes();
+        lats = new float[nodes];
+        lons = new float[nodes];
+        offsets = new int[nodes + 1];
+        outStart = new int[nodes];
+        inStart = new int[nodes];
+        outEnd = new int[nodes];
+        // count the edges per group to get the boundaries
+        int edges = 0;
+        for (int n = 0; n < nodes; n++) {
+            if (g.isDeleted(n))
+                throw new IllegalStateException("node " + n + " is deleted. Call optimize() before freezing the graph");
+
+            lats[n] = (float) g.getLatitude(n);
+            lons[n] = (float) g.getLongitude(n);
+            int none = 0, forward = 0, both = 0, backward = 0;
+            EdgeIterator iter = g.getEdges(n);
+            while (iter.next()) {
+                int flags = iter.flags();
+                boolean fwd = CarFlags.isForward(flags);
+                boolean bwd = CarFlags.isBackward(flags);
+                if (fwd && bwd)
+                    both++;
+                else if (fwd)
+                    forward++;
+                else if (bwd)
+                    backward++;
+                else
+                    none++;
+            }
+            offsets[n] = edges;
+            outStart[n] = edges + none;
+            inStart[n] = outStart[n] + forward;
+            outEnd[n] = inStart[n] + both;
+            edges = outEnd[n] + backward;
+        }
+        offsets[nodes] = edges;
+
+        targets = new int[edges];
+        weights = new int[edges];
+        for (int n = 0; n < nodes; n++) {
+            // next write position per group
+            int nonePos = offsets[n];
+            int forwardPos = outStart[n];
+            int bothPos = inStart[n];
+            int backwardPos = outEnd[n];
+            EdgeIterator iter = g.getEdges(n);
+            while (iter.next()) {
+                int flags = iter.flags();
+                int pos;
+                if (CarFlags.isForward(flags))
+                    pos = CarFlags.isBackward(flags) ? bothPos++ : forwardPos++;
+                else
+                    pos = CarFlags.isBackward(flags) ? backwardPos++ : nonePos++;
+
+                targets[pos] = iter.node();
+                weights[pos] = pack(n, iter.distance(), flags);
+            }
+        }
+    }
+
+    private static int pack(int node, double distance, int flags) {
+        if (flags < 0 || flags > FLAGS_MASK)
+            throw new IllegalArgumentException("flags " + flags + " of an edge of node " + node
+                    + " do not fit into " + FLAGS_BITS + " bits");
+
+        long dist = Math.round(distance * DIST_UNIT);
+        if (dist < 0 || dist > MAX_DIST)
+            throw new IllegalArgumentException("distance " + distance + " of an edge of node " + node
+                    + " is out of range [0, " + MAX_DIST / DIST_UNIT + "]");
+
+        return (int) dist << FLAGS_BITS | flags;
+    }
+
+    @Override
+    public int getNodes() {
+        return nodes;
+    }
+
+    /**
+     * @return the number of stored edge entries - every edge is stored for both of its nodes
+     */
+    public int getEdgeEntries() {
+        return offsets[nodes];
+    }
+
+    @Override
+    public double getLatitude(int index) {
+        return lats[index];
+    }
+
+    @Override
+    public double getLongitude(int index) {
+        return lons[index];
+    }
+
+    @Override
+    public EdgeIterator getEdges(int index) {
+        return new SliceIterator(offsets[index], offsets[index + 1]);
+    }
+
+    @Override
+    public EdgeIterator getIncoming(int index) {
+        return new SliceIterator(inStart[index], offsets[index + 1]);
+    }
+
+    @Override
+    public EdgeIterator getOutgoing(int index) {
+        return new SliceIterator(outStart[index], outEnd[index]);
+    }
+
+    private class SliceIterator implements EdgeIterator {
+
+        private int pointer;
+        private final int end;
+
+        SliceIterator(int start, int end) {
+            this.pointer = start - 1;
+            this.end = end;
+        }
+
+        @Override
+        public boolean next() {
+            return ++pointer < end;
+        }
+
+        @Override
+        public int node() {
+            return targets[pointer];
+        }
+
+        @Override
+        public double distance() {
+            return (weights[pointer] >>> FLAGS_BITS) / DIST_UNIT;
+        }
+
+        @Override
+        public int flags() {
+            return weights[pointer] & FLAGS_MASK;
+        }
+    }
+
+    /**
+     * This graph is read-only and can be shared
+     */
+    @Override
+    public Graph clone() {
+        return this;
+    }
+
+    @Override
+    public boolean isDeleted(int index) {
+        return false;
+    }
+
+    @Override
+    public void optimize() {
+    }
+
+    @Override
+    public void setNode(int index, double lat, double lon) {
+        throw new UnsupportedOperationException("FrozenGraph is read-only");
+    }
+
+    @Override
+    public void edge(int a, int b, double distance, int flags) {
+        throw new UnsupportedOperationException("FrozenGraph is read-only");
+    }
+
+    @Override
+    public void edge(int a, int b, double distance, boolean bothDirections) {
+        throw new UnsupportedOperationException("FrozenGraph is read-only");
+    }
+
+    @Override
+    public void markNodeDeleted(int index) {
+        throw new UnsupportedOperationException("FrozenGraph is read-only");
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ *  Copyright 2012 Peter Karich info@jetsli.de
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.graph.storage;
+
+import de.jetsli.graph.util.Helper;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The settings file of a MemoryGraphSafe, also read by MappedGraphSafe.
+ *
+ * Layout: magic, format version, the number of fields and every field as name, type and value,
+ * followed by the version of every stored file. Readers skip unknown fields and use defaults for
+ * missing ones, so fields can be added without a new format version. Settings written by former
+ * releases via Helper.writeSettings (a list of positional values) are still read.
+ *
+ * @author Peter Karich
+ */
+class GraphSettings {
+
+    private static final int MAGIC = 0x47534554;
+    private static final int FORMAT_VERSION = 1;
+    int size;
+    long creationTime;
+    int edgeNextGlobalPointer;
+    int edgeCurrentSegment;
+    int edgesSegmentSize;
+    /**
+     * the number of values per file of the node arrays, 0 for old settings where every node array
+     * was stored in one file
+     */
+    int nodePageSize;
+    /**
+     * the length of the node arrays
+     */
+    int nodeCapacity;
+    /**
+     * the order of the node ids or null if the nodes were not renumbered
+     */
+    String orderedBy;
+    /**
+     * the version of the save, it names the directory of the files written in this save
+     */
+    int version;
+    /**
+     * the version in which every file was written. Empty for old settings where all files were
+     * written in the same version.
+     */
+    Map<String, Integer> fileVersions = new LinkedHashMap<String, Integer>();
+    /**
+     * the version where the current node ids were stored first, it names the log of the deleted
+     * nodes
+     */
+    int logVersion;
+
+    /**
+     * @return the path of the file in the directory of its version
+     * @throws IllegalStateException if the file is not stored
+     */
+    String getStoredFile(String location, String file) {
+        int fileVersion = version;
+        if (!fileVersions.isEmpty()) {
+            Integer v = fileVersions.get(file);
+            if (v == null)
+                throw new IllegalStateException("file " + file + " is not stored in " + location);
+            fileVersion = v;
+        }
+        return MemoryGraphSafe.getStorageDir(location, fileVersion) + "/" + file;
+    }
+
+    void write(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1024));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            Map<String, Object> fields = new LinkedHashMap<String, Object>();
+            fields.put("size", size);
+            fields.put("creationTime", creationTime);
+            fields.put("edgeNextGlobalPointer", edgeNextGlobalPointer);
+            fields.put("edgeCurrentSegment", edgeCurrentSegment);
+            fields.put("edgesSegmentSize", edgesSegmentSize);
+            fields.put("nodePageSize", nodePageSize);
+            fields.put("nodeCapacity", nodeCapacity);
+            fields.put("orderedBy", orderedBy == null ? "" : orderedBy);
+            fields.put("version", version);
+            fields.put("logVersion", logVersion);
+            fields.put("files", fileVersions.size());
+            out.writeInt(fields.size());
+            for (Map.Entry<String, Object> e : fields.entrySet()) {
+                out.writeUTF(e.getKey());
+                Object value = e.getValue();
+                if (value instanceof Integer) {
+                    out.writeChar('I');
+                    out.writeInt((Integer) value);
+                } else if (value instanceof Long) {
+                    out.writeChar('L');
+                    out.writeLong((Long) value);
+                } else {
+                    out.writeChar('S');
+                    out.writeUTF((String) value);
+                }
+            }
+            for (Map.Entry<String, Integer> e : fileVersions.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeInt(e.getValue());
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    static GraphSettings read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            int magic = in.readInt();
+            if (magic != MAGIC) {
+                in.close();
+                return readOld(file);
+            }
+            int formatVersion = in.readInt();
+            if (formatVersion > FORMAT_VERSION)
+                throw new IOException("unsupported version " + formatVersion + " of " + file);
+
+            Map<String, Object> fields = new HashMap<String, Object>();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                char type = in.readChar();
+                switch (type) {
+                    case 'I':
+                        fields.put(name, in.readInt());
+                        break;
+                    case 'L':
+                        fields.put(name, in.readLong());
+                        break;
+                    case 'S':
+                        fields.put(name, in.readUTF());
+                        break;
+                    default:
+                        throw new IOException("cannot read type " + type + " of " + name + " from " + file);
+                }
+            }
+
+            GraphSettings settings = new GraphSettings();
+            settings.size = getInt(fields, "size");
+            settings.creationTime = fields.containsKey("creationTime") ? (Long) fields.get("creationTime") : 0;
+            settings.edgeNextGlobalPointer = getInt(fields, "edgeNextGlobalPointer");
+            settings.edgeCurrentSegment = getInt(fields, "edgeCurrentSegment");
+            settings.edgesSegmentSize = getInt(fields, "edgesSegmentSize");
+            settings.nodePageSize = getInt(fields, "nodePageSize");
+            settings.nodeCapacity = getInt(fields, "nodeCapacity");
+            String orderedBy = (String) fields.get("orderedBy");
+            settings.orderedBy = orderedBy == null || orderedBy.length() == 0 ? null : orderedBy;
+            settings.version = getInt(fields, "version");
+            settings.logVersion = getInt(fields, "logVersion");
+            int files = getInt(fields, "files");
+            for (int i = 0; i < files; i++) {
+                settings.fileVersions.put(in.readUTF(), in.readInt());
+            }
+            return settings;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the positional values of the settings written via Helper.writeSettings
+     */
+    private static GraphSettings readOld(File file) throws IOException {
+        Object[] ob = Helper.readSettings(file.getPath());
+        if (ob.length < 5)
+            throw new IllegalStateException("invalid file format " + file);
+
+        GraphSettings settings = new GraphSettings();
+        settings.size = (Integer) ob[0];
+        settings.creationTime = (Long) ob[1];
+        settings.edgeNextGlobalPointer = (Integer) ob[2];
+        settings.edgeCurrentSegment = (Integer) ob[3];
+        settings.edgesSegmentSize = (Integer) ob[4];
+        if (ob.length > 5 && ((String) ob[5]).length() > 0)
+            settings.orderedBy = (String) ob[5];
+        settings.version = ob.length > 6 ? (Integer) ob[6] : 0;
+        if (ob.length > 7) {
+            // e.g. "lats:3,lons:1"
+            for (String entry : ((String) ob[7]).split(",")) {
+                int index = entry.indexOf(':');
+                if (index > 0)
+                    settings.fileVersions.put(entry.substring(0, index), Integer.parseInt(entry.substring(index + 1)));
+            }
+        }
+        settings.logVersion = ob.length > 8 ? (Integer) ob[8] : 0;
+        return settings;
+    }
+
+    /**
+     * @return the stored files of the specified node array, i.e. one file for old settings or one
+     * file per page
+     */
+    String[] getNodeFiles(String location, String name) {
+        if (nodePageSize == 0)
+            return new String[]{getStoredFile(location, name)};
+
+        String[] files = new String[getPages(nodeCapacity, nodePageSize)];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = getStoredFile(location, name + i);
+        }
+        return files;
+    }
+
+    static int getPages(int length, int pageSize) {
+        return (int) ((length + (long) pageSize - 1) / pageSize);
+    }
+
+    private static int getInt(Map<String, Object> fields, String name) {
+        Object value = fields.get(name);
+        return value == null ? 0 : (Integer) value;
+    }
+}
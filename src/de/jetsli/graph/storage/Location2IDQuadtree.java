@@ -18,7 +18,9 @@ package de.jetsli.graph.storage;
 import de.jetsli.graph.coll.MyBitSet;
 import de.jetsli.graph.coll.MyOpenBitSet;
 import de.jetsli.graph.coll.MyTBitSet;
+import de.jetsli.graph.geohash.HilbertKeyAlgo;
 import de.jetsli.graph.geohash.SpatialKeyAlgo;
+import de.jetsli.graph.geohash.SpatialKeyCurve;
 import de.jetsli.graph.util.BooleanRef;
 import de.jetsli.graph.util.CalcDistance;
 import de.jetsli.graph.util.CoordTrig;
@@ -43,7 +45,8 @@ import java.util.List;
 public class Location2IDQuadtree implements Location2IDIndex {
 
     private Logger logger = LoggerFactory.getLogger(getClass());
-    private SpatialKeyAlgo algo;
+    private SpatialKeyCurve algo;
+    private boolean hilbert;
     protected CalcDistance calc = new CalcDistance();
     private int[] spatialKey2Id;
     private double maxNormRasterWidthKm;
@@ -54,6 +57,16 @@ public class Location2IDQuadtree implements Location2IDIndex {
         this.g = g;
     }
 
+    /**
+     * If true the raster cells are ordered along a Hilbert curve. Then neighbouring keys are always
+     * neighbouring cells which improves the search for the closest node of empty cells. Call this
+     * before prepareIndex.
+     */
+    public Location2IDQuadtree setHilbert(boolean hilbert) {
+        this.hilbert = hilbert;
+        return this;
+    }
+
     public int getCapacity() {
         return size;
     }
@@ -111,7 +124,8 @@ public class Location2IDQuadtree implements Location2IDIndex {
             else if (lon < minLon)
                 minLon = lon;
         }
-        algo = new SpatialKeyAlgo(bits).setInitialBounds(minLon, maxLon, minLat, maxLat);
+        algo = hilbert ? new HilbertKeyAlgo(bits) : new SpatialKeyAlgo(bits);
+        algo.setInitialBounds(minLon, maxLon, minLat, maxLat);
         maxNormRasterWidthKm = calc.normalizeDist(Math.max(calc.calcDistKm(minLat, minLon, minLat, maxLon),
                 calc.calcDistKm(minLat, minLon, maxLat, minLon)) / Math.sqrt(size));
 
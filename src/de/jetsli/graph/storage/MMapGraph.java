@@ -29,13 +29,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
 
 import static de.jetsli.graph.util.GraphUtility.count;
 
@@ -43,35 +38,41 @@ import static de.jetsli.graph.util.GraphUtility.count;
  * A graph represenation which can be stored directly on disc when using the memory mapped
  * constructor.
  *
- * TODO rewrite with:
- *
- * 1. better method encapsulation
+ * The nodes and edges are stored in SegmentedBuffers: the files are mapped in segments which
+ * allows more than 2GB per file and growing means mapping new segments instead of remapping the
+ * whole file. Values are only accessed via absolute indices in native byte order (existing graphs
+ * keep the order they were written with), so many threads can read the graph concurrently. Writes
+ * need to be done by one thread.
  *
- * 2. allow edge distances of 0
+ * TODO rewrite with:
  *
- * 3. store size in one variable do not use two: maxRecognizedNodeIndex and currentNodeSize
+ * 1. allow edge distances of 0
  *
- * 4. instead edge iterator => use collection. we'll have only a small number of edges => iterator
+ * 2. instead edge iterator => use collection. we'll have only a small number of edges => iterator
  * makes no sense and won't grab the information in one bulk operation
  *
- * (read+write thread safety)
- *
  * @author Peter Karich, info@jetsli.de
  */
 public class MMapGraph implements SaveableGraph {
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
+    // version of the settings and the layout, the former layout had no version
+    private static final int FORMAT_VERSION = 2;
     private static final int EMPTY_DIST = 0;
-    private static final int FIRST_EDGE_POS = 1;
+    // block 0 of the edges is not used => a link of 0 means no further block
+    private static final int EMPTY_LINK = 0;
+    private static final int MIN_SEGMENT_POWER = 16;
     /**
-     * Memory layout of one node: lat, lon, 2 * EdgeWithFlags(distance, node, flags) +
-     * nextEdgePosition <br/>
+     * Memory layout of one node: lat, lon and one block of edges.<br/>
+     *
+     * Memory layout of one block: edgeNumEmbedded * (distance, node), the number of the next block
+     * in the edges, edgeNumEmbedded * flags (padded to a multiple of 4 bytes). All ints and floats
+     * are aligned to 4 bytes and cannot span two segments.
      *
-     * Note: <ul> <li> If nextEdgePosition is EMPTY_DIST => no further block referenced. </li>
+     * Note: <ul> <li> If the next block is EMPTY_LINK => no further block referenced. </li>
      * <li>If the distance is EMPTY_DIST (read as int) then the edge is assumed to be empty thatswhy
      * we don't support null length edges. This saves us from the ugly preinitialization and we can
-     * use node 0 too </li> <li> nextEdgePosition starts at 1 to avoid that hassle. Should we allow
-     * this for nodes too? < - problematic for existing tests </li>
+     * use node 0 too </li> </ul>
      */
     private int maxNodes;
     /**
@@ -79,28 +80,21 @@ public class MMapGraph implements SaveableGraph {
      * pointers to the next edge
      */
     private int edgeNumEmbedded = 2;
-    /**
-     * Memory layout of one EdgeWithFlags: distance, node, flags
-     */
-    private int bytesOneEdge = 4 + 4 + 1;
-    /**
-     * embedded edges plus link to next edge in "edges" if any
-     */
-    private int bytesEdges = edgeNumEmbedded * bytesOneEdge + 4;
-    private int edgeFlagsPos = bytesOneEdge - 1;
-    private int nextEdgePos = FIRST_EDGE_POS;
+    private int bytesEdges;
+    private int edgeLinkPos;
+    private int edgeFlagsPos;
     /**
      * Storing latitude and longitude directly in the node
      */
     private int bytesNodeCore = 4 + 4;
     private int bytesNode;
+    private int nextEdgeBlock = 1;
     private int size = 0;
     private double increaseFactor = 1.3;
     private MyBitSet deletedNodes;
-    private RandomAccessFile nodeFile = null;
-    private RandomAccessFile edgeFile = null;
-    private ByteBuffer nodes;
-    private ByteBuffer edges;
+    private ByteOrder order = ByteOrder.nativeOrder();
+    private SegmentedBuffer nodes;
+    private SegmentedBuffer edges;
     private File dirName;
     private boolean saveOnFlushOnly = false;
 
@@ -131,10 +125,13 @@ public class MMapGraph implements SaveableGraph {
             return false;
 
         logger.info("load existing graph with maxNodes:" + maxNodes + " size:" + size
-                + " edgeEmbedded:" + edgeNumEmbedded + " edgeSize:" + bytesOneEdge
-                + " nodeCoreSize:" + bytesNodeCore + " nodeSize:" + bytesNode
-                + " nextEdgePosition:" + nextEdgePos + " edgeFlagsPos:" + edgeFlagsPos
-                + " bytesEdgeSize:" + bytesEdges);
+                + " edgeEmbedded:" + edgeNumEmbedded + " nodeSize:" + bytesNode
+                + " bytesEdgeSize:" + bytesEdges + " edgeBlocks:" + nextEdgeBlock + " order:" + order);
+        // the files consist of full segments, keep that to never replace a mapped segment
+        long nodesLength = getNodesFile().length();
+        long edgesLength = getEdgesFile().length();
+        nodes = createBuffer(getNodesFile(), Math.min(getSegmentPower(nodesLength), Long.numberOfTrailingZeros(nodesLength)));
+        edges = createBuffer(getEdgesFile(), Math.min(getSegmentPower(edgesLength), Long.numberOfTrailingZeros(edgesLength)));
         ensureCapacity(maxNodes);
         return true;
     }
@@ -157,11 +154,40 @@ public class MMapGraph implements SaveableGraph {
         }
 
         this.saveOnFlushOnly = saveOnFlushOnly;
-        bytesNode = bytesNodeCore + bytesEdges;
+        initLayout();
+        nodes = createBuffer(dirName == null ? null : getNodesFile(), getSegmentPower((long) maxNodes * bytesNode));
+        edges = createBuffer(dirName == null ? null : getEdgesFile(), getSegmentPower((long) calculateEdges(maxNodes) * bytesEdges));
         ensureCapacity(maxNodes);
         return this;
     }
 
+    private void initLayout() {
+        edgeLinkPos = 8 * edgeNumEmbedded;
+        edgeFlagsPos = edgeLinkPos + 4;
+        bytesEdges = edgeFlagsPos + (edgeNumEmbedded + 3) / 4 * 4;
+        bytesNode = bytesNodeCore + bytesEdges;
+    }
+
+    /**
+     * @return the power of a segment size fitting to the expected bytes
+     */
+    private static int getSegmentPower(long expectedBytes) {
+        int power = MIN_SEGMENT_POWER;
+        while (power < SegmentedBuffer.DEFAULT_SEGMENT_POWER && (1L << power) < expectedBytes) {
+            power++;
+        }
+        return power;
+    }
+
+    /**
+     * The buffer is mapped to the file if the file is not null and if the graph is not only
+     * written on flush.
+     */
+    private SegmentedBuffer createBuffer(File file, int segmentPower) {
+        String name = file == null || saveOnFlushOnly ? null : file.getPath();
+        return new SegmentedBuffer(name, segmentPower, order);
+    }
+
     /**
      * Calling this method after init() has no effect
      */
@@ -171,8 +197,8 @@ public class MMapGraph implements SaveableGraph {
 
     public void ensureCapacity(int nodes) {
         int newEdgeNo = calculateEdges(nodes);
-        String str = "node file with " + (float) (nodes * bytesNode) / (1 << 20) + " MB and "
-                + "edge file with " + (float) (newEdgeNo * bytesEdges) / (1 << 20) + " MB";
+        String str = "node file with " + (float) nodes * bytesNode / (1 << 20) + " MB and "
+                + "edge file with " + (float) newEdgeNo * bytesEdges / (1 << 20) + " MB";
 
         try {
             ensureNodesCapacity(nodes);
@@ -184,82 +210,53 @@ public class MMapGraph implements SaveableGraph {
         }
     }
 
+    /**
+     * Increases the capacity by full segments, existing segments stay untouched so that readers
+     * can still use them
+     */
+    private static void increaseCapacity(SegmentedBuffer buffer, long bytes) throws IOException {
+        long segmentSize = buffer.getSegmentSize();
+        try {
+            buffer.ensureCapacity((bytes + segmentSize - 1) / segmentSize * segmentSize);
+        } catch (RuntimeException ex) {
+            throw new IOException("Cannot increase capacity of " + buffer + " to " + bytes, ex);
+        }
+    }
+
     protected boolean ensureNodesCapacity(int newNumberOfNodes) throws IOException {
-        int newBytes = newNumberOfNodes * bytesNode;
-        if (nodes != null) {
-            if (newBytes < nodes.capacity())
-                return false;
-            newNumberOfNodes = (int) Math.max(newNumberOfNodes, increaseFactor * nodes.capacity() / bytesNode);
-            newBytes = newNumberOfNodes * bytesNode;
+        long newBytes = (long) newNumberOfNodes * bytesNode;
+        long capacity = nodes.getCapacity();
+        if (newBytes <= capacity) {
+            maxNodes = (int) Math.min(Integer.MAX_VALUE, capacity / bytesNode);
+            return false;
         }
-        maxNodes = newNumberOfNodes;
-        if (dirName != null && !saveOnFlushOnly) {
-            if (nodeFile == null)
-                nodeFile = new RandomAccessFile(getNodesFile(), "rw");
-            else {
-                // necessary? clean((MappedByteBuffer) nodes);
-                nodeFile.setLength(newBytes);
-                logger.info("remap node file to " + (float) newBytes / bytesNode);
-            }
-            nodes = nodeFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, newBytes);
-        } else
-            nodes = copy(nodes, allocate(newBytes));
 
-        nodes.order(ByteOrder.BIG_ENDIAN);
+        newBytes = Math.max(newBytes, (long) (increaseFactor * capacity));
+        increaseCapacity(nodes, newBytes);
+        maxNodes = (int) Math.min(Integer.MAX_VALUE, nodes.getCapacity() / bytesNode);
+        if (capacity > 0)
+            logger.info("mapped nodes to " + maxNodes);
         return true;
     }
 
-    static ByteBuffer allocate(int capacity) {
-        // direct memory is a bit unpredictably for OSM import on a normal wordstation (<3GB)
-        // return ByteBuffer.allocateDirect(capacity);
-        return ByteBuffer.allocate(capacity);
-    }
-
     /**
      * @return the minimum number of edges to be used in edge buffer
      */
     int calculateEdges(int maxNodes) {
         // the more edges we inline the less memory we need to reserve => " / edgeEmbedded"
-        // if we provide too few memory => BufferUnderflowException will be thrown without calling ensureEdgesCapacity
-        return Math.max(nextEdgePos / bytesEdges + 2, maxNodes / edgeNumEmbedded / 4);
-    }
-
-    protected void ensureEdgesCapacity() {
-        try {
-            ensureEdgesCapacity(nextEdgePos / bytesEdges + 2);
-        } catch (IOException ex) {
-            throw new RuntimeException("Cannot ensure edge capacity!? edges capacity:" + edges.capacity()
-                    + " vs. " + nextEdgePos, ex);
-        }
+        return Math.max(nextEdgeBlock + 2, maxNodes / edgeNumEmbedded / 4);
     }
 
     protected boolean ensureEdgesCapacity(int newNumberOfEdges) throws IOException {
-        int newBytes = newNumberOfEdges * bytesEdges;
-        if (edges != null) {
-            if (newBytes < edges.capacity())
-                return false;
-            newBytes = (int) Math.max(newBytes, 1.3 * edges.capacity());
-        }
-        if (dirName != null && !saveOnFlushOnly) {
-            if (edgeFile == null)
-                edgeFile = new RandomAccessFile(getEdgesFile(), "rw");
-            else {
-                // necessary? clean((MappedByteBuffer) edges);
-                edgeFile.setLength(newBytes);
-                // logger.info("remapped edges to " + newBytes);
-            }
-            edges = edgeFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, newBytes);
-        } else
-            edges = copy(edges, allocate(newBytes));
+        long newBytes = (long) newNumberOfEdges * bytesEdges;
+        long capacity = edges.getCapacity();
+        if (newBytes <= capacity)
+            return false;
 
-        edges.order(ByteOrder.BIG_ENDIAN);
+        increaseCapacity(edges, Math.max(newBytes, (long) (increaseFactor * capacity)));
         return true;
     }
 
-    ByteBuffer getEdges() {
-        return edges;
-    }
-
     private File getSettingsFile() {
         if (dirName == null)
             throw new IllegalStateException("dirName was null although required to store data");
@@ -283,8 +280,7 @@ public class MMapGraph implements SaveableGraph {
         return size;
     }
 
-    @Override
-    public void setNode(int index, double lat, double lon) {
+    private void ensureNodeIndex(int index) {
         if (index + 1 >= maxNodes) {
             try {
                 ensureNodesCapacity(index + 1);
@@ -292,23 +288,25 @@ public class MMapGraph implements SaveableGraph {
                 throw new RuntimeException("Couldn't expand nodes from " + index, ex);
             }
         }
-
         size = Math.max(size, index + 1);
-        nodes.position(index * bytesNode);
-        nodes.putFloat((float) lat);
-        nodes.putFloat((float) lon);
+    }
+
+    @Override
+    public void setNode(int index, double lat, double lon) {
+        ensureNodeIndex(index);
+        long pointer = (long) index * bytesNode;
+        nodes.putFloat(pointer, (float) lat);
+        nodes.putFloat(pointer + 4, (float) lon);
     }
 
     @Override
     public final double getLatitude(int index) {
-        float fl = nodes.getFloat(index * bytesNode);
-        return (double) fl;
+        return nodes.getFloat((long) index * bytesNode);
     }
 
     @Override
     public final double getLongitude(int index) {
-        float fl = nodes.getFloat(index * bytesNode + 4);
-        return (double) fl;
+        return nodes.getFloat((long) index * bytesNode + 4);
     }
 
     @Override
@@ -322,119 +320,80 @@ public class MMapGraph implements SaveableGraph {
             throw new UnsupportedOperationException("negative or zero distances are not supported:"
                     + a + " -> " + b + ": " + distance + ", bothDirections:" + BitUtil.toBitString(flags, 16));
 
-        ensureEdgesCapacity();
-        size = Math.max(size, Math.max(a, b) + 1);
-        addIfAbsent(a * bytesNode + bytesNodeCore, b, (float) distance, (byte) flags);
+        ensureNodeIndex(Math.max(a, b));
+        addIfAbsent(a, b, (float) distance, (byte) flags);
 
         flags = CarFlags.swapDirection(flags);
-        addIfAbsent(b * bytesNode + bytesNodeCore, a, (float) distance, (byte) flags);
+        addIfAbsent(b, a, (float) distance, (byte) flags);
     }
 
-    private byte[] getBytesFromNodes(int pos, int len) {
-        nodes.position(pos);
-        byte[] bytes = new byte[len];
-        nodes.get(bytes);
-        return bytes;
+    private long getNodeBlock(int index) {
+        if (index >= maxNodes)
+            throw new IllegalStateException("Cannot accept indices higher then maxNode");
+
+        return (long) index * bytesNode + bytesNodeCore;
     }
 
     @Override
     public EdgeIterator getEdges(int index) {
-        if (index >= maxNodes)
-            throw new IllegalStateException("Cannot accept indices higher then maxNode");
-
-        return new EdgesIteratorable(getBytesFromNodes(index * bytesNode + bytesNodeCore, bytesEdges));
+        return new EdgesIteratorable(getNodeBlock(index), (byte) 0);
     }
 
     @Override
     public EdgeIterator getOutgoing(int index) {
-        if (index >= maxNodes)
-            throw new IllegalStateException("Cannot accept indices higher then maxNode");
-
-        return new EdgesIteratorableFlags(getBytesFromNodes(index * bytesNode + bytesNodeCore, bytesEdges), (byte) 1);
+        return new EdgesIteratorable(getNodeBlock(index), (byte) 1);
     }
 
     @Override
     public EdgeIterator getIncoming(int index) {
-        if (index >= maxNodes)
-            throw new IllegalStateException("Cannot accept indices higher then maxNode");
-
-        return new EdgesIteratorableFlags(getBytesFromNodes(index * bytesNode + bytesNodeCore, bytesEdges), (byte) 2);
-    }
-
-    private class EdgesIteratorableFlags extends EdgesIteratorable {
-
-        byte flags;
-
-        EdgesIteratorableFlags(byte[] bytes, byte flags) {
-            super(bytes);
-            this.flags = flags;
-        }
-
-        @Override
-        boolean checkFlags() {
-            for (int tmpPos = position;;) {
-                if (super.checkFlags())
-                    tmpPos = 0;
-
-                int tmp = BitUtil.toInt(bytes, tmpPos);
-                if (tmp == EMPTY_DIST)
-                    break;
-
-                if ((bytes[tmpPos + edgeFlagsPos] & flags) != 0)
-                    break;
-
-                tmpPos += bytesOneEdge;
-                if (tmpPos >= bytes.length)
-                    break;
-
-                position = tmpPos;
-            }
-            return true;
-        }
+        return new EdgesIteratorable(getNodeBlock(index), (byte) 2);
     }
 
+    /**
+     * Reads the blocks of one node directly from the buffers
+     */
     private class EdgesIteratorable implements EdgeIterator {
 
-        byte[] bytes;
-        int position = 0;
+        // 0 => all edges
+        final byte dirFlags;
+        SegmentedBuffer buffer = nodes;
+        long block;
+        int slot;
         int nodeId;
         float dist;
         byte flags;
 
-        EdgesIteratorable(byte[] bytes) {
-            this.bytes = bytes;
+        EdgesIteratorable(long nodeBlock, byte dirFlags) {
+            this.block = nodeBlock;
+            this.dirFlags = dirFlags;
         }
 
-        boolean checkFlags() {
-            assert position <= bytesOneEdge * edgeNumEmbedded;
-            if (position == bytesOneEdge * edgeNumEmbedded) {
-                int tmp = BitUtil.toInt(bytes, position);
-                if (tmp == EMPTY_DIST)
+        @Override public boolean next() {
+            while (true) {
+                if (slot == edgeNumEmbedded) {
+                    int link = buffer.getInt(block + edgeLinkPos);
+                    if (link == EMPTY_LINK)
+                        return false;
+
+                    buffer = edges;
+                    block = (long) link * bytesEdges;
+                    slot = 0;
+                }
+
+                long pointer = block + 8 * slot;
+                if (buffer.getInt(pointer) <= EMPTY_DIST)
                     return false;
 
-                position = 0;
-                edges.position(tmp);
-                edges.get(bytes);
+                byte tmpFlags = buffer.get(block + edgeFlagsPos + slot);
+                slot++;
+                if (dirFlags != 0 && (tmpFlags & dirFlags) == 0)
+                    continue;
+
+                dist = buffer.getFloat(pointer);
+                nodeId = buffer.getInt(pointer + 4);
+                flags = tmpFlags;
                 return true;
             }
-            return false;
-        }
-
-        public boolean hasNext() {
-            checkFlags();
-            assert position < bytes.length;
-            return BitUtil.toInt(bytes, position) > EMPTY_DIST;
-        }
-
-        @Override public boolean next() {
-            if (!hasNext())
-                return false;
-
-            dist = BitUtil.toFloat(bytes, position);
-            nodeId = BitUtil.toInt(bytes, position += 4);
-            flags = bytes[position += 4];
-            position++;
-            return true;
         }
 
         @Override public double distance() {
@@ -454,85 +413,69 @@ public class MMapGraph implements SaveableGraph {
      * if distance entry with location already exists => overwrite distance. if it does not exist =>
      * append
      */
-    void addIfAbsent(int nodePointer, int nodeIndex, float distance, byte dirFlag) {
-        // move to the node its edges
-        byte[] byteArray = getBytesFromNodes(nodePointer, bytesEdges);
-        nodes.position(nodePointer);
-        boolean usingNodesBuffer = true;
-        // find free position or the identical nodeIndex where we need to update distance and flags        
-        int byteArrayPos = 0;
+    void addIfAbsent(int fromNode, int toNode, float distance, byte dirFlag) {
+        SegmentedBuffer buffer = nodes;
+        long block = getNodeBlock(fromNode);
+        int slot = 0;
+        // find free position or the identical node where we need to update distance and flags
         while (true) {
-            // read distance as int and check if it is empty
-            int tmp = BitUtil.toInt(byteArray, byteArrayPos);
-            if (tmp == EMPTY_DIST) {
-                // mark 'NO' next entry => no need as EMPTY_DIST is 0 
-                // ByteUtil.fromInt(byteArray, EMPTY_DIST, byteArrayPos + edgeEmbedded);
-                break;
-            }
-
-            tmp = BitUtil.toInt(byteArray, byteArrayPos + 4);
-            if (tmp == nodeIndex)
-                break;
-
-            byteArrayPos += bytesOneEdge;
-            assert byteArrayPos <= bytesOneEdge * edgeNumEmbedded;
-
-            if (byteArrayPos == bytesOneEdge * edgeNumEmbedded) {
-                tmp = BitUtil.toInt(byteArray, byteArrayPos);
-                if (tmp < 0)
+            if (slot == edgeNumEmbedded) {
+                int link = buffer.getInt(block + edgeLinkPos);
+                if (link < 0)
                     throw new IllegalStateException("Pointer to edges was negative!?");
 
-                if (tmp == EMPTY_DIST) {
-                    tmp = getNextFreeEdgeBlock();
-
-                    if (usingNodesBuffer)
-                        nodes.putInt(nodes.position() + byteArrayPos, tmp);
-                    else
-                        edges.putInt(edges.position() + byteArrayPos, tmp);
+                if (link == EMPTY_LINK) {
+                    link = getNextFreeEdgeBlock();
+                    buffer.putInt(block + edgeLinkPos, link);
                 }
-
-                byteArrayPos = 0;
-                usingNodesBuffer = false;
-                edges.position(tmp);
-                edges.get(byteArray);
-                edges.position(tmp);
+                buffer = edges;
+                block = (long) link * bytesEdges;
+                slot = 0;
             }
-        }
 
-        BitUtil.fromFloat(byteArray, distance, byteArrayPos);
-        byteArrayPos += 4;
-        BitUtil.fromInt(byteArray, nodeIndex, byteArrayPos);
-        byteArrayPos += 4;
-        byteArray[byteArrayPos] = (byte) (byteArray[byteArrayPos] | dirFlag);
+            long pointer = block + 8 * slot;
+            // read distance as int and check if it is empty
+            if (buffer.getInt(pointer) == EMPTY_DIST || buffer.getInt(pointer + 4) == toNode)
+                break;
+
+            slot++;
+        }
 
-        if (usingNodesBuffer)
-            nodes.put(byteArray);
-        else
-            edges.put(byteArray);
+        long pointer = block + 8 * slot;
+        long flagsPointer = block + edgeFlagsPos + slot;
+        buffer.putInt(pointer + 4, toNode);
+        buffer.put(flagsPointer, (byte) (buffer.get(flagsPointer) | dirFlag));
+        // write the distance at the end as it marks the entry as used for readers
+        buffer.putFloat(pointer, distance);
     }
 
     protected int getNextFreeEdgeBlock() {
-        int tmp = nextEdgePos;
-        nextEdgePos += bytesEdges;
-        if (nextEdgePos > edges.capacity())
-            throw new IllegalStateException("You need to ensure capacity of edges before creating new ones");
+        int tmp = nextEdgeBlock;
+        try {
+            ensureEdgesCapacity(nextEdgeBlock + 1);
+        } catch (IOException ex) {
+            throw new RuntimeException("Cannot ensure edge capacity!? edges capacity:" + edges.getCapacity()
+                    + " vs. " + nextEdgeBlock, ex);
+        }
+        nextEdgeBlock++;
         return tmp;
     }
 
+    /**
+     * Copies the bytes of the graph. Both graphs need the same byte order.
+     */
     public static void copy(MMapGraph from, MMapGraph to) {
-        to.nodes.rewind();
-        copy(from.nodes, to.nodes);
-        to.edges.rewind();
-        copy(from.edges, to.edges);
-        to.edgeNumEmbedded = from.edgeNumEmbedded;
-        to.bytesOneEdge = from.bytesOneEdge;
-        to.bytesEdges = from.bytesEdges;
-        to.nextEdgePos = from.nextEdgePos;
-        to.edgeFlagsPos = from.edgeFlagsPos;
+        if (from.order != to.order)
+            throw new IllegalArgumentException("byte order differs: " + from.order + " vs. " + to.order);
 
+        to.edgeNumEmbedded = from.edgeNumEmbedded;
         to.bytesNodeCore = from.bytesNodeCore;
-        to.bytesNode = from.bytesNode;
+        to.initLayout();
+        to.nextEdgeBlock = from.nextEdgeBlock;
         to.size = from.size;
+        from.nodes.copyTo(to.nodes);
+        from.edges.copyTo(to.edges);
+        to.maxNodes = (int) Math.min(Integer.MAX_VALUE, to.nodes.getCapacity() / to.bytesNode);
     }
 
     @Override
@@ -543,110 +486,28 @@ public class MMapGraph implements SaveableGraph {
         }
 
         MMapGraph graphCloned = new MMapGraph(maxNodes);
-        graphCloned.nodes = allocate(nodes.capacity());
-        graphCloned.edges = allocate(edges.capacity());
+        graphCloned.order = order;
+        graphCloned.edgeNumEmbedded = edgeNumEmbedded;
+        graphCloned.bytesNodeCore = bytesNodeCore;
+        graphCloned.createNew();
         copy(this, graphCloned);
         return graphCloned;
     }
 
-    public static ByteBuffer clone(ByteBuffer original) {
-        return copy(original, allocate(original.capacity()));
-    }
-
-    public static ByteBuffer copy(ByteBuffer original, ByteBuffer copy) {
-        if (original == null)
-            return copy;
-
-        original.rewind();
-        // if (original.capacity() > copy.capacity())
-        //    original.limit(copy.capacity());
-        copy.put(original);
-        return copy;
-    }
-
-    /**
-     * In case of saveOnFlushOnly we write the bytebuffer to disc. If it is direct its simple, if
-     * not we need to copy chunks
-     */
-    void writeToDisc(File dirName, ByteBuffer buf) {
-        FileChannel channel;
-        try {
-            channel = new RandomAccessFile(dirName, "rw").getChannel();
-        } catch (FileNotFoundException ex) {
-            throw new RuntimeException("Cannot find " + dirName, ex);
-        }
-
-        try {
-            // make sure we copy from 0 to capacity (== limit)!
-            buf.rewind();
-            if (buf.isDirect()) {
-                while (buf.hasRemaining()) {
-                    channel.write(buf);
-                }
-            } else {
-                // if ByteBuffer is not direct we should use a temporary buffer
-                // otherwise we'll get memory a big problem https://gist.github.com/2944942
-                int c = buf.capacity();
-                int BULK = 256 * 1024;
-                int i = BULK;
-                while (true) {
-                    if (i >= c) {
-                        buf.limit(c);
-                        channel.write(buf);
-                        break;
-                    }
-
-                    buf.limit(i);
-                    channel.write(buf);
-                    i += BULK;
-                }
-            }
-        } catch (Exception ex) {
-            throw new RuntimeException("Couldn't write data", ex);
-        } finally {
-            Helper.close(channel);
-        }
-    }
-
-    static boolean isFileMapped(ByteBuffer bb) {
-        if (bb instanceof MappedByteBuffer) {
-            try {
-                ((MappedByteBuffer) bb).isLoaded();
-                return true;
-            } catch (UnsupportedOperationException ex) {
-            }
-        }
-        return false;
-    }
-
     @Override
     public void flush() {
         if (dirName != null) {
-            if (saveOnFlushOnly) {
-                writeToDisc(getNodesFile(), nodes);
-                writeToDisc(getEdgesFile(), edges);
-            } else {
-                if (nodes != null)
-                    ((MappedByteBuffer) nodes).force();
-                if (edges != null)
-                    ((MappedByteBuffer) edges).force();
-            }
-
-            // store settings
             try {
-                RandomAccessFile settingsFile = new RandomAccessFile(getSettingsFile(), "rw");
-                settingsFile.writeInt(maxNodes);
-                settingsFile.writeInt(size);
-
-                settingsFile.writeInt(nextEdgePos);
-
-                settingsFile.writeInt(edgeNumEmbedded);
-                settingsFile.writeInt(bytesOneEdge);
-                settingsFile.writeInt(bytesNodeCore);
-                settingsFile.writeInt(bytesNode);
+                if (saveOnFlushOnly) {
+                    nodes.writeTo(getNodesFile().getPath());
+                    edges.writeTo(getEdgesFile().getPath());
+                } else {
+                    nodes.flush();
+                    edges.flush();
+                }
 
-                settingsFile.writeInt(edgeFlagsPos);
-                settingsFile.writeInt(bytesEdges);
+                Helper.writeSettings(getSettingsFile().getPath(), FORMAT_VERSION, maxNodes, size, nextEdgeBlock,
+                        edgeNumEmbedded, bytesNodeCore, order.toString());
             } catch (Exception ex) {
                 logger.error("Problem while writing to settings file", ex);
             }
@@ -662,19 +523,19 @@ public class MMapGraph implements SaveableGraph {
             if (!sFile.exists())
                 return false;
 
-            RandomAccessFile settingsFile = new RandomAccessFile(sFile, "r");
-            maxNodes = settingsFile.readInt();
-            size = settingsFile.readInt();
-
-            nextEdgePos = settingsFile.readInt();
-
-            edgeNumEmbedded = settingsFile.readInt();
-            bytesOneEdge = settingsFile.readInt();
-            bytesNodeCore = settingsFile.readInt();
-            bytesNode = settingsFile.readInt();
+            Object[] ob = Helper.readSettings(sFile.getPath());
+            if (ob.length < 7 || !Integer.valueOf(FORMAT_VERSION).equals(ob[0])) {
+                logger.error("Unsupported format of " + sFile + ", the graph needs to be created again");
+                return false;
+            }
 
-            edgeFlagsPos = settingsFile.readInt();
-            bytesEdges = settingsFile.readInt();
+            maxNodes = (Integer) ob[1];
+            size = (Integer) ob[2];
+            nextEdgeBlock = (Integer) ob[3];
+            edgeNumEmbedded = (Integer) ob[4];
+            bytesNodeCore = (Integer) ob[5];
+            order = ByteOrder.BIG_ENDIAN.toString().equals(ob[6]) ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+            initLayout();
             saveOnFlushOnly = false;
             return true;
         } catch (Exception ex) {
@@ -687,15 +548,10 @@ public class MMapGraph implements SaveableGraph {
     public void close() {
         if (dirName != null) {
             flush();
-            if (nodes instanceof MappedByteBuffer)
-                Helper.cleanMappedByteBuffer((MappedByteBuffer) nodes);
-            if (nodeFile != null)
-                Helper.close(nodeFile);
-
-            if (edges instanceof MappedByteBuffer)
-                Helper.cleanMappedByteBuffer((MappedByteBuffer) edges);
-            if (edgeFile != null)
-                Helper.close(edgeFile);
+            if (nodes != null)
+                nodes.close();
+            if (edges != null)
+                edges.close();
         }
     }
 
@@ -771,7 +627,7 @@ public class MMapGraph implements SaveableGraph {
         System.out.println("edges - out:" + outEdgesNo + "\t" + ((float) outEdgesNo / locs));
         System.out.println("edges - in :" + inEdgesNo + "\t" + ((float) inEdgesNo / locs));
         System.out.println("maxRecognizedNodeIndex:" + size);
-        System.out.println("nextEdgePosition:" + nextEdgePos);
+        System.out.println("nextEdgeBlock:" + nextEdgeBlock);
     }
 
     private MyBitSet getDeletedNodes() {
@@ -796,17 +652,18 @@ public class MMapGraph implements SaveableGraph {
         close();
         nodes = null;
         edges = null;
-        nodeFile = null;
-        edgeFile = null;
         deletedNodes = null;
         size = 0;
-        nextEdgePos = FIRST_EDGE_POS;
+        nextEdgeBlock = 1;
         createNew(saveOnFlushOnly);
     }
 
     @Override
     public void optimize() {
         MMapGraph inMemGraph = new MMapGraph(getNodes() - getDeletedNodes().getCardinality());
+        inMemGraph.order = order;
+        inMemGraph.edgeNumEmbedded = edgeNumEmbedded;
+        inMemGraph.bytesNodeCore = bytesNodeCore;
         inMemGraph.createNew();
         /**
          * This methods creates a new in-memory graph without the specified deleted nodes. see
@@ -835,9 +692,7 @@ public class MMapGraph implements SaveableGraph {
                 if (deletedNodes.contains(iter.node()))
                     continue;
 
-                inMemGraph.ensureEdgesCapacity();
-                inMemGraph.addIfAbsent(newNodeId * bytesNode + bytesNodeCore, old2NewMap[iter.node()],
-                        (float) iter.distance(), (byte) iter.flags());
+                inMemGraph.addIfAbsent(newNodeId, old2NewMap[iter.node()], (float) iter.distance(), (byte) iter.flags());
             }
             newNodeId++;
         }
@@ -846,11 +701,6 @@ public class MMapGraph implements SaveableGraph {
         this.maxNodes = inMemGraph.maxNodes;
         // clear the data
         clear();
-        try {
-            this.ensureEdgesCapacity(inMemGraph.edges.capacity() / inMemGraph.bytesEdges + 2);
-        } catch (Exception ex) {
-            logger.error("problem while increasing edge capacity", ex);
-        }
         copy(inMemGraph, this);
     }
 }
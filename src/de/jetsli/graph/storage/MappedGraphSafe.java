@@ -0,0 +1,346 @@
+/*
+ *  Copyright 2012 Peter Karich info@jetsli.de
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.graph.storage;
+
+import static de.jetsli.graph.storage.MemoryGraphSafe.DIST_UNIT;
+import static de.jetsli.graph.storage.MemoryGraphSafe.EDGES;
+import static de.jetsli.graph.storage.MemoryGraphSafe.EMPTY_LINK;
+import static de.jetsli.graph.storage.MemoryGraphSafe.LATS;
+import static de.jetsli.graph.storage.MemoryGraphSafe.LEN_DIST;
+import static de.jetsli.graph.storage.MemoryGraphSafe.LEN_EDGE;
+import static de.jetsli.graph.storage.MemoryGraphSafe.LEN_FLAGS;
+import static de.jetsli.graph.storage.MemoryGraphSafe.LEN_LINKA;
+import static de.jetsli.graph.storage.MemoryGraphSafe.LEN_NODEA_ID;
+import static de.jetsli.graph.storage.MemoryGraphSafe.LEN_NODEB_ID;
+import static de.jetsli.graph.storage.MemoryGraphSafe.LONS;
+import static de.jetsli.graph.storage.MemoryGraphSafe.REFS;
+
+import de.jetsli.graph.coll.MyBitSet;
+import de.jetsli.graph.coll.MyOpenBitSet;
+import de.jetsli.graph.reader.CarFlags;
+import de.jetsli.graph.util.EdgeIterator;
+import de.jetsli.graph.util.Helper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A read-only graph which memory maps the files written by MemoryGraphSafe.save instead of reading
+ * them into heap arrays. Opening is nearly instant, the data is loaded lazily by the operating
+ * system and the page cache is shared by all processes mapping the same files.
+ *
+ * The files start with a header (see Helper.readArrayHeader) followed by big endian integers or
+ * floats, so the values are 4 byte aligned and are read directly through IntBuffer views. A stored
+ * checksum is not verified as this would read all pages. Files bigger than 2GB
+ * are split into several mappings. The files must not be rewritten in place while they are mapped.
+ *
+ * @author Peter Karich
+ */
+public class MappedGraphSafe implements Graph {
+
+    // 1GB
+    private static final int CHUNK_POWER = 28;
+    private Logger logger = LoggerFactory.getLogger(getClass());
+    private final String storageLocation;
+    private final int size;
+    private final MappedInts lats;
+    private final MappedInts lons;
+    private final MappedInts refToEdges;
+    private final MappedInts edges;
+    private final MyBitSet deletedNodes;
+
+    /**
+     * @throws IllegalStateException if no graph is stored in storageDir
+     */
+    public MappedGraphSafe(String storageDir) {
+        this.storageLocation = storageDir;
+        if (!new File(storageDir, "settings").exists())
+            throw new IllegalStateException("No graph found in " + storageDir);
+
+        try {
+            GraphSettings settings = GraphSettings.read(new File(storageDir, "settings"));
+            size = settings.size;
+            int edgeCurrentSegment = settings.edgeCurrentSegment;
+            lats = mapNodes(settings, storageDir, LATS);
+            lons = mapNodes(settings, storageDir, LONS);
+            refToEdges = mapNodes(settings, storageDir, REFS);
+            String[] edgeFiles = new String[edgeCurrentSegment + 1];
+            for (int i = 0; i <= edgeCurrentSegment; i++) {
+                edgeFiles[i] = settings.getStoredFile(storageDir, EDGES + i);
+            }
+            // segment size is a power of two => a chunk never spans two files
+            int edgePower = Math.min(CHUNK_POWER, Integer.numberOfTrailingZeros(settings.edgesSegmentSize));
+            edges = map(edgePower, edgeFiles);
+            // deleted nodes are not stored in the files but in a log, see MemoryGraphSafe.flush
+            deletedNodes = new MyOpenBitSet(size);
+            for (int node : MemoryGraphSafe.readDeleteLog(MemoryGraphSafe.getDeleteLog(storageDir, settings.logVersion))) {
+                deletedNodes.add(node);
+            }
+            logger.info("mapped graph " + storageLocation + " with nodes:" + size
+                    + ", edges:" + settings.edgeNextGlobalPointer / LEN_EDGE
+                    + ", edges segments:" + (edgeCurrentSegment + 1)
+                    + ", created-at:" + new Date(settings.creationTime));
+        } catch (IOException ex) {
+            throw new RuntimeException("Couldn't map data from disc. location=" + storageLocation, ex);
+        }
+    }
+
+    /**
+     * Maps the pages of the node array, or the single file written by a former release
+     */
+    private static MappedInts mapNodes(GraphSettings settings, String dir, String name) throws IOException {
+        // page size is a power of two => a chunk never spans two files
+        int power = settings.nodePageSize == 0 ? CHUNK_POWER
+                : Math.min(CHUNK_POWER, Integer.numberOfTrailingZeros(settings.nodePageSize));
+        return map(power, settings.getNodeFiles(dir, name));
+    }
+
+    /**
+     * Maps the values of the specified files as one consecutive array. Every file except the last
+     * one needs a multiple of 2^power values.
+     */
+    static MappedInts map(int power, String... files) throws IOException {
+        int chunkSize = 1 << power;
+        List<MappedByteBuffer> list = new ArrayList<MappedByteBuffer>();
+        long total = 0;
+        for (int f = 0; f < files.length; f++) {
+            RandomAccessFile raf = new RandomAccessFile(files[f], "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                Helper.ArrayHeader header = Helper.readArrayHeader(channel, files[f]);
+                int len = header.length;
+                if (channel.size() < header.bytes + 4L * len)
+                    throw new IllegalStateException("file " + files[f] + " is too small for " + len + " values");
+                if (f < files.length - 1 && len % chunkSize != 0)
+                    throw new IllegalStateException("file " + files[f] + " has " + len
+                            + " values which is not a multiple of " + chunkSize);
+
+                for (long pos = 0; pos < len; pos += chunkSize) {
+                    long bytes = 4L * Math.min(chunkSize, len - pos);
+                    // the mapping stays valid after the file is closed
+                    list.add(channel.map(FileChannel.MapMode.READ_ONLY, header.bytes + 4 * pos, bytes));
+                }
+                total += len;
+            } finally {
+                raf.close();
+            }
+        }
+        return new MappedInts(power, list.toArray(new MappedByteBuffer[list.size()]), total);
+    }
+
+    /**
+     * Integers of several mappings addressed via shift and mask
+     */
+    static class MappedInts {
+
+        private final int power;
+        private final int mask;
+        private final MappedByteBuffer[] mappings;
+        private final IntBuffer[] chunks;
+        private final long length;
+
+        MappedInts(int power, MappedByteBuffer[] mappings, long length) {
+            this.power = power;
+            this.mask = (1 << power) - 1;
+            this.mappings = mappings;
+            this.length = length;
+            chunks = new IntBuffer[mappings.length];
+            for (int i = 0; i < mappings.length; i++) {
+                // big endian is the default order as written by DataOutputStream
+                chunks[i] = mappings[i].asIntBuffer();
+            }
+        }
+
+        final int get(int index) {
+            return chunks[index >>> power].get(index & mask);
+        }
+
+        long getLength() {
+            return length;
+        }
+
+        void close() {
+            for (int i = 0; i < mappings.length; i++) {
+                Helper.cleanMappedByteBuffer(mappings[i]);
+                chunks[i] = null;
+            }
+        }
+    }
+
+    public String getStorageLocation() {
+        return storageLocation;
+    }
+
+    @Override
+    public int getNodes() {
+        return size;
+    }
+
+    @Override
+    public double getLatitude(int index) {
+        return Float.intBitsToFloat(lats.get(index));
+    }
+
+    @Override
+    public double getLongitude(int index) {
+        return Float.intBitsToFloat(lons.get(index));
+    }
+
+    private int getOtherNode(int nodeThis, int edgePointer) {
+        int nodeA = edges.get(edgePointer);
+        if (nodeA == nodeThis)
+            return edges.get(edgePointer + LEN_NODEA_ID);
+        return nodeA;
+    }
+
+    private int getLinkPos(int nodeThis, int nodeOther, int edgePointer) {
+        if (nodeThis <= nodeOther)
+            return edgePointer + LEN_NODEA_ID + LEN_NODEB_ID;
+        return edgePointer + LEN_NODEA_ID + LEN_NODEB_ID + LEN_LINKA;
+    }
+
+    @Override
+    public EdgeIterator getEdges(int nodeId) {
+        return new EdgeIterable(nodeId, true, true);
+    }
+
+    @Override
+    public EdgeIterator getIncoming(int nodeId) {
+        return new EdgeIterable(nodeId, true, false);
+    }
+
+    @Override
+    public EdgeIterator getOutgoing(int nodeId) {
+        return new EdgeIterable(nodeId, false, true);
+    }
+
+    /**
+     * Same traversal as in MemoryGraphSafe but reading from the mapped edges
+     */
+    private class EdgeIterable implements EdgeIterator {
+
+        boolean in;
+        boolean out;
+        int flags;
+        float distance;
+        int nodeId;
+        int fromNode;
+        int nextEdgePointer;
+
+        public EdgeIterable(int node, boolean in, boolean out) {
+            this.fromNode = node;
+            this.nextEdgePointer = deletedNodes.contains(node) ? EMPTY_LINK : refToEdges.get(node);
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public boolean next() {
+            for (int i = 0; i < 1000; i++) {
+                if (nextEdgePointer == EMPTY_LINK)
+                    return false;
+
+                int pointer = nextEdgePointer;
+                nodeId = getOtherNode(fromNode, pointer);
+                nextEdgePointer = edges.get(getLinkPos(fromNode, nodeId, pointer));
+                flags = edges.get(pointer + LEN_EDGE - LEN_FLAGS - LEN_DIST);
+                if (fromNode > nodeId)
+                    flags = CarFlags.swapDirection(flags);
+
+                if (!in && !CarFlags.isForward(flags) || !out && !CarFlags.isBackward(flags)
+                        || deletedNodes.contains(nodeId))
+                    continue;
+
+                distance = edges.get(pointer + LEN_EDGE - LEN_DIST) / DIST_UNIT;
+                return true;
+            }
+            throw new IllegalStateException("something went wrong: no end of edge-list found");
+        }
+
+        @Override
+        public int node() {
+            return nodeId;
+        }
+
+        @Override
+        public double distance() {
+            return distance;
+        }
+
+        @Override
+        public int flags() {
+            return flags;
+        }
+    }
+
+    /**
+     * Unmaps the files. This graph cannot be used afterwards.
+     */
+    public void close() {
+        lats.close();
+        lons.close();
+        refToEdges.close();
+        edges.close();
+    }
+
+    /**
+     * This graph is read-only and can be shared. Use new MemoryGraphSafe(storageDir, 0) to get a
+     * modifiable graph.
+     */
+    @Override
+    public Graph clone() {
+        return this;
+    }
+
+    @Override
+    public boolean isDeleted(int index) {
+        return deletedNodes.contains(index);
+    }
+
+    @Override
+    public void optimize() {
+    }
+
+    @Override
+    public void setNode(int index, double lat, double lon) {
+        throw new UnsupportedOperationException("MappedGraphSafe is read-only");
+    }
+
+    @Override
+    public void edge(int a, int b, double distance, int flags) {
+        throw new UnsupportedOperationException("MappedGraphSafe is read-only");
+    }
+
+    @Override
+    public void edge(int a, int b, double distance, boolean bothDirections) {
+        throw new UnsupportedOperationException("MappedGraphSafe is read-only");
+    }
+
+    @Override
+    public void markNodeDeleted(int index) {
+        throw new UnsupportedOperationException("MappedGraphSafe is read-only");
+    }
+}
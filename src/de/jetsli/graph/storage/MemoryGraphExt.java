@@ -19,6 +19,8 @@ import de.jetsli.graph.util.Helper;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 /**
  * Store node priorities to use edge short cut efficiently.
@@ -27,6 +29,7 @@ import java.util.Arrays;
  */
 public class MemoryGraphExt extends MemoryGraphSafe {
 
+    private static final String PRIORITIES = "priorities";
     private int[] priorities;
 
     public MemoryGraphExt(int cap) {
@@ -40,8 +43,10 @@ public class MemoryGraphExt extends MemoryGraphSafe {
     @Override
     protected int ensureNodeIndex(int index) {
         int cap = super.ensureNodeIndex(index);
-        if (cap > 0)
+        if (cap > 0) {
             priorities = Arrays.copyOf(priorities, cap);
+            markDirty(PRIORITIES);
+        }
         return cap;
     }
 
@@ -74,6 +79,16 @@ public class MemoryGraphExt extends MemoryGraphSafe {
         // TODO change priorities too!
     }
 
+    @Override
+    protected void reorderNodes(int[] newToOld) {
+        super.reorderNodes(newToOld);
+        int[] tmp = new int[priorities.length];
+        for (int newId = 0; newId < newToOld.length; newId++) {
+            tmp[newId] = priorities[newToOld[newId]];
+        }
+        priorities = tmp;
+    }
+
     @Override
     protected MemoryGraphSafe creatThis(String storage, int nodes, int edges) {
         return new MemoryGraphExt(storage, nodes, edges);
@@ -87,28 +102,24 @@ public class MemoryGraphExt extends MemoryGraphSafe {
     }
 
     @Override
-    public boolean save() {
-        boolean saved = super.save();
-        if (saved) {
-            try {
-                Helper.writeInts(getStorageLocation() + "/priorities", priorities);
-            } catch (IOException ex) {
-                throw new RuntimeException("Couldn't write data to disc. location=" + getStorageLocation(), ex);
+    protected void addSaveTasks(Map<String, Callable<Object>> tasks, final String dir) {
+        super.addSaveTasks(tasks, dir);
+        tasks.put(PRIORITIES, new Callable<Object>() {
+            @Override public Object call() throws IOException {
+                Helper.writeInts(dir + "/" + PRIORITIES, priorities, true);
+                return null;
             }
-        }
-        return saved;
+        });
     }
 
     @Override
-    public boolean loadExisting(String storageDir) {
-        if (super.loadExisting(storageDir)) {
-            try {
-                priorities = Helper.readInts(getStorageLocation() + "/priorities");
-                return true;
-            } catch (IOException ex) {
-                throw new RuntimeException("Couldn't load data from disc. location=" + getStorageLocation(), ex);
+    protected void addLoadTasks(Map<String, Callable<Object>> tasks) {
+        super.addLoadTasks(tasks);
+        tasks.put(PRIORITIES, new Callable<Object>() {
+            @Override public Object call() throws IOException {
+                priorities = Helper.readInts(getStoredFile(PRIORITIES));
+                return null;
             }
-        }
-        return false;
+        });
     }
 }
@@ -18,20 +18,46 @@ package de.jetsli.graph.storage;
 import de.jetsli.graph.coll.MyBitSet;
 import de.jetsli.graph.coll.MyBitSetImpl;
 import de.jetsli.graph.coll.MyOpenBitSet;
+import de.jetsli.graph.geohash.HilbertKeyAlgo;
+import de.jetsli.graph.geohash.SpatialKeyCurve;
 import de.jetsli.graph.reader.CarFlags;
 import de.jetsli.graph.util.EdgeIterator;
 import de.jetsli.graph.util.Helper;
+import de.jetsli.graph.util.StopWatch;
+import de.jetsli.graph.util.XFirstSearch;
 
+import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.set.hash.TIntHashSet;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This graph implementation is memory efficient and fast (in that order), and thread safe. Also it
@@ -42,20 +68,31 @@ import java.util.Date;
  */
 public class MemoryGraphSafe implements SaveableGraph {
 
-    private static final int EMPTY_LINK = 0;
-    private static final float DIST_UNIT = 10000f;
+    static final int EMPTY_LINK = 0;
+    static final float DIST_UNIT = 10000f;
     // number of integers not edges
     private static final int MIN_SEGMENT_SIZE = 1 << 13;
     private static final float FACTOR = 1.5f;
-    // EDGES LAYOUT - keep in mind that we address integers here - not bytes!
+    // flush renumbers the nodes if more nodes are deleted
+    private static final float MAX_DELETED_RATIO = 0.1f;
+    // the stored files
+    static final String LATS = "lats";
+    static final String LONS = "lons";
+    static final String REFS = "refs";
+    static final String EDGES = "edges";
+    // a stored graph writes every page of the node arrays and every edge segment into its own file,
+    // both are limited to 1MB so that a small change rewrites only a few small files
+    static final int NODE_PAGE_SIZE = 1 << 16;
+    static final int MAX_STORED_SEGMENT_SIZE = 1 << 18;
+    // EDGES LAYOUT (also read by MappedGraphSafe) - keep in mind that we address integers here - not bytes!
     // one edge is referenced by two nodes A and B, where it is id(A) < id(B). flags are relative to A
-    private static final int LEN_DIST = 1;
-    private static final int LEN_NODEA_ID = 1;
-    private static final int LEN_NODEB_ID = 1;
-    private static final int LEN_FLAGS = 1;
-    private static final int LEN_LINKA = 1;
-    private static final int LEN_LINKB = 1;
-    private static final int LEN_EDGE = LEN_NODEA_ID + LEN_NODEB_ID + LEN_LINKA + LEN_LINKB + LEN_FLAGS + LEN_DIST;
+    static final int LEN_DIST = 1;
+    static final int LEN_NODEA_ID = 1;
+    static final int LEN_NODEB_ID = 1;
+    static final int LEN_FLAGS = 1;
+    static final int LEN_LINKA = 1;
+    static final int LEN_LINKB = 1;
+    static final int LEN_EDGE = LEN_NODEA_ID + LEN_NODEB_ID + LEN_LINKA + LEN_LINKB + LEN_FLAGS + LEN_DIST;
     protected Logger logger = LoggerFactory.getLogger(getClass());
     // nodes
     private float[] lats;
@@ -71,6 +108,29 @@ public class MemoryGraphSafe implements SaveableGraph {
     private int size;
     private String storageLocation;
     private MyBitSet deletedNodes;
+    private NodeOrder nodeOrder = NodeOrder.NONE;
+    // the order of the current node ids or null if nodes were changed after the last renumbering
+    private NodeOrder orderedBy;
+    // the version of the last save, incremented for every save
+    private int version;
+    // the version in which every file was written the last time, unchanged files are not rewritten
+    private Map<String, Integer> fileVersions = new LinkedHashMap<String, Integer>();
+    // the version where the current node ids were stored first, it names the log of the deleted nodes
+    private int logVersion;
+    // node ids changed since the last save => the log of the deleted nodes is invalid
+    private boolean idsChanged;
+    private boolean allDirty;
+    private final Set<String> dirtyFiles = new HashSet<String>();
+    // changed edge segments, separated from dirtyFiles as edges are written very often
+    private boolean[] dirtySegments = new boolean[0];
+    // the number of values in one stored file of lats, lons and refs
+    private int nodePageSize = NODE_PAGE_SIZE;
+    // changed pages of lats and lons, changed pages of refs
+    private boolean[] dirtyNodePages = new boolean[0];
+    private boolean[] dirtyRefPages = new boolean[0];
+    // nodes marked as deleted but not yet in the log
+    private TIntArrayList pendingDeletes = new TIntArrayList();
+    private int ioThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
 
     public MemoryGraphSafe(int cap) {
         this(null, cap);
@@ -88,6 +148,19 @@ public class MemoryGraphSafe implements SaveableGraph {
         }
     }
 
+    /**
+     * Renumbers the nodes in the next optimize call, see NodeOrder. Node ids from before are
+     * invalid afterwards - like for deleted nodes.
+     */
+    public MemoryGraphSafe setNodeOrder(NodeOrder nodeOrder) {
+        this.nodeOrder = nodeOrder;
+        return this;
+    }
+
+    public NodeOrder getNodeOrder() {
+        return nodeOrder;
+    }
+
     int getSegmentSize() {
         return edgesSegmentSize;
     }
@@ -109,14 +182,27 @@ public class MemoryGraphSafe implements SaveableGraph {
     public void setNode(int index, double lat, double lon) {
         // writeLock.lock();
         ensureNodeIndex(index);
+        orderedBy = null;
         lats[index] = (float) lat;
         lons[index] = (float) lon;
+        dirtyNodePages[index / nodePageSize] = true;
     }
 
     private void initEdges(int cap) {
+        initEdges(cap, storageLocation != null);
+    }
+
+    /**
+     * @param stored if true the segment size does not grow with the capacity as every segment is
+     * rewritten completely if one of its edges changes
+     */
+    private void initEdges(int cap, boolean stored) {
         int tmp = (int) (Math.log(cap * LEN_EDGE) / Math.log(2));
         edgesSegmentSize = Math.max((int) Math.pow(2, tmp), MIN_SEGMENT_SIZE);
+        if (stored)
+            edgesSegmentSize = Math.min(edgesSegmentSize, MAX_STORED_SEGMENT_SIZE);
         edgesSegments = new int[1][edgesSegmentSize];
+        dirtySegments = new boolean[1];
     }
 
     // Use ONLY within a writer lock area
@@ -124,7 +210,7 @@ public class MemoryGraphSafe implements SaveableGraph {
         if (pointer + LEN_EDGE < edgesSegmentSize * getSegments())
             return;
 
-        logger.info("Creating new edge segment " + edgesSegmentSize * 4f / (1 << 20) + " MB");
+        logger.debug("Creating new edge segment " + edgesSegmentSize * 4f / (1 << 20) + " MB");
         edgeCurrentSegment++;
         int[][] tmp = new int[edgeCurrentSegment + 1][];
         for (int i = 0; i < edgesSegments.length; i++) {
@@ -132,6 +218,7 @@ public class MemoryGraphSafe implements SaveableGraph {
         }
         tmp[edgeCurrentSegment] = new int[edgesSegmentSize];
         edgesSegments = tmp;
+        dirtySegments = Arrays.copyOf(dirtySegments, edgesSegments.length);
         // nextEdgePointer = 0;
     }
 
@@ -144,20 +231,36 @@ public class MemoryGraphSafe implements SaveableGraph {
         if (size <= lats.length)
             return -1;
 
+        int oldCap = lats.length;
         int cap = Math.max(10, Math.round(size * FACTOR));
         getDeletedNodes().ensureCapacity(cap);
         lats = Arrays.copyOf(lats, cap);
         lons = Arrays.copyOf(lons, cap);
         refToEdges = Arrays.copyOf(refToEdges, cap);
+        int pages = GraphSettings.getPages(cap, nodePageSize);
+        dirtyNodePages = Arrays.copyOf(dirtyNodePages, pages);
+        dirtyRefPages = Arrays.copyOf(dirtyRefPages, pages);
+        // the former last page gets longer
+        for (int i = oldCap / nodePageSize; i < pages; i++) {
+            dirtyNodePages[i] = true;
+            dirtyRefPages[i] = true;
+        }
         return cap;
     }
 
+    private void clearDirtyPages() {
+        int pages = GraphSettings.getPages(lats.length, nodePageSize);
+        dirtyNodePages = new boolean[pages];
+        dirtyRefPages = new boolean[pages];
+    }
+
     protected void initNodes(int cap) {
         lats = new float[cap];
         lons = new float[cap];
         // we ensure that edgePointer always starts from 1 => no need to fill with -1
         refToEdges = new int[cap];
         deletedNodes = new MyOpenBitSet(cap);
+        clearDirtyPages();
     }
 
     @Override
@@ -182,6 +285,7 @@ public class MemoryGraphSafe implements SaveableGraph {
         // writeLock.lock();
         ensureNodeIndex(a);
         ensureNodeIndex(b);
+        orderedBy = null;
 
         internalEdgeAdd(a, b, distance, flags);
     }
@@ -191,6 +295,8 @@ public class MemoryGraphSafe implements SaveableGraph {
         int segNumber = pointer / edgesSegmentSize;
         int segPointer = pointer % edgesSegmentSize;
         edgesSegments[segNumber][segPointer] = data;
+        if (segNumber < dirtySegments.length)
+            dirtySegments[segNumber] = true;
     }
 
     private int getFromEdgeArea(int pointer) {
@@ -219,10 +325,14 @@ public class MemoryGraphSafe implements SaveableGraph {
     }
 
     protected void internalEdgeAdd(int fromNodeId, int toNodeId, double dist, int flags) {
+        rawEdgeAdd(fromNodeId, toNodeId, distToInt(dist), flags);
+    }
+
+    private void rawEdgeAdd(int fromNodeId, int toNodeId, int intDist, int flags) {
         int newOrExistingEdgePointer = nextEdgePointer();
         connectNewEdge(fromNodeId, newOrExistingEdgePointer);
         connectNewEdge(toNodeId, newOrExistingEdgePointer);
-        writeEdge(newOrExistingEdgePointer, fromNodeId, toNodeId, EMPTY_LINK, EMPTY_LINK, flags, dist);
+        writeEdge(newOrExistingEdgePointer, fromNodeId, toNodeId, EMPTY_LINK, EMPTY_LINK, flags, intDist);
     }
 
     private void connectNewEdge(int fromNodeId, int newOrExistingEdgePointer) {
@@ -232,13 +342,13 @@ public class MemoryGraphSafe implements SaveableGraph {
             int lastEdgePointer = getLastEdgePointer(fromNodeId, edgePointer);
             saveToEdgeArea(lastEdgePointer, newOrExistingEdgePointer);
         } else {
-            refToEdges[fromNodeId] = newOrExistingEdgePointer;
+            setRef(fromNodeId, newOrExistingEdgePointer);
         }
     }
 
     // writes distance, flags, nodeThis, *nodeOther* and nextEdgePointer
     private void writeEdge(int edgePointer, int nodeThis, int nodeOther,
-            int nextEdgePointer, int nextEdgeOtherPointer, int flags, double dist) {
+            int nextEdgePointer, int nextEdgeOtherPointer, int flags, int intDist) {
         ensureEdgePointer(edgePointer);
 
         if (nodeThis > nodeOther) {
@@ -266,7 +376,7 @@ public class MemoryGraphSafe implements SaveableGraph {
         saveToEdgeArea(edgePointer, flags);
         edgePointer += LEN_FLAGS;
 
-        saveToEdgeArea(edgePointer, (int) (dist * DIST_UNIT));
+        saveToEdgeArea(edgePointer, intDist);
         //edgePointer += LEN_DIST;
     }
 
@@ -288,13 +398,21 @@ public class MemoryGraphSafe implements SaveableGraph {
         int linkPos = getLinkPosInEdgeArea(node, otherNode, edgeToDeletePointer);
         int nextEdge = getFromEdgeArea(linkPos);
         if (edgeToUpdatePointer < 0)
-            refToEdges[node] = nextEdge;
+            setRef(node, nextEdge);
         else {
-            int link = getLinkPosInEdgeArea(node, otherNode, edgeToUpdatePointer);
+            // the link slot depends on the other node of the edge to update
+            int link = getLinkPosInEdgeArea(node, getOtherNode(node, edgeToUpdatePointer), edgeToUpdatePointer);
             saveToEdgeArea(link, nextEdge);
         }
     }
 
+    private void setRef(int node, int edgePointer) {
+        if (refToEdges[node] == edgePointer)
+            return;
+        refToEdges[node] = edgePointer;
+        dirtyRefPages[node / nodePageSize] = true;
+    }
+
     private int nextEdgePointer() {
         edgeNextGlobalPointer += LEN_EDGE;
         return edgeNextGlobalPointer;
@@ -317,19 +435,29 @@ public class MemoryGraphSafe implements SaveableGraph {
         return lastLink;
     }
 
+    /**
+     * Edges to deleted nodes and of deleted nodes are skipped
+     */
     @Override
     public EdgeIterator getEdges(int nodeId) {
-        return new EdgeIterable(nodeId, true, true);
+        return new EdgeIterable(nodeId, true, true, true);
     }
 
     @Override
     public EdgeIterator getIncoming(int nodeId) {
-        return new EdgeIterable(nodeId, true, false);
+        return new EdgeIterable(nodeId, true, false, true);
     }
 
     @Override
     public EdgeIterator getOutgoing(int nodeId) {
-        return new EdgeIterable(nodeId, false, true);
+        return new EdgeIterable(nodeId, false, true, true);
+    }
+
+    /**
+     * @return all stored edges including the edges to deleted nodes
+     */
+    private EdgeIterable getAllEdges(int nodeId) {
+        return new EdgeIterable(nodeId, true, true, false);
     }
 
     @Override
@@ -342,6 +470,7 @@ public class MemoryGraphSafe implements SaveableGraph {
         int lastEdgePointer;
         boolean in;
         boolean out;
+        boolean skipDeleted;
         boolean foundNext;
         // edge properties        
         int flags;
@@ -350,11 +479,12 @@ public class MemoryGraphSafe implements SaveableGraph {
         int fromNode;
         int nextEdgePointer;
 
-        public EdgeIterable(int node, boolean in, boolean out) {
+        public EdgeIterable(int node, boolean in, boolean out, boolean skipDeleted) {
             this.fromNode = node;
-            this.nextEdgePointer = refToEdges[node];
             this.in = in;
             this.out = out;
+            this.skipDeleted = skipDeleted && deletedNodes != null;
+            this.nextEdgePointer = this.skipDeleted && deletedNodes.contains(node) ? EMPTY_LINK : refToEdges[node];
         }
 
         void readNext() {
@@ -376,7 +506,8 @@ public class MemoryGraphSafe implements SaveableGraph {
             if (fromNode > nodeId)
                 flags = CarFlags.swapDirection(flags);
 
-            if (!in && !CarFlags.isForward(flags) || !out && !CarFlags.isBackward(flags)) {
+            if (!in && !CarFlags.isForward(flags) || !out && !CarFlags.isBackward(flags)
+                    || skipDeleted && deletedNodes.contains(nodeId)) {
                 // skip this edge as it does not fit to defined filter
             } else {
                 // position to distance
@@ -430,6 +561,14 @@ public class MemoryGraphSafe implements SaveableGraph {
         return integ / DIST_UNIT;
     }
 
+    private int distToInt(double dist) {
+        return (int) (dist * DIST_UNIT);
+    }
+
+    private int getIntDist(int pointer) {
+        return getFromEdgeArea(pointer + LEN_EDGE - LEN_DIST);
+    }
+
     private int getFlags(int pointer) {
         return getFromEdgeArea(pointer + LEN_EDGE - LEN_DIST - LEN_FLAGS);
     }
@@ -459,6 +598,8 @@ public class MemoryGraphSafe implements SaveableGraph {
         clonedGraph.edgesSegmentSize = edgesSegmentSize;
         clonedGraph.edgeNextGlobalPointer = edgeNextGlobalPointer;
         clonedGraph.size = size;
+        clonedGraph.nodeOrder = nodeOrder;
+        clonedGraph.orderedBy = orderedBy;
         return clonedGraph;
     }
 
@@ -471,7 +612,10 @@ public class MemoryGraphSafe implements SaveableGraph {
     @Override
     public void markNodeDeleted(int index) {
         // writeLock.lock();
+        if (getDeletedNodes().contains(index))
+            return;
         getDeletedNodes().add(index);
+        pendingDeletes.add(index);
     }
 
     @Override
@@ -481,13 +625,27 @@ public class MemoryGraphSafe implements SaveableGraph {
     }
 
     /**
-     * Saves this graph to disc
+     * Saves the changes of this graph to disc. Only changed files are rewritten. Deleted nodes are
+     * only appended to a log instead of renumbering all nodes, their edges stay in the files and
+     * are skipped while iterating. The graph is optimized only for the first save or if too many
+     * nodes are deleted.
      */
     @Override
     public void flush() {
-        // we can avoid storing the deletedNodes bitset but we need to defragmentate before saving!
-        // writeLock.lock();        
-        optimize();
+        // writeLock.lock();
+        if (fileVersions.isEmpty() || getDeletedNodes().getCardinality() > size * MAX_DELETED_RATIO)
+            optimize();
+        // the log refers to the stored node ids
+        if (idsChanged)
+            save();
+        if (storageLocation != null && !pendingDeletes.isEmpty()) {
+            try {
+                appendDeleteLog(getDeleteLog(storageLocation, logVersion), pendingDeletes.toArray());
+            } catch (IOException ex) {
+                throw new RuntimeException("Couldn't write deleted nodes to disc. location=" + storageLocation, ex);
+            }
+            pendingDeletes.clear();
+        }
         save();
     }
 
@@ -495,6 +653,21 @@ public class MemoryGraphSafe implements SaveableGraph {
     public void optimize() {
         // writeLock.lock();
         int deleted = getDeletedNodes().getCardinality();
+        if (nodeOrder != NodeOrder.NONE && (deleted > 0 || orderedBy != nodeOrder) && size > 0) {
+            // renumbering rewrites all nodes and edges anyway => skip the deleted nodes there
+            StopWatch sw = new StopWatch().start();
+            int[] newToOld = nodeOrder == NodeOrder.SPATIAL ? createSpatialOrder() : createBreadthFirstOrder();
+            reorderNodes(newToOld);
+            deletedNodes = null;
+            pendingDeletes.clear();
+            idsChanged = true;
+            allDirty = true;
+            orderedBy = nodeOrder;
+            logger.info("renumbered " + size + " nodes " + nodeOrder + " in " + sw.stop().getSeconds()
+                    + "s, deleted " + deleted);
+            return;
+        }
+
         if (deleted == 0)
             return;
 
@@ -502,6 +675,123 @@ public class MemoryGraphSafe implements SaveableGraph {
         inPlaceDelete(deleted);
 //        } else
 //            replacingDelete(deleted);
+        pendingDeletes.clear();
+        idsChanged = true;
+        allDirty = true;
+        orderedBy = null;
+    }
+
+    /**
+     * @return the old ids of the not deleted nodes sorted along a Hilbert curve over the bounds of
+     * the graph
+     */
+    int[] createSpatialOrder() {
+        MyBitSet deleted = getDeletedNodes();
+        int[] ids = new int[size - deleted.getCardinality()];
+        float minLat = Float.MAX_VALUE, maxLat = -Float.MAX_VALUE;
+        float minLon = Float.MAX_VALUE, maxLon = -Float.MAX_VALUE;
+        for (int i = 0, j = 0; i < size; i++) {
+            if (deleted.contains(i))
+                continue;
+
+            ids[j++] = i;
+            minLat = Math.min(minLat, lats[i]);
+            maxLat = Math.max(maxLat, lats[i]);
+            minLon = Math.min(minLon, lons[i]);
+            maxLon = Math.max(maxLon, lons[i]);
+        }
+        SpatialKeyCurve curve = new HilbertKeyAlgo(62).setInitialBounds(minLon, maxLon, minLat, maxLat);
+        long[] keys = new long[ids.length];
+        for (int j = 0; j < ids.length; j++) {
+            keys[j] = curve.encode(lats[ids[j]], lons[ids[j]]);
+        }
+        // stable => nodes of the same cell keep their order
+        int[] order = Helper.sortUnsigned(keys);
+        for (int j = 0; j < order.length; j++) {
+            order[j] = ids[order[j]];
+        }
+        return order;
+    }
+
+    /**
+     * @return the old ids of the not deleted nodes in the order of a breadth first search for every
+     * subnetwork
+     */
+    int[] createBreadthFirstOrder() {
+        final MyBitSet deleted = getDeletedNodes();
+        final int[] newToOld = new int[size - deleted.getCardinality()];
+        final AtomicInteger counter = new AtomicInteger(0);
+        final MyBitSet visited = new MyOpenBitSet(size);
+        for (int start = 0; start < size; start++) {
+            if (visited.contains(start) || deleted.contains(start))
+                continue;
+
+            new XFirstSearch() {
+                @Override protected MyBitSet createBitSet(int size) {
+                    return visited;
+                }
+
+                @Override
+                protected EdgeIterator getEdges(Graph g, int current) {
+                    return g.getEdges(current);
+                }
+
+                @Override protected boolean goFurther(int nodeId) {
+                    if (deleted.contains(nodeId))
+                        return false;
+
+                    newToOld[counter.getAndIncrement()] = nodeId;
+                    return true;
+                }
+            }.start(this, start, false);
+        }
+        return newToOld;
+    }
+
+    /**
+     * Renumbers the nodes: the node newToOld[i] gets the id i, nodes not contained are removed. The
+     * edges are rewritten in the new node order so that the edges of a node are close to the edges
+     * of its neighbours.
+     */
+    protected void reorderNodes(int[] newToOld) {
+        int nodes = newToOld.length;
+        int[] oldToNew = new int[size];
+        Arrays.fill(oldToNew, -1);
+        for (int newId = 0; newId < nodes; newId++) {
+            oldToNew[newToOld[newId]] = newId;
+        }
+
+        // the edges are allocated below with the segment size of a stored graph if necessary
+        MemoryGraphSafe sorted = new MemoryGraphSafe(null, lats.length, 0);
+        sorted.initEdges(getMaxEdges(), storageLocation != null);
+        for (int newId = 0; newId < nodes; newId++) {
+            int oldId = newToOld[newId];
+            sorted.lats[newId] = lats[oldId];
+            sorted.lons[newId] = lons[oldId];
+        }
+        sorted.size = nodes;
+
+        for (int newId = 0; newId < nodes; newId++) {
+            EdgeIterable iter = getAllEdges(newToOld[newId]);
+            while (iter.next()) {
+                int otherId = oldToNew[iter.node()];
+                // add every edge only once: from the node with the smaller new id
+                if (otherId <= newId)
+                    continue;
+
+                sorted.rawEdgeAdd(newId, otherId, getIntDist(iter.edgePointer()), iter.flags());
+            }
+        }
+
+        lats = sorted.lats;
+        lons = sorted.lons;
+        refToEdges = sorted.refToEdges;
+        edgesSegments = sorted.edgesSegments;
+        dirtySegments = new boolean[edgesSegments.length];
+        edgesSegmentSize = sorted.edgesSegmentSize;
+        edgeCurrentSegment = sorted.edgeCurrentSegment;
+        edgeNextGlobalPointer = sorted.edgeNextGlobalPointer;
+        size = nodes;
     }
 
     /**
@@ -521,7 +811,7 @@ public class MemoryGraphSafe implements SaveableGraph {
         final TIntIntHashMap oldToNewIndexMap = new TIntIntHashMap(deleted, 1.5f, -1, -1);
         MyBitSetImpl toUpdatedSet = new MyBitSetImpl(deleted * 3);
         for (int delNode = deletedNodes.next(0); delNode >= 0; delNode = deletedNodes.next(delNode + 1)) {
-            EdgeIterator delEdgesIter = getEdges(delNode);
+            EdgeIterator delEdgesIter = getAllEdges(delNode);
             while (delEdgesIter.next()) {
                 int currNode = delEdgesIter.node();
                 if (deletedNodes.contains(currNode))
@@ -549,7 +839,7 @@ public class MemoryGraphSafe implements SaveableGraph {
         // all deleted nodes could be connected to existing. remove the connections
         for (int toUpdateNode = toUpdatedSet.next(0); toUpdateNode >= 0; toUpdateNode = toUpdatedSet.next(toUpdateNode + 1)) {
             // remove all edges connected to the deleted nodes
-            EdgeIterable nodesConnectedToDelIter = (EdgeIterable) getEdges(toUpdateNode);
+            EdgeIterable nodesConnectedToDelIter = getAllEdges(toUpdateNode);
             int prev = -1;
             while (nodesConnectedToDelIter.next()) {
                 int nodeId = nodesConnectedToDelIter.node();
@@ -564,7 +854,7 @@ public class MemoryGraphSafe implements SaveableGraph {
         // marks connected nodes to rewrite the edges
         for (int i = 0; i < itemsToMove; i++) {
             int oldI = oldIndices[i];
-            EdgeIterator movedEdgeIter = getEdges(oldI);
+            EdgeIterator movedEdgeIter = getAllEdges(oldI);
             while (movedEdgeIter.next()) {
                 if (deletedNodes.contains(movedEdgeIter.node()))
                     throw new IllegalStateException("shouldn't happen the edge to the node " + movedEdgeIter.node() + " should be already deleted. " + oldI);
@@ -609,8 +899,8 @@ public class MemoryGraphSafe implements SaveableGraph {
             int linkA = getFromEdgeArea(getLinkPosInEdgeArea(nodeA, nodeB, edgePointer));
             int linkB = getFromEdgeArea(getLinkPosInEdgeArea(nodeB, nodeA, edgePointer));
             int flags = getFlags(edgePointer);
-            float distance = intToDist(getFromEdgeArea(edgePointer + LEN_EDGE - LEN_DIST));
-            writeEdge(edgePointer, updatedA, updatedB, linkA, linkB, flags, distance);
+            // keep the stored integer - a conversion to float and back could change it
+            writeEdge(edgePointer, updatedA, updatedB, linkA, linkB, flags, getIntDist(edgePointer));
         }
 
         size -= deleted;
@@ -664,63 +954,479 @@ public class MemoryGraphSafe implements SaveableGraph {
         deletedNodes = null;
     }
 
+    /**
+     * Saves the changed files in parallel into a new version directory, unchanged files stay in the
+     * directory of their version. The settings file is the commit point: it is written to a
+     * temporary file and renamed at the end, so it always points to completely written files. All
+     * files and directories are synced before and after the rename. Files not referenced anymore are
+     * removed afterwards.
+     */
     public boolean save() {
         if (storageLocation == null)
             return false;
         // readLock.lock();
-        try {
-            File tmp = new File(storageLocation);
-            if (!tmp.exists())
-                tmp.mkdirs();
-
-            Helper.writeFloats(storageLocation + "/lats", lats);
-            Helper.writeFloats(storageLocation + "/lons", lons);
-            Helper.writeInts(storageLocation + "/refs", refToEdges);
-            for (int i = 0; i < edgesSegments.length; i++) {
-                Helper.writeInts(storageLocation + "/edges" + i, edgesSegments[i]);
+        for (int i = 0; i < dirtySegments.length; i++) {
+            if (dirtySegments[i])
+                dirtyFiles.add(EDGES + i);
+        }
+        for (int i = 0; i < dirtyNodePages.length; i++) {
+            if (dirtyNodePages[i]) {
+                dirtyFiles.add(LATS + i);
+                dirtyFiles.add(LONS + i);
+            }
+            if (dirtyRefPages[i])
+                dirtyFiles.add(REFS + i);
+        }
+
+        int newVersion = version + 1;
+        File dir = new File(getStorageDir(storageLocation, newVersion));
+        Map<String, Callable<Object>> allTasks = new LinkedHashMap<String, Callable<Object>>();
+        addSaveTasks(allTasks, dir.getPath());
+        Map<String, Integer> newVersions = new LinkedHashMap<String, Integer>();
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (Map.Entry<String, Callable<Object>> e : allTasks.entrySet()) {
+            Integer fileVersion = fileVersions.get(e.getKey());
+            if (fileVersion == null || allDirty || dirtyFiles.contains(e.getKey())) {
+                tasks.add(syncAfter(e.getValue(), new File(dir, e.getKey())));
+                fileVersion = newVersion;
             }
-            Helper.writeSettings(storageLocation + "/settings", size, creationTime, edgeNextGlobalPointer, edgeCurrentSegment, edgesSegmentSize);
+            newVersions.put(e.getKey(), fileVersion);
+        }
+        if (tasks.isEmpty() && newVersions.equals(fileVersions) && !idsChanged)
             return true;
+
+        // remove leftovers of an interrupted save
+        Helper.deleteDir(dir);
+        dir.mkdirs();
+        int newLogVersion = idsChanged || fileVersions.isEmpty() ? newVersion : logVersion;
+        try {
+            runTasks(tasks);
+            syncDir(dir);
+            syncDir(new File(storageLocation));
+
+            File settings = new File(storageLocation, "settings");
+            File tmpSettings = new File(storageLocation, "settings.tmp");
+            GraphSettings newSettings = new GraphSettings();
+            newSettings.size = size;
+            newSettings.creationTime = creationTime;
+            newSettings.edgeNextGlobalPointer = edgeNextGlobalPointer;
+            newSettings.edgeCurrentSegment = edgeCurrentSegment;
+            newSettings.edgesSegmentSize = edgesSegmentSize;
+            newSettings.nodePageSize = nodePageSize;
+            newSettings.nodeCapacity = lats.length;
+            newSettings.orderedBy = orderedBy == null ? null : orderedBy.name();
+            newSettings.version = newVersion;
+            newSettings.fileVersions = newVersions;
+            newSettings.logVersion = newLogVersion;
+            newSettings.write(tmpSettings);
+            sync(tmpSettings);
+            if (!tmpSettings.renameTo(settings)) {
+                // not atomic but some platforms do not replace existing files
+                settings.delete();
+                if (!tmpSettings.renameTo(settings))
+                    throw new IOException("Cannot rename " + tmpSettings + " to " + settings);
+            }
+            syncDir(new File(storageLocation));
         } catch (IOException ex) {
             throw new RuntimeException("Couldn't write data to disc. location=" + storageLocation, ex);
         }
+
+        logger.info("saved " + tasks.size() + " of " + allTasks.size() + " files to " + dir);
+        version = newVersion;
+        fileVersions = newVersions;
+        logVersion = newLogVersion;
+        idsChanged = false;
+        allDirty = false;
+        dirtyFiles.clear();
+        dirtySegments = new boolean[edgesSegments.length];
+        clearDirtyPages();
+        deleteUnreferenced();
+        return true;
+    }
+
+    /**
+     * Marks the specified file as changed so that the next save rewrites it
+     */
+    protected void markDirty(String file) {
+        dirtyFiles.add(file);
+    }
+
+    /**
+     * Adds the task to write every file of this graph into the specified directory. Only the tasks
+     * of new or changed files are executed.
+     */
+    protected void addSaveTasks(Map<String, Callable<Object>> tasks, final String dir) {
+        int pages = GraphSettings.getPages(lats.length, nodePageSize);
+        for (int i = 0; i < pages; i++) {
+            final int page = i;
+            final int offset = page * nodePageSize;
+            final int len = Math.min(nodePageSize, lats.length - offset);
+            tasks.put(LATS + i, new Callable<Object>() {
+                @Override public Object call() throws IOException {
+                    Helper.writeFloats(dir + "/" + LATS + page, lats, offset, len, true);
+                    return null;
+                }
+            });
+            tasks.put(LONS + i, new Callable<Object>() {
+                @Override public Object call() throws IOException {
+                    Helper.writeFloats(dir + "/" + LONS + page, lons, offset, len, true);
+                    return null;
+                }
+            });
+            tasks.put(REFS + i, new Callable<Object>() {
+                @Override public Object call() throws IOException {
+                    Helper.writeInts(dir + "/" + REFS + page, refToEdges, offset, len, true);
+                    return null;
+                }
+            });
+        }
+        for (int i = 0; i < edgesSegments.length; i++) {
+            final int segment = i;
+            tasks.put(EDGES + i, new Callable<Object>() {
+                @Override public Object call() throws IOException {
+                    Helper.writeInts(dir + "/" + EDGES + segment, edgesSegments[segment], true);
+                    return null;
+                }
+            });
+        }
     }
 
     public boolean loadExisting(String storageDir) {
-        if (storageDir == null || !new File(storageDir).exists())
+        // no settings => no graph or the first save was interrupted
+        if (storageDir == null || !new File(storageDir, "settings").exists())
             return false;
 
         //writeLock.lock();
         try {
-            Object[] ob = Helper.readSettings(storageLocation + "/settings");
-            if (ob.length < 3)
-                throw new IllegalStateException("invalid file format");
-
-            size = (Integer) ob[0];
-            creationTime = (Long) ob[1];
-            edgeNextGlobalPointer = (Integer) ob[2];
-            edgeCurrentSegment = (Integer) ob[3];
-            edgesSegmentSize = (Integer) ob[4];
+            GraphSettings settings = GraphSettings.read(new File(storageLocation, "settings"));
+            size = settings.size;
+            creationTime = settings.creationTime;
+            edgeNextGlobalPointer = settings.edgeNextGlobalPointer;
+            edgeCurrentSegment = settings.edgeCurrentSegment;
+            edgesSegmentSize = settings.edgesSegmentSize;
+            nodePageSize = settings.nodePageSize;
+            if (settings.orderedBy != null)
+                orderedBy = NodeOrder.valueOf(settings.orderedBy);
+            version = settings.version;
+            fileVersions = settings.fileVersions;
+            logVersion = settings.logVersion;
             logger.info("found graph " + storageLocation + " with nodes:" + size
                     + ", edges:" + edgeNextGlobalPointer / LEN_EDGE
                     + ", edges segments:" + (edgeCurrentSegment + 1)
                     + ", edges segmentSize:" + edgesSegmentSize
+                    + ", version:" + version
                     + ", created-at:" + new Date(creationTime));
 
-            lats = Helper.readFloats(storageLocation + "/lats");
-            lons = Helper.readFloats(storageLocation + "/lons");
-            refToEdges = Helper.readInts(storageLocation + "/refs");
             edgesSegments = new int[edgeCurrentSegment + 1][];
-            for (int i = 0; i <= edgeCurrentSegment; i++) {
-                edgesSegments[i] = Helper.readInts(storageLocation + "/edges" + i);
+            if (nodePageSize > 0) {
+                // the pages are read into the arrays
+                lats = new float[settings.nodeCapacity];
+                lons = new float[settings.nodeCapacity];
+                refToEdges = new int[settings.nodeCapacity];
+            }
+            Map<String, Callable<Object>> tasks = new LinkedHashMap<String, Callable<Object>>();
+            addLoadTasks(tasks);
+            if (fileVersions.isEmpty()) {
+                // all files were written in the same version
+                for (String file : tasks.keySet()) {
+                    fileVersions.put(file, version);
+                }
             }
+            runTasks(new ArrayList<Callable<Object>>(tasks.values()));
+            if (nodePageSize == 0 || edgesSegmentSize > MAX_STORED_SEGMENT_SIZE) {
+                // written by a former release => the next save rewrites all files in small pages
+                nodePageSize = NODE_PAGE_SIZE;
+                splitSegments();
+                allDirty = true;
+            }
+            dirtySegments = new boolean[edgesSegments.length];
+            clearDirtyPages();
             deletedNodes = new MyOpenBitSet(lats.length);
+            int[] deleted = readDeleteLog(getDeleteLog(storageLocation, logVersion));
+            for (int node : deleted) {
+                deletedNodes.add(node);
+            }
+            if (deleted.length > 0)
+                logger.info("applied " + deleted.length + " deleted nodes from the log");
             return true;
         } catch (IOException ex) {
             throw new RuntimeException("Couldn't load data from disc. location=" + storageLocation, ex);
         }
     }
 
+    /**
+     * Adds the task to read every file of this graph, see getStoredFile
+     */
+    protected void addLoadTasks(Map<String, Callable<Object>> tasks) {
+        if (nodePageSize == 0)
+            addOldNodeLoadTasks(tasks);
+        int pages = nodePageSize == 0 ? 0 : GraphSettings.getPages(lats.length, nodePageSize);
+        for (int i = 0; i < pages; i++) {
+            final int page = i;
+            final int offset = page * nodePageSize;
+            final int len = Math.min(nodePageSize, lats.length - offset);
+            tasks.put(LATS + i, new Callable<Object>() {
+                @Override public Object call() throws IOException {
+                    checkPage(Helper.readFloats(getStoredFile(LATS + page), lats, offset), len, LATS + page);
+                    return null;
+                }
+            });
+            tasks.put(LONS + i, new Callable<Object>() {
+                @Override public Object call() throws IOException {
+                    checkPage(Helper.readFloats(getStoredFile(LONS + page), lons, offset), len, LONS + page);
+                    return null;
+                }
+            });
+            tasks.put(REFS + i, new Callable<Object>() {
+                @Override public Object call() throws IOException {
+                    checkPage(Helper.readInts(getStoredFile(REFS + page), refToEdges, offset), len, REFS + page);
+                    return null;
+                }
+            });
+        }
+        for (int i = 0; i < edgesSegments.length; i++) {
+            final int segment = i;
+            tasks.put(EDGES + i, new Callable<Object>() {
+                @Override public Object call() throws IOException {
+                    edgesSegments[segment] = Helper.readInts(getStoredFile(EDGES + segment));
+                    return null;
+                }
+            });
+        }
+    }
+
+    /**
+     * Adds the tasks to read the node arrays stored in one file each by a former release
+     */
+    private void addOldNodeLoadTasks(Map<String, Callable<Object>> tasks) {
+        tasks.put(LATS, new Callable<Object>() {
+            @Override public Object call() throws IOException {
+                lats = Helper.readFloats(getStoredFile(LATS));
+                return null;
+            }
+        });
+        tasks.put(LONS, new Callable<Object>() {
+            @Override public Object call() throws IOException {
+                lons = Helper.readFloats(getStoredFile(LONS));
+                return null;
+            }
+        });
+        tasks.put(REFS, new Callable<Object>() {
+            @Override public Object call() throws IOException {
+                refToEdges = Helper.readInts(getStoredFile(REFS));
+                return null;
+            }
+        });
+    }
+
+    private void checkPage(int read, int expected, String file) throws IOException {
+        if (read != expected)
+            throw new IOException("file " + file + " has " + read + " values instead of " + expected
+                    + " in " + storageLocation);
+    }
+
+    /**
+     * Splits the edge segments of a graph stored by a former release into segments of at most
+     * MAX_STORED_SEGMENT_SIZE integers. The segment sizes are powers of two.
+     */
+    private void splitSegments() {
+        if (edgesSegmentSize <= MAX_STORED_SEGMENT_SIZE)
+            return;
+
+        int parts = edgesSegmentSize / MAX_STORED_SEGMENT_SIZE;
+        int[][] tmp = new int[edgesSegments.length * parts][];
+        for (int i = 0; i < tmp.length; i++) {
+            int from = (i % parts) * MAX_STORED_SEGMENT_SIZE;
+            tmp[i] = Arrays.copyOfRange(edgesSegments[i / parts], from, from + MAX_STORED_SEGMENT_SIZE);
+        }
+        edgesSegments = tmp;
+        edgesSegmentSize = MAX_STORED_SEGMENT_SIZE;
+        edgeCurrentSegment = tmp.length - 1;
+    }
+
+    /**
+     * @return the path of the stored file in the directory of its version
+     */
+    protected String getStoredFile(String file) {
+        Integer fileVersion = fileVersions.get(file);
+        if (fileVersion == null)
+            throw new IllegalStateException("file " + file + " is not stored in " + storageLocation);
+        return getStorageDir(storageLocation, fileVersion) + "/" + file;
+    }
+
+    /**
+     * Runs the tasks on at most ioThreads threads and waits for all of them
+     */
+    private void runTasks(List<Callable<Object>> tasks) throws IOException {
+        if (tasks.isEmpty())
+            return;
+
+        ExecutorService service = Executors.newFixedThreadPool(Math.min(Math.max(1, ioThreads), tasks.size()));
+        try {
+            for (Future<Object> future : service.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while accessing " + storageLocation, ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException)
+                throw (IOException) ex.getCause();
+            throw new RuntimeException(ex.getCause());
+        } finally {
+            service.shutdown();
+        }
+    }
+
+    private static void sync(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return the task which syncs the file after it was written by the specified task
+     */
+    private static Callable<Object> syncAfter(final Callable<Object> task, final File file) {
+        return new Callable<Object>() {
+            @Override public Object call() throws Exception {
+                task.call();
+                sync(file);
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Syncs the entries of the directory, e.g. a new file or a rename. A directory can only be
+     * opened via java.nio.file (Java 7) which is called via reflection to stay compatible with
+     * Java 6 - there and on platforms which cannot open directories (Windows) nothing is done.
+     */
+    private static void syncDir(File dir) throws IOException {
+        FileChannel channel;
+        try {
+            Class<?> pathClass = Class.forName("java.nio.file.Path");
+            Class<?> optionClass = Class.forName("java.nio.file.OpenOption");
+            Object options = Array.newInstance(optionClass, 1);
+            Array.set(options, 0, Class.forName("java.nio.file.StandardOpenOption").getField("READ").get(null));
+            Object path = File.class.getMethod("toPath").invoke(dir);
+            channel = (FileChannel) FileChannel.class.getMethod("open", pathClass, options.getClass())
+                    .invoke(null, path, options);
+        } catch (ClassNotFoundException ex) {
+            return;
+        } catch (InvocationTargetException ex) {
+            // e.g. access denied for directories on Windows
+            return;
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        }
+        try {
+            channel.force(true);
+        } catch (IOException ex) {
+            // some file systems do not support syncing directories
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Removes the version directories and the files in the location which are not referenced from
+     * the settings. Files in the location itself are the layout of version 0. Only files this graph
+     * writes are removed, i.e. the data files, older delete logs and the temporary settings.
+     */
+    private void deleteUnreferenced() {
+        File[] files = new File(storageLocation).listFiles();
+        if (files == null)
+            return;
+
+        Map<String, Callable<Object>> tasks = new LinkedHashMap<String, Callable<Object>>();
+        addSaveTasks(tasks, storageLocation);
+        String log = new File(getDeleteLog(storageLocation, logVersion)).getName();
+        for (File f : files) {
+            String name = f.getName();
+            if (f.isDirectory()) {
+                if (name.matches("v[0-9]+") && !fileVersions.containsValue(Integer.parseInt(name.substring(1))))
+                    Helper.deleteDir(f);
+                continue;
+            }
+
+            boolean owned = tasks.containsKey(name) || fileVersions.containsKey(name)
+                    || name.matches("(" + LATS + "|" + LONS + "|" + REFS + "|" + EDGES + ")[0-9]*")
+                    || name.equals("settings.tmp")
+                    || name.matches("deleted[0-9]+") && !name.equals(log);
+            if (owned && !Integer.valueOf(0).equals(fileVersions.get(name)))
+                f.delete();
+        }
+    }
+
+    /**
+     * @return the log of the deleted nodes which refers to the node ids of the specified version
+     */
+    static String getDeleteLog(String location, int logVersion) {
+        return location + "/deleted" + logVersion;
+    }
+
+    /**
+     * Appends the node ids to the log and syncs it. An incompletely written id of a former append
+     * is overwritten.
+     */
+    static void appendDeleteLog(String file, int[] nodes) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(4 * nodes.length);
+        bb.asIntBuffer().put(nodes);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long length = raf.length() / 4 * 4;
+            raf.setLength(length);
+            raf.seek(length);
+            raf.write(bb.array());
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return the node ids of the log or an empty array if there is no log
+     */
+    static int[] readDeleteLog(String file) throws IOException {
+        if (!new File(file).exists())
+            return new int[0];
+
+        TIntArrayList list = new TIntArrayList();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                list.add(in.readInt());
+            }
+        } catch (EOFException ex) {
+            // end of log, an incomplete id is ignored
+        } finally {
+            in.close();
+        }
+        return list.toArray();
+    }
+
+    /**
+     * @return the directory of the files of the specified version. Version 0 means the files are
+     * directly in the location.
+     */
+    static String getStorageDir(String location, int version) {
+        if (version == 0)
+            return location;
+        return location + "/v" + version;
+    }
+
+    /**
+     * Sets the maximum number of threads to write or read the files in parallel
+     */
+    public MemoryGraphSafe setIOThreads(int ioThreads) {
+        this.ioThreads = ioThreads;
+        return this;
+    }
+
     public String getStorageLocation() {
         return storageLocation;
     }
@@ -0,0 +1,250 @@
+/*
+ *  Copyright 2012 Peter Karich info@jetsli.de
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.graph.storage;
+
+import de.jetsli.graph.util.EdgeIterator;
+import de.jetsli.graph.util.Helper;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Checks deleting nodes, flushing and reloading a MemoryGraphSafe.
+ *
+ * @author Peter Karich
+ */
+public class MemoryGraphSafeIntegrationTests {
+
+    private final String dir;
+    private final List<String> list = new ArrayList<String>();
+
+    public MemoryGraphSafeIntegrationTests(String dir) {
+        this.dir = dir;
+    }
+
+    public static void main(String[] args) {
+        new MemoryGraphSafeIntegrationTests(args.length > 0 ? args[0] : "/tmp/memory-graph-safe-test").start();
+    }
+
+    public void start() {
+        testDeleteOnPath();
+        testSingleDeleteInLargeGraph();
+        testDeleteThenPartialSave();
+        testSmallChangesWriteLittle();
+        Helper.deleteDir(new File(dir));
+
+        if (list.size() > 0) {
+            System.out.println("\n-------------------------------\n");
+            System.out.println("FOUND " + list.size() + " ERRORS.");
+            for (String s : list) {
+                System.out.println(s);
+            }
+        } else
+            System.out.println("SUCCESS!");
+    }
+
+    private MemoryGraphSafe createGraph() {
+        Helper.deleteDir(new File(dir));
+        return new MemoryGraphSafe(dir, 10, 10);
+    }
+
+    void testDeleteOnPath() {
+        MemoryGraphSafe g = createGraph();
+        for (int i = 0; i < 20; i++) {
+            g.setNode(i, i, i);
+        }
+        for (int i = 0; i < 19; i++) {
+            g.edge(i, i + 1, 10, true);
+        }
+        g.edge(9, 11, 20, true);
+        g.flush();
+        g.markNodeDeleted(10);
+        g.flush();
+
+        check("path", g, 10);
+        check("path reloaded", new MemoryGraphSafe(dir, 0), 10);
+        assertEquals("path neighbours of 9", "8 11", neighbours(new MemoryGraphSafe(dir, 0), 9));
+    }
+
+    void testSingleDeleteInLargeGraph() {
+        MemoryGraphSafe g = createGraph();
+        fill(g, 8000, 24000);
+        g.flush();
+        g.markNodeDeleted(4000);
+        g.flush();
+
+        check("large", g, 4000);
+        check("large reloaded", new MemoryGraphSafe(dir, 0), 4000);
+    }
+
+    /**
+     * A later save which rewrites only a part of the files must not bring back the deleted node
+     */
+    void testDeleteThenPartialSave() {
+        MemoryGraphSafe g = createGraph();
+        fill(g, 8000, 24000);
+        g.flush();
+        int deleted = 10;
+        g.markNodeDeleted(deleted);
+        g.flush();
+        // changes refs and only the last edge segment
+        g.edge(8000, 8001, 5, true);
+        g.flush();
+
+        MemoryGraphSafe loaded = new MemoryGraphSafe(dir, 0);
+        check("partial save reloaded", loaded, deleted);
+        assertEquals("partial save deleted", "true", "" + loaded.isDeleted(deleted));
+    }
+
+    /**
+     * A flush after a small change must only write the changed pages and edge segments, not files
+     * which grow with the graph
+     */
+    void testSmallChangesWriteLittle() {
+        Helper.deleteDir(new File(dir));
+        int side = 450;
+        int nodes = side * side;
+        MemoryGraphSafe g = new MemoryGraphSafe(dir, nodes, (int) (0.8 * nodes));
+        g.setNodeOrder(NodeOrder.SPATIAL);
+        for (int i = 0; i < nodes; i++) {
+            g.setNode(i, i / side * 0.001, i % side * 0.001);
+            if (i % side > 0)
+                g.edge(i - 1, i, 100, true);
+            if (i >= side)
+                g.edge(i - side, i, 100, true);
+        }
+        g.flush();
+
+        Set<String> files = listFiles(new File(dir), new HashSet<String>());
+        Random rand = new Random(0);
+        for (int i = 0; i < 20; i++) {
+            g.markNodeDeleted(rand.nextInt(nodes));
+        }
+        g.flush();
+        // the deleted nodes are only appended to the log
+        long bytes = getNewBytes(new File(dir), files);
+        if (bytes > 0)
+            list.add("deleting 20 nodes wrote " + bytes + " bytes");
+
+        files = listFiles(new File(dir), files);
+        g.setNode(1000, 1, 1);
+        g.flush();
+        // one page of lats and lons
+        long max = 2 * (4L * MemoryGraphSafe.NODE_PAGE_SIZE + Helper.ARRAY_HEADER_BYTES);
+        bytes = getNewBytes(new File(dir), files);
+        if (bytes > max)
+            list.add("setNode wrote " + bytes + " bytes, expected at most " + max);
+
+        files = listFiles(new File(dir), files);
+        g.edge(0, nodes - 1, 100, true);
+        g.flush();
+        // at most two pages of refs and the segments with the new edge and the last edges of both nodes
+        max = 2 * (4L * MemoryGraphSafe.NODE_PAGE_SIZE + Helper.ARRAY_HEADER_BYTES)
+                + 3 * (4L * MemoryGraphSafe.MAX_STORED_SEGMENT_SIZE + Helper.ARRAY_HEADER_BYTES);
+        bytes = getNewBytes(new File(dir), files);
+        if (bytes > max)
+            list.add("edge wrote " + bytes + " bytes, expected at most " + max);
+
+        MemoryGraphSafe loaded = new MemoryGraphSafe(dir, 0);
+        assertEquals("small changes nodes", "" + g.getNodes(), "" + loaded.getNodes());
+        assertEquals("small changes lat", "1.0", "" + loaded.getLatitude(1000));
+        assertEquals("small changes neighbours", neighbours(g, 0), neighbours(loaded, 0));
+        for (int i = 0; i < g.getNodes(); i++) {
+            if (g.isDeleted(i) != loaded.isDeleted(i)) {
+                list.add("small changes: node " + i + " deleted " + g.isDeleted(i) + " after reload "
+                        + loaded.isDeleted(i));
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return the paths of all files below dir added to the specified set
+     */
+    private Set<String> listFiles(File dir, Set<String> set) {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return set;
+        for (File f : files) {
+            if (f.isDirectory())
+                listFiles(f, set);
+            else
+                set.add(f.getPath());
+        }
+        return set;
+    }
+
+    /**
+     * @return the size of the data files below dir which are not in the specified set. The
+     * settings and the log of the deleted nodes are not counted.
+     */
+    private long getNewBytes(File dir, Set<String> known) {
+        long bytes = 0;
+        for (String file : listFiles(dir, new HashSet<String>())) {
+            String name = new File(file).getName();
+            if (!known.contains(file) && !name.startsWith("settings") && !name.startsWith("deleted"))
+                bytes += new File(file).length();
+        }
+        return bytes;
+    }
+
+    private void fill(Graph g, int nodes, int edges) {
+        Random rand = new Random(0);
+        for (int i = 0; i < nodes; i++) {
+            g.setNode(i, rand.nextDouble() * 10, rand.nextDouble() * 10);
+        }
+        for (int i = 0; i < edges; i++) {
+            g.edge(rand.nextInt(nodes), rand.nextInt(nodes), 1 + rand.nextInt(100), rand.nextBoolean());
+        }
+    }
+
+    /**
+     * Iterates all edges and checks that the deleted node is not reachable
+     */
+    private void check(String name, Graph g, int deleted) {
+        try {
+            for (int i = 0; i < g.getNodes(); i++) {
+                EdgeIterator iter = g.getEdges(i);
+                while (iter.next()) {
+                    if (iter.node() == deleted || i == deleted)
+                        list.add(name + ": edge " + i + "->" + iter.node() + " to deleted node " + deleted);
+                }
+            }
+        } catch (Exception ex) {
+            list.add(name + ": " + ex.getMessage());
+        }
+    }
+
+    private String neighbours(Graph g, int node) {
+        StringBuilder sb = new StringBuilder();
+        EdgeIterator iter = g.getEdges(node);
+        while (iter.next()) {
+            if (sb.length() > 0)
+                sb.append(' ');
+            sb.append(iter.node());
+        }
+        return sb.toString();
+    }
+
+    private void assertEquals(String name, String expected, String value) {
+        if (!expected.equals(value))
+            list.add(name + ": expected " + expected + " but was " + value);
+    }
+}
@@ -25,29 +25,48 @@ import java.io.File;
 public class MemoryGraphSafeStorage extends DefaultStorage {
 
     private final String folder;
+    private boolean mapped;
 
     public MemoryGraphSafeStorage(String file, int expectedNodes) {
         super(expectedNodes);
         this.folder = file;
     }
 
+    /**
+     * If true an existing graph is memory mapped read-only instead of loaded into the heap, see
+     * MappedGraphSafe.
+     */
+    public MemoryGraphSafeStorage setMapped(boolean mapped) {
+        this.mapped = mapped;
+        return this;
+    }
+
     @Override
     public void createNew() {
         Helper.deleteDir(new File(folder));
         // in order to avoid reallocation allocate enough memory. 
         // edges will be incrementally allocated so it is not that important to match the size up front
-        g = new MemoryGraphSafe(folder, osmIdToIndexMap.size(), Math.round(0.8f * osmIdToIndexMap.size()));
+        // ids come in parse order => renumber them while optimizing to get a better memory locality
+        g = new MemoryGraphSafe(folder, osmIdToIndexMap.size(), Math.round(0.8f * osmIdToIndexMap.size()))
+                .setNodeOrder(NodeOrder.SPATIAL);
     }
 
     @Override
     public boolean loadExisting() {
-        g = new MemoryGraphSafe(folder, 0);
+        if (mapped) {
+            if (!new File(folder, "settings").exists())
+                return false;
+            g = new MappedGraphSafe(folder);
+        } else
+            g = new MemoryGraphSafe(folder, 0);
         return g.getNodes() > 0;
     }
 
     @Override
     public void flush() {
-        ((MemoryGraphSafe) g).flush();
+        // a mapped graph is read-only
+        if (g instanceof MemoryGraphSafe)
+            ((MemoryGraphSafe) g).flush();
         super.flush();
     }
 }
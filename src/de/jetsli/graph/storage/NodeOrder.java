@@ -0,0 +1,28 @@
+/*
+ *  Copyright 2012 Peter Karich info@jetsli.de
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.graph.storage;
+
+/**
+ * How a graph renumbers its nodes while optimizing. SPATIAL sorts the nodes along a Hilbert curve,
+ * BREADTH_FIRST numbers them in the order of a breadth first search. Both place connected nodes
+ * and their edges close in memory.
+ *
+ * @author Peter Karich
+ */
+public enum NodeOrder {
+
+    NONE, SPATIAL, BREADTH_FIRST
+}
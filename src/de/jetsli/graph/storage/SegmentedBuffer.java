@@ -0,0 +1,274 @@
+/*
+ *  Copyright 2012 Peter Karich info@jetsli.de
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.graph.storage;
+
+import de.jetsli.graph.util.Helper;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A byte storage addressed via long indices to work around the integer limit of one ByteBuffer.
+ * The bytes are split into segments with a size of a power of two so that an index is converted
+ * into segment and position via shift and mask. The segments are direct ByteBuffers or
+ * memory mapped regions of one file. Only the last segment can be smaller.
+ *
+ * Ints and floats are read and written via absolute byte indices. The index has to be a multiple
+ * of 4 so that a value never spans two segments. Readers can share the buffer with one writer as
+ * long as the capacity is only increased by full segments - otherwise the smaller last segment is
+ * replaced and unmapped.
+ *
+ * @author Peter Karich, info@jetsli.de
+ */
+public class SegmentedBuffer implements Closeable {
+
+    // 64MB
+    public static final int DEFAULT_SEGMENT_POWER = 26;
+    private final int segmentPower;
+    private final int segmentSize;
+    private final int segmentMask;
+    private final File file;
+    private final ByteOrder order;
+    private RandomAccessFile raf;
+    // volatile => readers see the segments added by the writer
+    private volatile ByteBuffer[] segments = new ByteBuffer[0];
+    private long capacity;
+
+    /**
+     * Creates an in-memory buffer
+     */
+    public SegmentedBuffer(int segmentPower) {
+        this(null, segmentPower);
+    }
+
+    /**
+     * Creates a buffer memory mapped to the specified file. The existing content of the file is
+     * mapped too. If fileName is null the buffer is kept in memory.
+     */
+    public SegmentedBuffer(String fileName, int segmentPower) {
+        this(fileName, segmentPower, ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * @param order the byte order of the ints and floats
+     */
+    public SegmentedBuffer(String fileName, int segmentPower, ByteOrder order) {
+        if (segmentPower < 3 || segmentPower > 30)
+            throw new IllegalArgumentException("segment size has to be within 2^3 and 2^30 but was 2^" + segmentPower);
+
+        this.segmentPower = segmentPower;
+        this.order = order;
+        segmentSize = 1 << segmentPower;
+        segmentMask = segmentSize - 1;
+        if (fileName == null) {
+            file = null;
+            return;
+        }
+
+        file = new File(fileName);
+        try {
+            raf = new RandomAccessFile(file, "rw");
+        } catch (IOException ex) {
+            throw new RuntimeException("Cannot open " + fileName, ex);
+        }
+        ensureCapacity(file.length());
+    }
+
+    /**
+     * Increases the capacity to at least the specified number of bytes. New bytes are zero.
+     */
+    public void ensureCapacity(long bytes) {
+        if (bytes <= capacity)
+            return;
+
+        int lastSegment = (int) ((bytes - 1) >>> segmentPower);
+        ByteBuffer[] tmp = new ByteBuffer[lastSegment + 1];
+        System.arraycopy(segments, 0, tmp, 0, segments.length);
+        try {
+            if (raf != null && raf.length() < bytes)
+                raf.setLength(bytes);
+
+            // the former last segment could be smaller than segmentSize => replace it
+            int i = Math.max(0, segments.length - 1);
+            for (; i <= lastSegment; i++) {
+                long offset = (long) i << segmentPower;
+                int size = (int) Math.min(segmentSize, bytes - offset);
+                if (tmp[i] == null || tmp[i].capacity() < size)
+                    tmp[i] = newSegment(offset, size, tmp[i]);
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException("Cannot increase capacity of " + this + " to " + bytes, ex);
+        }
+        segments = tmp;
+        capacity = bytes;
+    }
+
+    private ByteBuffer newSegment(long offset, int size, ByteBuffer old) throws IOException {
+        ByteBuffer bb;
+        if (raf == null) {
+            bb = ByteBuffer.allocateDirect(size);
+            if (old != null) {
+                old.clear();
+                bb.put(old);
+                bb.clear();
+            }
+        } else {
+            bb = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, offset, size);
+            if (old != null)
+                Helper.cleanMappedByteBuffer((MappedByteBuffer) old);
+        }
+        bb.order(order);
+        return bb;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    public ByteOrder getOrder() {
+        return order;
+    }
+
+    public boolean isMapped() {
+        return file != null;
+    }
+
+    /**
+     * @return the file of the mapping or null if in-memory
+     */
+    public File getFile() {
+        return file;
+    }
+
+    public final byte get(long index) {
+        return segments[(int) (index >>> segmentPower)].get((int) index & segmentMask);
+    }
+
+    public final void put(long index, byte b) {
+        segments[(int) (index >>> segmentPower)].put((int) index & segmentMask, b);
+    }
+
+    public final int getInt(long index) {
+        return segments[(int) (index >>> segmentPower)].getInt((int) index & segmentMask);
+    }
+
+    public final void putInt(long index, int value) {
+        segments[(int) (index >>> segmentPower)].putInt((int) index & segmentMask, value);
+    }
+
+    public final float getFloat(long index) {
+        return segments[(int) (index >>> segmentPower)].getFloat((int) index & segmentMask);
+    }
+
+    public final void putFloat(long index, float value) {
+        segments[(int) (index >>> segmentPower)].putFloat((int) index & segmentMask, value);
+    }
+
+    /**
+     * Copies the remaining bytes of src into this buffer starting at the specified index
+     */
+    public void put(long index, ByteBuffer src) {
+        while (src.hasRemaining()) {
+            ByteBuffer segment = segments[(int) (index >>> segmentPower)].duplicate();
+            segment.position((int) index & segmentMask);
+            int len = Math.min(segment.remaining(), src.remaining());
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + len);
+            segment.put(part);
+            src.position(src.position() + len);
+            index += len;
+        }
+    }
+
+    /**
+     * Copies all bytes into the target buffer and increases its capacity if necessary
+     */
+    public void copyTo(SegmentedBuffer target) {
+        target.ensureCapacity(capacity);
+        long index = 0;
+        for (ByteBuffer bb : segments) {
+            ByteBuffer src = bb.duplicate();
+            src.clear();
+            target.put(index, src);
+            index += bb.capacity();
+        }
+    }
+
+    /**
+     * Writes all bytes into the specified file, e.g. to store an in-memory buffer
+     */
+    public void writeTo(String fileName) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(fileName, "rw");
+        try {
+            out.setLength(capacity);
+            FileChannel channel = out.getChannel();
+            long position = 0;
+            for (ByteBuffer bb : segments) {
+                ByteBuffer src = bb.duplicate();
+                src.clear();
+                while (src.hasRemaining()) {
+                    position += channel.write(src, position);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes changes of a memory mapped buffer to disc
+     */
+    public void flush() {
+        if (file == null)
+            return;
+
+        for (ByteBuffer bb : segments) {
+            ((MappedByteBuffer) bb).force();
+        }
+    }
+
+    /**
+     * Releases the segments (and unmaps them). This buffer cannot be used afterwards.
+     */
+    @Override
+    public void close() {
+        if (file != null) {
+            for (ByteBuffer bb : segments) {
+                Helper.cleanMappedByteBuffer((MappedByteBuffer) bb);
+            }
+            Helper.close(raf);
+            raf = null;
+        }
+        segments = new ByteBuffer[0];
+        capacity = 0;
+    }
+
+    @Override
+    public String toString() {
+        return (file == null ? "memory" : file.getPath()) + ", capacity:" + capacity
+                + ", segmentSize:" + segmentSize + ", order:" + order;
+    }
+}
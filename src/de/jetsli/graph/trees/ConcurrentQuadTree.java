@@ -0,0 +1,146 @@
+/*
+ *  Copyright 2012 Peter Karich info@jetsli.de
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.graph.trees;
+
+import de.jetsli.graph.util.CoordTrig;
+import de.jetsli.graph.util.Helper;
+import de.jetsli.graph.util.shapes.Shape;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A thread safe QuadTreeSimple for many reading threads and some writing threads.
+ *
+ * Readers never block: every query runs against the latest published immutable snapshot. Writers
+ * are serialized and publish a new snapshot via path copying, i.e. only the nodes on the path to
+ * the added or removed entry are copied and all other nodes are shared with the old snapshot.
+ * A single add therefore costs a few small allocations - use addAll for bulk inserts.
+ *
+ * @author Peter Karich, info@jetsli.de
+ */
+public class ConcurrentQuadTree<T> implements QuadTree<T> {
+
+    private final Object writeLock = new Object();
+    private volatile QuadTreeSimple<T> snapshot;
+
+    public ConcurrentQuadTree() {
+        this(10, 64);
+    }
+
+    public ConcurrentQuadTree(int entriesPerLeafNode) {
+        this(entriesPerLeafNode, 64);
+    }
+
+    public ConcurrentQuadTree(int entriesPerLeafNode, int bitsForLatLon) {
+        snapshot = new QuadTreeSimple<T>(entriesPerLeafNode, bitsForLatLon);
+    }
+
+    /**
+     * @return the current content which won't change, e.g. to run several queries against the
+     * same state. Do not modify it.
+     */
+    public QuadTreeSimple<T> getSnapshot() {
+        return snapshot;
+    }
+
+    @Override
+    public ConcurrentQuadTree<T> init(long maxItemsHint) {
+        return this;
+    }
+
+    @Override
+    public long size() {
+        return snapshot.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return snapshot.isEmpty();
+    }
+
+    @Override
+    public void add(double lat, double lon, T value) {
+        synchronized (writeLock) {
+            snapshot = snapshot.copyAndAdd(lat, lon, value);
+        }
+    }
+
+    /**
+     * Bulk loading - see QuadTreeSimple.addAll. The old nodes are not touched as addAll builds
+     * all nodes from scratch.
+     */
+    public void addAll(double[] lats, double[] lons, T[] values) {
+        synchronized (writeLock) {
+            snapshot = snapshot.copyShallow().addAll(lats, lons, values);
+        }
+    }
+
+    @Override
+    public int remove(double lat, double lon) {
+        synchronized (writeLock) {
+            QuadTreeSimple<T> old = snapshot;
+            snapshot = old.copyAndRemove(lat, lon);
+            return (int) (old.size() - snapshot.size());
+        }
+    }
+
+    @Override
+    public void clear() {
+        synchronized (writeLock) {
+            snapshot = snapshot.copyEmpty();
+        }
+    }
+
+    @Override
+    public Collection<CoordTrig<T>> getNodesFromValue(double lat, double lon, T value) {
+        return snapshot.getNodesFromValue(lat, lon, value);
+    }
+
+    @Override
+    public Collection<CoordTrig<T>> getNodes(double lat, double lon, double distanceInKm) {
+        return snapshot.getNodes(lat, lon, distanceInKm);
+    }
+
+    @Override
+    public Collection<CoordTrig<T>> getNodes(Shape boundingBox) {
+        return snapshot.getNodes(boundingBox);
+    }
+
+    @Override
+    public List<CoordTrig<T>> getKNearest(double lat, double lon, int k) {
+        return snapshot.getKNearest(lat, lon, k);
+    }
+
+    public void query(Shape shape, EntryVisitor<T> visitor) {
+        snapshot.query(shape, visitor);
+    }
+
+    @Override
+    public String toDetailString() {
+        return snapshot.toDetailString();
+    }
+
+    @Override
+    public long getMemoryUsageInBytes(int factor) {
+        return snapshot.getMemoryUsageInBytes(factor) + Helper.sizeOfObjectRef(factor) * 2;
+    }
+
+    @Override
+    public long getEmptyEntries(boolean onlyBranches) {
+        return snapshot.getEmptyEntries(onlyBranches);
+    }
+}
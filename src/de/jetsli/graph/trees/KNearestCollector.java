@@ -0,0 +1,109 @@
+/*
+ *  Copyright 2012 Peter Karich info@jetsli.de
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.graph.trees;
+
+import de.jetsli.graph.util.CalcDistance;
+import de.jetsli.graph.util.CoordTrig;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Collects the k nearest entries of a best-first search. Internally a max-heap of size k so that
+ * the worst accepted distance is known at any time and whole cells can be pruned against it.
+ *
+ * All distances are normalized distances, see CalcDistance.calcNormalizedDist
+ *
+ * @author Peter Karich
+ */
+public class KNearestCollector<T> {
+
+    private final int k;
+    private final PriorityQueue<Entry<T>> heap;
+
+    public KNearestCollector(int k) {
+        if (k < 1)
+            throw new IllegalArgumentException("k must be positive but was " + k);
+        this.k = k;
+        heap = new PriorityQueue<Entry<T>>(k + 1);
+    }
+
+    /**
+     * @return true if an entry with the specified distance would be collected. Use this to avoid
+     * creating entries which will be rejected anyway.
+     */
+    public boolean accepts(double normedDist) {
+        return heap.size() < k || normedDist < heap.peek().normedDist;
+    }
+
+    public void add(double normedDist, CoordTrig<T> coord) {
+        if (!accepts(normedDist))
+            return;
+
+        heap.add(new Entry<T>(normedDist, coord));
+        if (heap.size() > k)
+            heap.poll();
+    }
+
+    /**
+     * @return the distance a cell needs to beat to contain better entries
+     */
+    public double getMaxNormedDist() {
+        return heap.size() < k ? Double.MAX_VALUE : heap.peek().normedDist;
+    }
+
+    /**
+     * @return the collected entries, nearest first
+     */
+    public List<CoordTrig<T>> toList() {
+        List<Entry<T>> entries = new ArrayList<Entry<T>>(heap);
+        Collections.sort(entries, Collections.reverseOrder());
+        List<CoordTrig<T>> result = new ArrayList<CoordTrig<T>>(entries.size());
+        for (Entry<T> e : entries) {
+            result.add(e.coord);
+        }
+        return result;
+    }
+
+    /**
+     * @return a lower bound of the normalized distance from the specified point to all points of
+     * the specified cell
+     */
+    public static double calcMinNormedDist(CalcDistance calc, double lat, double lon,
+            double minLat, double maxLat, double minLon, double maxLon) {
+        double nearestLat = Math.max(minLat, Math.min(maxLat, lat));
+        double nearestLon = Math.max(minLon, Math.min(maxLon, lon));
+        return calc.calcNormalizedDist(lat, lon, nearestLat, nearestLon);
+    }
+
+    private static class Entry<T> implements Comparable<Entry<T>> {
+
+        final double normedDist;
+        final CoordTrig<T> coord;
+
+        Entry(double normedDist, CoordTrig<T> coord) {
+            this.normedDist = normedDist;
+            this.coord = coord;
+        }
+
+        // reversed to get a max-heap
+        @Override public int compareTo(Entry<T> o) {
+            return Double.compare(o.normedDist, normedDist);
+        }
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ *  Copyright 2012 Peter Karich info@jetsli.de
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.graph.trees;
+
+import de.jetsli.graph.geohash.SpatialKeyAlgo;
+import de.jetsli.graph.storage.Graph;
+import de.jetsli.graph.util.CalcDistance;
+import de.jetsli.graph.util.CoordTrig;
+import de.jetsli.graph.util.CoordTrigObjEntry;
+import de.jetsli.graph.util.Helper;
+import de.jetsli.graph.util.shapes.BBox;
+import de.jetsli.graph.util.shapes.Circle;
+import de.jetsli.graph.util.shapes.Shape;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * An immutable quadtree without any node objects - the same spatial key trie as QuadTreeSimple
+ * but stored in a few primitive arrays:
+ *
+ * The entries are sorted by their spatial key and stored in the parallel arrays keys and values.
+ * Every leaf is a range of this arrays: leaf i holds the entries from leafStart[i] to
+ * leafStart[i+1] (exclusive). Every branch b stores the references to its four children in
+ * children[4*b] to children[4*b+3] where 0 means no child, a positive number is the index of
+ * another branch and a negative number x is the leaf ~x. The root branch has the index 0 which
+ * is never a child.
+ *
+ * Use this instead of QuadTreeSimple for several millions of entries which do not change.
+ *
+ * @author Peter Karich, info@jetsli.de
+ */
+public class LinearQuadTree implements QuadTree<Long> {
+
+    private final long globalMaxBit;
+    private final SpatialKeyAlgo algo;
+    private final int entriesPerLeaf;
+    private CalcDistance calc = new CalcDistance();
+    private final long[] keys;
+    private final long[] values;
+    private final int[] leafStart;
+    private final int[] children;
+    private final int root;
+
+    /**
+     * @return a quadtree where the value of every location is its node id
+     */
+    public static LinearQuadTree create(Graph graph) {
+        int locs = graph.getNodes();
+        double[] lats = new double[locs];
+        double[] lons = new double[locs];
+        long[] ids = new long[locs];
+        for (int i = 0; i < locs; i++) {
+            lats[i] = graph.getLatitude(i);
+            lons[i] = graph.getLongitude(i);
+            ids[i] = i;
+        }
+        return new LinearQuadTree(lats, lons, ids);
+    }
+
+    public LinearQuadTree(double[] lats, double[] lons, long[] values) {
+        this(lats, lons, values, 10, 64);
+    }
+
+    public LinearQuadTree(double[] lats, double[] lons, long[] values, int entriesPerLeafNode, int bitsForLatLon) {
+        if (lats.length != lons.length || lats.length != values.length)
+            throw new IllegalArgumentException("latitudes, longitudes and values need the same length "
+                    + lats.length + ", " + lons.length + ", " + values.length);
+
+        entriesPerLeaf = entriesPerLeafNode;
+        globalMaxBit = 1L << (bitsForLatLon - 1);
+        algo = new SpatialKeyAlgo(bitsForLatLon);
+        keys = new long[values.length];
+        algo.encode(lats, lons, keys);
+        int[] order = Helper.sortUnsigned(keys);
+        this.values = new long[values.length];
+        for (int i = 0; i < order.length; i++) {
+            this.values[i] = values[order[i]];
+        }
+
+        TIntArrayList tmpLeafStart = new TIntArrayList();
+        TIntArrayList tmpChildren = new TIntArrayList();
+        root = keys.length == 0 ? 0 : build(0, keys.length, globalMaxBit, tmpLeafStart, tmpChildren);
+        tmpLeafStart.add(keys.length);
+        leafStart = tmpLeafStart.toArray();
+        children = tmpChildren.toArray();
+    }
+
+    /**
+     * Same as QuadTreeSimple.addAll but appends the nodes to the lists instead of creating objects.
+     *
+     * @return the reference to the node for the sorted keys in [from, to)
+     */
+    private int build(int from, int to, long maxBit, TIntArrayList tmpLeafStart, TIntArrayList tmpChildren) {
+        int count = to - from;
+        if (count <= entriesPerLeaf || maxBit == 0 || keys[from] == keys[to - 1]) {
+            tmpLeafStart.add(from);
+            return ~(tmpLeafStart.size() - 1);
+        }
+
+        int branch = tmpChildren.size() / 4;
+        tmpChildren.add(new int[4]);
+        long nextBit = maxBit >>> 1;
+        int start = from;
+        for (int num = 0; num < 4; num++) {
+            int end = num == 3 ? to : findEnd(start, to, maxBit, nextBit, num);
+            if (end > start)
+                tmpChildren.set(4 * branch + num, build(start, end, nextBit >>> 1, tmpLeafStart, tmpChildren));
+            start = end;
+        }
+        return branch;
+    }
+
+    private int findEnd(int from, int to, long maxBit, long nextBit, int num) {
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            int tmp = (keys[mid] & maxBit) == 0 ? 0 : 2;
+            if ((keys[mid] & nextBit) != 0)
+                tmp++;
+
+            if (tmp <= num)
+                from = mid + 1;
+            else
+                to = mid;
+        }
+        return from;
+    }
+
+    public LinearQuadTree setCalcDistance(CalcDistance dist) {
+        this.calc = dist;
+        return this;
+    }
+
+    @Override
+    public LinearQuadTree init(long maxItemsHint) {
+        return this;
+    }
+
+    @Override
+    public long size() {
+        return keys.length;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return keys.length == 0;
+    }
+
+    @Override
+    public void add(double lat, double lon, Long value) {
+        throw new UnsupportedOperationException("LinearQuadTree is immutable");
+    }
+
+    @Override
+    public int remove(double lat, double lon) {
+        throw new UnsupportedOperationException("LinearQuadTree is immutable");
+    }
+
+    @Override
+    public void clear() {
+        throw new UnsupportedOperationException("LinearQuadTree is immutable");
+    }
+
+    /**
+     * The entries are sorted by key, so this is a binary search without touching the tree.
+     */
+    @Override
+    public Collection<CoordTrig<Long>> getNodesFromValue(double lat, double lon, Long value) {
+        long spatialKey = algo.encode(lat, lon);
+        // first entry with an unsigned key >= spatialKey
+        int from = 0;
+        int to = keys.length;
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (keys[mid] + Long.MIN_VALUE < spatialKey + Long.MIN_VALUE)
+                from = mid + 1;
+            else
+                to = mid;
+        }
+
+        List<CoordTrig<Long>> nodes = new ArrayList<CoordTrig<Long>>(1);
+        for (int i = from; i < keys.length && keys[i] == spatialKey; i++) {
+            if (value != null && value != values[i])
+                continue;
+
+            CoordTrig<Long> ret = new CoordTrigObjEntry<Long>();
+            algo.decode(keys[i], ret);
+            ret.setValue(values[i]);
+            nodes.add(ret);
+        }
+        return nodes;
+    }
+
+    @Override
+    public Collection<CoordTrig<Long>> getNodes(double lat, double lon, double distanceInKm) {
+        return getNodes(new Circle(lat, lon, distanceInKm, calc));
+    }
+
+    @Override
+    public Collection<CoordTrig<Long>> getNodes(Shape boundingBox) {
+        final List<CoordTrig<Long>> result = new ArrayList<CoordTrig<Long>>();
+        query(boundingBox, new EntryVisitor<Long>() {
+            @Override public void onEntry(double lat, double lon, Long value) {
+                result.add(new CoordTrigObjEntry<Long>(value, lat, lon));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Calls the visitor for every entry inside the specified shape - see QuadTreeSimple.query.
+     */
+    public void query(Shape shape, EntryVisitor<Long> visitor) {
+        if (keys.length > 0)
+            query(root, -90, 90, -180, 180, shape, new CoordTrig<Long>(), visitor);
+    }
+
+    private void query(int node, double minLat, double maxLat, double minLon, double maxLon,
+            Shape shape, CoordTrig<Long> tmp, EntryVisitor<Long> visitor) {
+        if (node < 0) {
+            int leaf = ~node;
+            for (int i = leafStart[leaf]; i < leafStart[leaf + 1]; i++) {
+                algo.decode(keys[i], tmp);
+                if (shape.contains(tmp.lat, tmp.lon))
+                    visitor.onEntry(tmp.lat, tmp.lon, values[i]);
+            }
+            return;
+        }
+
+        double lat12 = (minLat + maxLat) / 2;
+        double lon12 = (minLon + maxLon) / 2;
+        int offset = 4 * node;
+        // 10 11
+        // 00 01
+        int child = children[offset + 2];
+        if (child != 0 && intersect(shape, minLon, lon12, lat12, maxLat))
+            query(child, lat12, maxLat, minLon, lon12, shape, tmp, visitor);
+
+        child = children[offset + 3];
+        if (child != 0 && intersect(shape, lon12, maxLon, lat12, maxLat))
+            query(child, lat12, maxLat, lon12, maxLon, shape, tmp, visitor);
+
+        child = children[offset];
+        if (child != 0 && intersect(shape, minLon, lon12, minLat, lat12))
+            query(child, minLat, lat12, minLon, lon12, shape, tmp, visitor);
+
+        child = children[offset + 1];
+        if (child != 0 && intersect(shape, lon12, maxLon, minLat, lat12))
+            query(child, minLat, lat12, lon12, maxLon, shape, tmp, visitor);
+    }
+
+    private static boolean intersect(Shape shape, double minLon, double maxLon, double minLat, double maxLat) {
+        if (shape instanceof BBox)
+            return ((BBox) shape).intersect(minLon, maxLon, minLat, maxLat);
+        else if (shape instanceof Circle)
+            return ((Circle) shape).intersect(minLon, maxLon, minLat, maxLat);
+
+        return shape.intersect(new BBox(minLon, maxLon, minLat, maxLat));
+    }
+
+    /**
+     * Best-first traversal - see QuadTreeSimple.getKNearest
+     */
+    @Override
+    public List<CoordTrig<Long>> getKNearest(double lat, double lon, int k) {
+        KNearestCollector<Long> collector = new KNearestCollector<Long>(k);
+        if (keys.length == 0)
+            return collector.toList();
+
+        PriorityQueue<Cell> cells = new PriorityQueue<Cell>();
+        cells.add(new Cell(root, 0, -90, 90, -180, 180));
+        CoordTrig<Long> tmp = new CoordTrig<Long>();
+        while (!cells.isEmpty()) {
+            Cell cell = cells.poll();
+            if (cell.normedDist >= collector.getMaxNormedDist())
+                break;
+
+            if (cell.node < 0) {
+                int leaf = ~cell.node;
+                for (int i = leafStart[leaf]; i < leafStart[leaf + 1]; i++) {
+                    algo.decode(keys[i], tmp);
+                    double normedDist = calc.calcNormalizedDist(lat, lon, tmp.lat, tmp.lon);
+                    if (collector.accepts(normedDist))
+                        collector.add(normedDist, new CoordTrigObjEntry<Long>(values[i], tmp.lat, tmp.lon));
+                }
+                continue;
+            }
+
+            double lat12 = (cell.minLat + cell.maxLat) / 2;
+            double lon12 = (cell.minLon + cell.maxLon) / 2;
+            int offset = 4 * cell.node;
+            addCell(cells, children[offset], lat, lon, cell.minLat, lat12, cell.minLon, lon12);
+            addCell(cells, children[offset + 1], lat, lon, cell.minLat, lat12, lon12, cell.maxLon);
+            addCell(cells, children[offset + 2], lat, lon, lat12, cell.maxLat, cell.minLon, lon12);
+            addCell(cells, children[offset + 3], lat, lon, lat12, cell.maxLat, lon12, cell.maxLon);
+        }
+        return collector.toList();
+    }
+
+    private void addCell(PriorityQueue<Cell> cells, int node, double lat, double lon,
+            double minLat, double maxLat, double minLon, double maxLon) {
+        if (node == 0)
+            return;
+
+        double normedDist = KNearestCollector.calcMinNormedDist(calc, lat, lon, minLat, maxLat, minLon, maxLon);
+        cells.add(new Cell(node, normedDist, minLat, maxLat, minLon, maxLon));
+    }
+
+    private static class Cell implements Comparable<Cell> {
+
+        final int node;
+        final double normedDist;
+        final double minLat, maxLat, minLon, maxLon;
+
+        Cell(int node, double normedDist, double minLat, double maxLat, double minLon, double maxLon) {
+            this.node = node;
+            this.normedDist = normedDist;
+            this.minLat = minLat;
+            this.maxLat = maxLat;
+            this.minLon = minLon;
+            this.maxLon = maxLon;
+        }
+
+        @Override public int compareTo(Cell o) {
+            return Double.compare(normedDist, o.normedDist);
+        }
+    }
+
+    @Override
+    public String toDetailString() {
+        return "entries:" + keys.length + ", leafs:" + (leafStart.length - 1)
+                + ", branches:" + children.length / 4 + ", empty branch entries:" + getEmptyEntries(true);
+    }
+
+    @Override
+    public long getMemoryUsageInBytes(int factor) {
+        return Helper.sizeOfLongArray(keys.length, factor) + Helper.sizeOfLongArray(values.length, factor)
+                + Helper.sizeOfIntArray(leafStart.length, factor) + Helper.sizeOfIntArray(children.length, factor)
+                + 2 * 4 + 8 + 6 * Helper.sizeOfObjectRef(factor);
+    }
+
+    /**
+     * Leafs are always packed so only missing children of branches count.
+     */
+    @Override
+    public long getEmptyEntries(boolean onlyBranches) {
+        long empty = 0;
+        for (int i = 0; i < children.length; i++) {
+            if (children[i] == 0)
+                empty++;
+        }
+        return empty;
+    }
+}
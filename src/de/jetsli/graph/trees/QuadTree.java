@@ -20,6 +20,7 @@ import de.jetsli.graph.util.CoordTrig;
 import de.jetsli.graph.util.shapes.Shape;
 
 import java.util.Collection;
+import java.util.List;
 
 /**
  * A quad tree interface - think Map<latitude+longitude, V> with the possibility to get neighbouring
@@ -58,6 +59,12 @@ public interface QuadTree<V> {
 
     Collection<CoordTrig<V>> getNodes(Shape boundingBox);
 
+    /**
+     * @return the k points nearest to the specified latitude/longitude, nearest first. Fewer if
+     * the quadtree contains less than k points.
+     */
+    List<CoordTrig<V>> getKNearest(double lat, double lon, int k);
+
     void clear();
 
     /**
@@ -76,6 +83,19 @@ public interface QuadTree<V> {
 
         public static void fill(QuadTree<Long> quadTree, Graph graph) {
             int locs = graph.getNodes();
+            if (quadTree instanceof QuadTreeSimple) {
+                double[] lats = new double[locs];
+                double[] lons = new double[locs];
+                Long[] values = new Long[locs];
+                for (int i = 0; i < locs; i++) {
+                    lats[i] = graph.getLatitude(i);
+                    lons[i] = graph.getLongitude(i);
+                    values[i] = 1L;
+                }
+                ((QuadTreeSimple<Long>) quadTree).addAll(lats, lons, values);
+                return;
+            }
+
             for (int i = 0; i < locs; i++) {
                 double lat = graph.getLatitude(i);
                 double lon = graph.getLongitude(i);
@@ -28,6 +28,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.PriorityQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -48,28 +49,6 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public class QuadTreeSimple<T> implements QuadTree<T> {
 
-    private static class Acceptor<T> implements LeafWorker<T> {
-
-        public final List<CoordTrig<T>> result = new ArrayList<CoordTrig<T>>();
-        SpatialKeyAlgo algo;
-
-        public Acceptor(SpatialKeyAlgo algo) {
-            this.algo = algo;
-        }
-
-        @Override public void doWork(QTDataNode<T> dataNode, int i) {
-            CoordTrigObjEntry<T> entry = new CoordTrigObjEntry<T>();
-            algo.decode(dataNode.keys[i], entry);
-            if (accept(entry)) {
-                entry.setValue((T) dataNode.values[i]);
-                result.add(entry);
-            }
-        }
-
-        public boolean accept(CoordTrig<T> entry) {
-            return true;
-        }
-    }
     private final int mbits;
     private final long globalMaxBit;
     private final SpatialKeyAlgo algo;
@@ -93,6 +72,19 @@ public class QuadTreeSimple<T> implements QuadTree<T> {
         algo = new SpatialKeyAlgo(bitsForLatLon);
     }
 
+    /**
+     * A quadtree with the same settings starting from the specified (shared) nodes
+     */
+    private QuadTreeSimple(QuadTreeSimple<T> settings, QTNode<T> root, int size) {
+        mbits = settings.mbits;
+        entriesPerLeaf = settings.entriesPerLeaf;
+        globalMaxBit = settings.globalMaxBit;
+        algo = settings.algo;
+        calc = settings.calc;
+        this.root = root;
+        this.size = size;
+    }
+
     public QuadTreeSimple setCalcDistance(CalcDistance dist) {
         this.calc = dist;
         return this;
@@ -153,6 +145,242 @@ public class QuadTreeSimple<T> implements QuadTree<T> {
                 + lat + "," + lon + " spatial key:" + spatialKey + " value:" + value + " size:" + size);
     }
 
+    /**
+     * Bulk loading: encodes all points, sorts their spatial keys and builds the tree bottom-up.
+     * Every leaf is created with exactly the entries it holds, so no splitting and no half-empty
+     * leaves. Already existing entries are kept.
+     */
+    public QuadTreeSimple<T> addAll(double[] lats, double[] lons, T[] values) {
+        if (lats.length != lons.length || lats.length != values.length)
+            throw new IllegalArgumentException("latitudes, longitudes and values need the same length "
+                    + lats.length + ", " + lons.length + ", " + values.length);
+
+        int existing = size;
+        long[] keys = new long[existing + values.length];
+        Object[] vals = new Object[keys.length];
+        if (root != null)
+            collect(root, keys, vals, 0);
+
+        long[] newKeys = new long[values.length];
+        algo.encode(lats, lons, newKeys);
+        System.arraycopy(newKeys, 0, keys, existing, newKeys.length);
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == null)
+                throw new IllegalArgumentException("This quad tree does not support null values");
+
+            vals[existing + i] = values[i];
+        }
+
+        int[] order = Helper.sortUnsigned(keys);
+        Object[] sortedVals = new Object[vals.length];
+        for (int i = 0; i < order.length; i++) {
+            sortedVals[i] = vals[order[i]];
+        }
+        root = build(keys, sortedVals, 0, keys.length, globalMaxBit);
+        size = keys.length;
+        return this;
+    }
+
+    private int collect(QTNode<T> current, long[] keys, Object[] vals, int index) {
+        if (current == null)
+            return index;
+
+        if (current.hasData()) {
+            QTDataNode<T> dataNode = (QTDataNode<T>) current;
+            for (int i = 0; i < dataNode.values.length; i++) {
+                if (dataNode.values[i] == null)
+                    break;
+
+                keys[index] = dataNode.keys[i];
+                vals[index] = dataNode.values[i];
+                index++;
+            }
+            return index;
+        }
+
+        for (int num = 0; num < 4; num++) {
+            index = collect(current.get(num), keys, vals, index);
+        }
+        return index;
+    }
+
+    /**
+     * Creates the node for the sorted keys in [from, to) which share all bits above maxBit.
+     */
+    private QTNode<T> build(long[] keys, Object[] vals, int from, int to, long maxBit) {
+        if (from == to)
+            return null;
+
+        // if too many entries have the same key the node cannot be splitted - see addData
+        int count = to - from;
+        if (count <= entriesPerLeaf || maxBit == 0 || keys[from] == keys[to - 1]) {
+            QTDataNode<T> dataNode = new QTDataNode<T>(count);
+            System.arraycopy(keys, from, dataNode.keys, 0, count);
+            System.arraycopy(vals, from, dataNode.values, 0, count);
+            return dataNode;
+        }
+
+        // the keys are sorted so the four children are consecutive ranges
+        QTBranchNode<T> branch = new QTBranchNode<T>();
+        long nextBit = maxBit >>> 1;
+        int start = from;
+        for (int num = 0; num < 4; num++) {
+            int end = num == 3 ? to : findEnd(keys, start, to, maxBit, nextBit, num);
+            branch.set(num, build(keys, vals, start, end, nextBit >>> 1));
+            start = end;
+        }
+        return branch;
+    }
+
+    /**
+     * @return the index of the first key in [from, to) which lies in a quadrant after num
+     */
+    private static int findEnd(long[] keys, int from, int to, long maxBit, long nextBit, int num) {
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (quadrant(keys[mid], maxBit, nextBit) <= num)
+                from = mid + 1;
+            else
+                to = mid;
+        }
+        return from;
+    }
+
+    private static int quadrant(long key, long maxBit, long nextBit) {
+        int num = (key & maxBit) == 0 ? 0 : 2;
+        if ((key & nextBit) != 0)
+            num++;
+        return num;
+    }
+
+    /**
+     * Path copying: returns a new quadtree with the additional entry. Only the nodes on the path to
+     * the entry are copied, all other nodes are shared. This quadtree is not changed, so readers
+     * can still use it - see ConcurrentQuadTree.
+     */
+    QuadTreeSimple<T> copyAndAdd(double lat, double lon, T value) {
+        if (value == null)
+            throw new IllegalArgumentException("This quad tree does not support null values");
+
+        long spatialKey = algo.encode(lat, lon);
+        return new QuadTreeSimple<T>(this, copyAndAdd(root, spatialKey, value, globalMaxBit), size + 1);
+    }
+
+    private QTNode<T> copyAndAdd(QTNode<T> current, long spatialKey, T value, long maxBit) {
+        if (current == null) {
+            QTDataNode<T> dataNode = new QTDataNode<T>(1);
+            dataNode.add(spatialKey, value);
+            return dataNode;
+        }
+
+        if (current.hasData()) {
+            // the copied entries have to be sorted anyway if the leaf gets splitted
+            QTDataNode<T> dataNode = (QTDataNode<T>) current;
+            int count = dataNode.count();
+            long[] keys = new long[count + 1];
+            Object[] vals = new Object[count + 1];
+            System.arraycopy(dataNode.keys, 0, keys, 0, count);
+            System.arraycopy(dataNode.values, 0, vals, 0, count);
+            keys[count] = spatialKey;
+            vals[count] = value;
+            int[] order = Helper.sortUnsigned(keys);
+            Object[] sortedVals = new Object[vals.length];
+            for (int i = 0; i < order.length; i++) {
+                sortedVals[i] = vals[order[i]];
+            }
+            return build(keys, sortedVals, 0, keys.length, maxBit);
+        }
+
+        QTNode<T> branch = copy(current);
+        int num = quadrant(spatialKey, maxBit, maxBit >>> 1);
+        branch.set(num, copyAndAdd(current.get(num), spatialKey, value, maxBit >>> 2));
+        return branch;
+    }
+
+    /**
+     * Path copying: returns a new quadtree without the entries at the specified location or this
+     * quadtree if there are none - see copyAndAdd.
+     */
+    QuadTreeSimple<T> copyAndRemove(double lat, double lon) {
+        long spatialKey = algo.encode(lat, lon);
+        int[] removed = new int[1];
+        QTNode<T> newRoot = copyAndRemove(root, spatialKey, globalMaxBit, removed);
+        if (newRoot == root)
+            return this;
+
+        return new QuadTreeSimple<T>(this, newRoot, size - removed[0]);
+    }
+
+    private QTNode<T> copyAndRemove(QTNode<T> current, long spatialKey, long maxBit, int[] removed) {
+        if (current == null)
+            return null;
+
+        if (current.hasData()) {
+            QTDataNode<T> dataNode = (QTDataNode<T>) current;
+            int count = dataNode.count();
+            int keep = 0;
+            for (int i = 0; i < count; i++) {
+                if (dataNode.keys[i] != spatialKey)
+                    keep++;
+            }
+            if (keep == count)
+                return current;
+
+            removed[0] = count - keep;
+            if (keep == 0)
+                return null;
+
+            QTDataNode<T> copy = new QTDataNode<T>(keep);
+            for (int i = 0, j = 0; i < count; i++) {
+                if (dataNode.keys[i] != spatialKey) {
+                    copy.keys[j] = dataNode.keys[i];
+                    copy.values[j] = dataNode.values[i];
+                    j++;
+                }
+            }
+            return copy;
+        }
+
+        int num = quadrant(spatialKey, maxBit, maxBit >>> 1);
+        QTNode<T> child = current.get(num);
+        QTNode<T> newChild = copyAndRemove(child, spatialKey, maxBit >>> 2, removed);
+        if (newChild == child)
+            return current;
+
+        QTNode<T> branch = copy(current);
+        branch.set(num, newChild);
+        for (int i = 0; i < 4; i++) {
+            if (branch.get(i) != null)
+                return branch;
+        }
+        return null;
+    }
+
+    /**
+     * Copies the branch via the typed QTNode methods instead of the raw fields of QTBranchNode
+     */
+    private static <T> QTNode<T> copy(QTNode<T> branch) {
+        QTNode<T> copy = new QTBranchNode<T>();
+        for (int i = 0; i < 4; i++) {
+            copy.set(i, branch.get(i));
+        }
+        return copy;
+    }
+
+    /**
+     * @return a new quadtree with the same settings but without entries
+     */
+    QuadTreeSimple<T> copyEmpty() {
+        return new QuadTreeSimple<T>(this, null, 0);
+    }
+
+    /**
+     * @return a new quadtree with the same settings sharing the nodes of this one
+     */
+    QuadTreeSimple<T> copyShallow() {
+        return new QuadTreeSimple<T>(this, root, size);
+    }
+
     private void addData(long spatialKey, T value, QTNode<T> current, QTNode<T> previousBranch,
             int previousNum, long maxBit) {
         size++;
@@ -162,6 +390,13 @@ public class QuadTreeSimple<T> implements QuadTree<T> {
         if (!overflow)
             return;
 
+        if (dataNode.values.length < entriesPerLeaf) {
+            // a packed leaf created via addAll - grow it instead of splitting
+            dataNode.ensure(entriesPerLeaf);
+            dataNode.add(spatialKey, value);
+            return;
+        }
+
         QTBranchNode<T> n = new QTBranchNode<T>();
         if (previousBranch != null)
             previousBranch.set(previousNum, n);
@@ -259,17 +494,141 @@ public class QuadTreeSimple<T> implements QuadTree<T> {
     }
 
     @Override
-    public Collection<CoordTrig<T>> getNodes(final Shape boundingBox) {
-        if (root == null)
-            return Collections.EMPTY_LIST;
+    public Collection<CoordTrig<T>> getNodes(Shape boundingBox) {
+        final List<CoordTrig<T>> result = new ArrayList<CoordTrig<T>>();
+        query(boundingBox, new EntryVisitor<T>() {
+            @Override public void onEntry(double lat, double lon, T value) {
+                result.add(new CoordTrigObjEntry<T>(value, lat, lon));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Calls the visitor for every entry inside the specified shape. In contrast to getNodes this
+     * creates no objects per visited node or entry, which matters for queries returning several
+     * 100k entries.
+     */
+    public void query(Shape shape, EntryVisitor<T> visitor) {
+        if (root != null)
+            query(root, -90, 90, -180, 180, shape, new CoordTrig<T>(), visitor);
+    }
 
-        Acceptor<T> worker = new Acceptor<T>(algo) {
-            @Override public boolean accept(CoordTrig<T> entry) {
-                return boundingBox.contains(entry.lat, entry.lon);
+    private void query(QTNode<T> current, double minLat, double maxLat, double minLon, double maxLon,
+            Shape shape, CoordTrig<T> tmp, EntryVisitor<T> visitor) {
+        if (current.hasData()) {
+            QTDataNode<T> dataNode = (QTDataNode<T>) current;
+            for (int i = 0; i < dataNode.values.length; i++) {
+                if (dataNode.values[i] == null)
+                    break;
+
+                algo.decode(dataNode.keys[i], tmp);
+                if (shape.contains(tmp.lat, tmp.lon))
+                    visitor.onEntry(tmp.lat, tmp.lon, (T) dataNode.values[i]);
             }
-        };
-        getNeighbours(BBox.createEarthMax(), boundingBox, root, worker);
-        return worker.result;
+            return;
+        }
+
+        double lat12 = (minLat + maxLat) / 2;
+        double lon12 = (minLon + maxLon) / 2;
+        // see getNeighbours for the order of the children
+        QTNode<T> node = current.get(2);
+        if (node != null && intersect(shape, minLon, lon12, lat12, maxLat))
+            query(node, lat12, maxLat, minLon, lon12, shape, tmp, visitor);
+
+        node = current.get(3);
+        if (node != null && intersect(shape, lon12, maxLon, lat12, maxLat))
+            query(node, lat12, maxLat, lon12, maxLon, shape, tmp, visitor);
+
+        node = current.get(0);
+        if (node != null && intersect(shape, minLon, lon12, minLat, lat12))
+            query(node, minLat, lat12, minLon, lon12, shape, tmp, visitor);
+
+        node = current.get(1);
+        if (node != null && intersect(shape, lon12, maxLon, minLat, lat12))
+            query(node, minLat, lat12, lon12, maxLon, shape, tmp, visitor);
+    }
+
+    private static boolean intersect(Shape shape, double minLon, double maxLon, double minLat, double maxLat) {
+        if (shape instanceof BBox)
+            return ((BBox) shape).intersect(minLon, maxLon, minLat, maxLat);
+        else if (shape instanceof Circle)
+            return ((Circle) shape).intersect(minLon, maxLon, minLat, maxLat);
+
+        return shape.intersect(new BBox(minLon, maxLon, minLat, maxLat));
+    }
+
+    /**
+     * Best-first traversal: cells are visited in the order of their minimal distance to the
+     * specified point and the search stops if the nearest open cell is further away than the k-th
+     * best entry found so far.
+     */
+    @Override
+    public List<CoordTrig<T>> getKNearest(double lat, double lon, int k) {
+        KNearestCollector<T> collector = new KNearestCollector<T>(k);
+        if (root == null)
+            return collector.toList();
+
+        PriorityQueue<Cell<T>> cells = new PriorityQueue<Cell<T>>();
+        cells.add(new Cell<T>(root, 0, -90, 90, -180, 180));
+        CoordTrig<T> tmp = new CoordTrig<T>();
+        while (!cells.isEmpty()) {
+            Cell<T> cell = cells.poll();
+            if (cell.normedDist >= collector.getMaxNormedDist())
+                break;
+
+            if (cell.node.hasData()) {
+                QTDataNode<T> dataNode = (QTDataNode<T>) cell.node;
+                for (int i = 0; i < dataNode.values.length; i++) {
+                    if (dataNode.values[i] == null)
+                        break;
+
+                    algo.decode(dataNode.keys[i], tmp);
+                    double normedDist = calc.calcNormalizedDist(lat, lon, tmp.lat, tmp.lon);
+                    if (collector.accepts(normedDist))
+                        collector.add(normedDist, new CoordTrigObjEntry<T>((T) dataNode.values[i], tmp.lat, tmp.lon));
+                }
+                continue;
+            }
+
+            double lat12 = (cell.minLat + cell.maxLat) / 2;
+            double lon12 = (cell.minLon + cell.maxLon) / 2;
+            // see getNeighbours for the order of the children
+            addCell(cells, cell.node.get(0), lat, lon, cell.minLat, lat12, cell.minLon, lon12);
+            addCell(cells, cell.node.get(1), lat, lon, cell.minLat, lat12, lon12, cell.maxLon);
+            addCell(cells, cell.node.get(2), lat, lon, lat12, cell.maxLat, cell.minLon, lon12);
+            addCell(cells, cell.node.get(3), lat, lon, lat12, cell.maxLat, lon12, cell.maxLon);
+        }
+        return collector.toList();
+    }
+
+    private void addCell(PriorityQueue<Cell<T>> cells, QTNode<T> node, double lat, double lon,
+            double minLat, double maxLat, double minLon, double maxLon) {
+        if (node == null)
+            return;
+
+        double normedDist = KNearestCollector.calcMinNormedDist(calc, lat, lon, minLat, maxLat, minLon, maxLon);
+        cells.add(new Cell<T>(node, normedDist, minLat, maxLat, minLon, maxLon));
+    }
+
+    private static class Cell<T> implements Comparable<Cell<T>> {
+
+        final QTNode<T> node;
+        final double normedDist;
+        final double minLat, maxLat, minLon, maxLon;
+
+        Cell(QTNode<T> node, double normedDist, double minLat, double maxLat, double minLon, double maxLon) {
+            this.node = node;
+            this.normedDist = normedDist;
+            this.minLat = minLat;
+            this.maxLat = maxLat;
+            this.minLon = minLon;
+            this.maxLon = maxLon;
+        }
+
+        @Override public int compareTo(Cell<T> o) {
+            return Double.compare(normedDist, o.normedDist);
+        }
     }
 
     private void getNeighbours(BBox nodeBB, Shape searchRect, QTNode current, LeafWorker<T> worker) {
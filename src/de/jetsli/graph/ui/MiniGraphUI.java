@@ -1,16 +1,17 @@
 package de.jetsli.graph.ui;
 
+import de.jetsli.graph.privacy.DestinationCandidate;
+import de.jetsli.graph.privacy.DestinationInferenceEngine;
+import de.jetsli.graph.privacy.PlacesIndex;
 import de.jetsli.graph.routing.AStar;
 import de.jetsli.graph.routing.AlgoType;
-import de.jetsli.graph.routing.Path;
+import de.jetsli.graph.routing.RouteCache;
 import de.jetsli.graph.routing.RoutingAlgorithm;
+import de.jetsli.graph.storage.EdgeGridIndex;
 import de.jetsli.graph.storage.Graph;
 import de.jetsli.graph.storage.Location2IDQuadtree;
-import de.jetsli.graph.trees.QuadTree;
 import de.jetsli.graph.util.CoordTrig;
 import de.jetsli.graph.util.CoordTrigObjEntry;
-import de.jetsli.graph.util.EdgeIterator;
-import de.jetsli.graph.util.shapes.BBox;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,10 +41,13 @@ public class MiniGraphUI {
   final private Logger mLogger = LoggerFactory.getLogger(getClass());
 
   final private Graph mRoadGraph;
-  final private QuadTree<String> mPlacesIndex;
+  final private PlacesIndex mPlacesIndex;
 
   private Location2IDQuadtree mRoadIndex;
+  private RoadTileCache mRoadTiles;
   private RoutingAlgorithm mRouter;
+  private RouteCache mRouteCache;
+  private DestinationInferenceEngine mInferenceEngine;
 
   private JPanel mPanel;
   private MyLayerPanel mLayeredPanel;
@@ -60,7 +64,7 @@ public class MiniGraphUI {
   private int mCurrentPosX;
   private int mCurrentPosY;
 
-  public MiniGraphUI(Graph roadGraph, QuadTree<String> placesIndex) {
+  public MiniGraphUI(Graph roadGraph, PlacesIndex placesIndex) {
     mPlacesIndex = placesIndex;
     mRoadGraph = roadGraph;
   }
@@ -70,7 +74,12 @@ public class MiniGraphUI {
     mGraphicsUtil = new MyGraphics(mRoadGraph);
     mRoadIndex = new Location2IDQuadtree(mRoadGraph);
     mRoadIndex.prepareIndex(90000);
+    // only the tiles of the visible area are rendered - and only once per zoom level
+    mRoadTiles = new RoadTileCache(new EdgeGridIndex(mRoadGraph).prepareIndex(16), 256, 128);
     mRouter = new AStar(mRoadGraph);
+    // panning and zooming repaints all layers, so never route the same pair twice
+    mRouteCache = new RouteCache(256);
+    mInferenceEngine = new DestinationInferenceEngine(mRoadGraph, mRoadIndex);
 
     mPanel = new JPanel() {
       @Override
@@ -98,26 +107,8 @@ public class MiniGraphUI {
         clearGraphics(g2);
 
         Rectangle bounds = getBounds();
-        BBox bbox = mGraphicsUtil.setBounds(0, bounds.width, 0, bounds.height);
-
-        int numNodes = mRoadGraph.getNodes();
-        for (int nodeIndex = 0; nodeIndex < numNodes; nodeIndex++) {
-          double nodeLat = mRoadGraph.getLatitude(nodeIndex);
-          double nodeLon = mRoadGraph.getLongitude(nodeIndex);
-          if (nodeLat < bbox.minLat || nodeLat > bbox.maxLat ||
-              nodeLon < bbox.minLon || nodeLon > bbox.maxLon) {
-            continue;
-          }
-
-          EdgeIterator edgeIterator = mRoadGraph.getOutgoing(nodeIndex);
-          while (edgeIterator.next()) {
-            int nodeId = edgeIterator.node();
-            int sum = nodeIndex + nodeId;
-            double neighborLat = mRoadGraph.getLatitude(nodeId);
-            double neighborLon = mRoadGraph.getLongitude(nodeId);
-            mGraphicsUtil.plotEdge(g2, nodeLat, nodeLon, neighborLat, neighborLon);
-          }
-        }
+        mGraphicsUtil.setBounds(0, bounds.width, 0, bounds.height);
+        mRoadTiles.paint(g2, mGraphicsUtil, bounds.width, bounds.height);
       }
     });
 
@@ -143,7 +134,7 @@ public class MiniGraphUI {
   }
 
   private void drawRoute(Graphics2D g2, int fromId, int toId, Color strokeColor, int strokeWidth) {
-    Path path = mRouter.clear().setType(AlgoType.FASTEST).calcPath(fromId, toId);
+    RouteCache.CachedPath path = mRouteCache.calcPath(mRouter, AlgoType.FASTEST, fromId, toId);
 
     if (path == null) {
       return;
@@ -290,7 +281,7 @@ public class MiniGraphUI {
                 mAnalysisLayer = new AnalysisLayer(
                     mSingleRouteLayer.getStartPlace(),
                     mSingleRouteLayer.getmDestPlace(),
-                    mWaypointsLayer.getLastWaypoint());
+                    mWaypointsLayer.getWaypoints());
                 mLayeredPanel.addLayer(mAnalysisLayer);
                 mAnalysisLayer.repaint();
                 mLayeredPanel.repaint();
@@ -390,8 +381,9 @@ public class MiniGraphUI {
       makeTransparent(g2);
       mGraphicsUtil.plotPOI(g2, mCenterPlace, Color.GREEN, 10);
 
-      Collection<CoordTrig<String>> nearbyPlaces =
-          mPlacesIndex.getNodes(mCenterPlace.lat, mCenterPlace.lon, 2.0 /* kilometers */);
+      // no radius to guess: sparse suburbs and dense downtown areas both get the same amount
+      Collection<CoordTrig<String>> nearbyPlaces = mPlacesIndex.getKNearest(
+          mCenterPlace.lat, mCenterPlace.lon, 50);
 
       for (CoordTrig<String> place : nearbyPlaces) {
         mGraphicsUtil.plotPOI(g2, place, Color.RED, 5);
@@ -415,6 +407,10 @@ public class MiniGraphUI {
       return mWaypoints.get(mWaypoints.size() - 1);
     }
 
+    public List<CoordTrig<String>> getWaypoints() {
+      return mWaypoints;
+    }
+
     @Override
     protected void paintComponent(Graphics2D g2) {
       makeTransparent(g2);
@@ -439,11 +435,25 @@ public class MiniGraphUI {
     CoordTrig<String> mStartPlace;
     CoordTrig<String> mDestPlace;
     CoordTrig<String> mLastWaypoint;
+    List<DestinationCandidate> mCandidates;
+
     public AnalysisLayer(
-        CoordTrig<String> startPlace, CoordTrig<String> destPlace, CoordTrig<String> lastWaypoint) {
+        CoordTrig<String> startPlace, CoordTrig<String> destPlace, List<CoordTrig<String>> waypoints) {
       mStartPlace = startPlace;
       mDestPlace = destPlace;
-      mLastWaypoint = lastWaypoint;
+      mLastWaypoint = waypoints.get(waypoints.size() - 1);
+
+      // compute once here instead of on every repaint
+      Collection<CoordTrig<String>> nearbyPlaces =
+          mPlacesIndex.getNodes(mLastWaypoint.lat, mLastWaypoint.lon, 2.0 /* kilometers */);
+      mCandidates = mInferenceEngine.infer(mStartPlace, waypoints, nearbyPlaces);
+      for (int i = 0; i < Math.min(5, mCandidates.size()); i++) {
+        mLogger.info("candidate " + (i + 1) + ": " + mCandidates.get(i));
+      }
+    }
+
+    public List<DestinationCandidate> getCandidates() {
+      return mCandidates;
     }
 
     @Override
@@ -457,6 +467,10 @@ public class MiniGraphUI {
                 mRoadIndex.findID(mLastWaypoint.lat, mLastWaypoint.lon),
                 mRoadIndex.findID(mDestPlace.lat, mDestPlace.lon),
                 Color.PINK.darker(), 4);
+
+      for (int i = 0; i < Math.min(5, mCandidates.size()); i++) {
+        mGraphicsUtil.plotPOI(g2, mCandidates.get(i).getPlace(), Color.ORANGE, 8);
+      }
     }
   }
 }
@@ -0,0 +1,139 @@
+/*
+ *  Copyright 2012 Peter Karich info@jetsli.de
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ * 
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package de.jetsli.graph.ui;
+
+import de.jetsli.graph.storage.EdgeGridIndex;
+import de.jetsli.graph.util.shapes.BBox;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Renders the roads of an EdgeGridIndex into tiles of a fixed pixel size and keeps the most
+ * recently used ones. Tiles are aligned to the world (not the screen) so that a pan only needs to
+ * render the tiles which became visible.
+ *
+ * @author Peter Karich
+ */
+public class RoadTileCache {
+
+    private final int tileSize;
+    private final EdgeGridIndex index;
+    private final Map<TileKey, BufferedImage> tiles;
+
+    public RoadTileCache(EdgeGridIndex index, int tileSize, final int maxTiles) {
+        this.index = index;
+        this.tileSize = tileSize;
+        tiles = new LinkedHashMap<TileKey, BufferedImage>(maxTiles, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override protected boolean removeEldestEntry(Map.Entry<TileKey, BufferedImage> eldest) {
+                return size() > maxTiles;
+            }
+        };
+    }
+
+    /**
+     * Draws all roads visible in the specified screen area with the current offset and scale of
+     * MyGraphics.
+     */
+    public void paint(Graphics2D g2, MyGraphics mg, int width, int height) {
+        double scaleX = mg.getScaleX();
+        double scaleY = mg.getScaleY();
+        // screen position = world pixel + origin, see MyGraphics.getX and getY
+        double originX = mg.getOffsetX() / scaleX;
+        double originY = (90 + mg.getOffsetY()) / scaleY;
+        int minTileX = (int) Math.floor(-originX / tileSize);
+        int maxTileX = (int) Math.floor((width - originX) / tileSize);
+        int minTileY = (int) Math.floor(-originY / tileSize);
+        int maxTileY = (int) Math.floor((height - originY) / tileSize);
+        for (int tileY = minTileY; tileY <= maxTileY; tileY++) {
+            for (int tileX = minTileX; tileX <= maxTileX; tileX++) {
+                BufferedImage tile = getTile(tileX, tileY, scaleX, scaleY);
+                g2.drawImage(tile, (int) Math.floor(tileX * tileSize + originX),
+                        (int) Math.floor(tileY * tileSize + originY), null);
+            }
+        }
+    }
+
+    private BufferedImage getTile(int tileX, int tileY, double scaleX, double scaleY) {
+        TileKey key = new TileKey(tileX, tileY, scaleX, scaleY);
+        BufferedImage tile = tiles.get(key);
+        if (tile == null) {
+            tile = renderTile(tileX, tileY, scaleX, scaleY);
+            tiles.put(key, tile);
+        }
+        return tile;
+    }
+
+    private BufferedImage renderTile(int tileX, int tileY, double scaleX, double scaleY) {
+        BufferedImage tile = new BufferedImage(tileSize, tileSize, BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D tg = tile.createGraphics();
+        tg.setColor(Color.BLACK);
+        tg.setStroke(new BasicStroke(1));
+        final double pixelMinX = (double) tileX * tileSize;
+        final double pixelMinY = (double) tileY * tileSize;
+        final double sx = scaleX;
+        final double sy = scaleY;
+        double minLon = pixelMinX * sx;
+        double maxLon = (pixelMinX + tileSize) * sx;
+        double maxLat = -pixelMinY * sy;
+        double minLat = -(pixelMinY + tileSize) * sy;
+        index.visitEdges(new BBox(minLon, maxLon, minLat, maxLat), new EdgeGridIndex.EdgeVisitor() {
+            @Override
+            public void onEdge(int nodeA, double latA, double lonA, int nodeB, double latB, double lonB) {
+                tg.drawLine((int) (lonA / sx - pixelMinX), (int) (-latA / sy - pixelMinY),
+                        (int) (lonB / sx - pixelMinX), (int) (-latB / sy - pixelMinY));
+            }
+        });
+        tg.dispose();
+        return tile;
+    }
+
+    public void clear() {
+        tiles.clear();
+    }
+
+    private static class TileKey {
+
+        final int tileX;
+        final int tileY;
+        final long scaleX;
+        final long scaleY;
+
+        TileKey(int tileX, int tileY, double scaleX, double scaleY) {
+            this.tileX = tileX;
+            this.tileY = tileY;
+            this.scaleX = Double.doubleToLongBits(scaleX);
+            this.scaleY = Double.doubleToLongBits(scaleY);
+        }
+
+        @Override public boolean equals(Object obj) {
+            if (!(obj instanceof TileKey))
+                return false;
+            TileKey o = (TileKey) obj;
+            return tileX == o.tileX && tileY == o.tileY && scaleX == o.scaleX && scaleY == o.scaleY;
+        }
+
+        @Override public int hashCode() {
+            int hash = 31 * tileX + tileY;
+            hash = 31 * hash + (int) (scaleX ^ (scaleX >>> 32));
+            return 31 * hash + (int) (scaleY ^ (scaleY >>> 32));
+        }
+    }
+}
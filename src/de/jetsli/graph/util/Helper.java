@@ -22,6 +22,7 @@ import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -32,8 +33,11 @@ import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -41,6 +45,7 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.zip.CRC32;
 
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
@@ -127,6 +132,46 @@ public class Helper {
         return sorted;
     }
 
+    /**
+     * Sorts the keys ascending where the keys are treated as unsigned - e.g. spatial keys. LSD
+     * radix sort with one byte per pass, passes where all keys have the same byte are skipped.
+     *
+     * @return the permutation: the old index of the key which is now at the returned position
+     */
+    public static int[] sortUnsigned(long[] keys) {
+        int len = keys.length;
+        int[] order = new int[len];
+        for (int i = 0; i < len; i++) {
+            order[i] = i;
+        }
+        long[] tmpKeys = new long[len];
+        int[] tmpOrder = new int[len];
+        int[] counts = new int[256];
+        for (int shift = 0; shift < 64; shift += 8) {
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < len; i++) {
+                counts[(int) (keys[i] >>> shift) & 0xFF]++;
+            }
+            if (len == 0 || counts[(int) (keys[0] >>> shift) & 0xFF] == len)
+                continue;
+
+            int pos = 0;
+            for (int b = 0; b < 256; b++) {
+                int tmp = counts[b];
+                counts[b] = pos;
+                pos += tmp;
+            }
+            for (int i = 0; i < len; i++) {
+                int dest = counts[(int) (keys[i] >>> shift) & 0xFF]++;
+                tmpKeys[dest] = keys[i];
+                tmpOrder[dest] = order[i];
+            }
+            System.arraycopy(tmpKeys, 0, keys, 0, len);
+            System.arraycopy(tmpOrder, 0, order, 0, len);
+        }
+        return order;
+    }
+
     public static void deleteDir(File file) {
         if (file.isDirectory()) {
             for (File f : file.listFiles()) {
@@ -171,6 +216,11 @@ public class Helper {
         return factor * (4 + 4 + 4 + 4) + 8 * length;
     }
 
+    public static int sizeOfIntArray(int length, int factor) {
+        // pointer to class, flags, lock, size
+        return factor * (4 + 4 + 4 + 4) + 4 * length;
+    }
+
     public static int sizeOfObjectArray(int length, int factor) {
         // TODO add 4byte to make a multiple of 8 in some cases
         // TODO compressed oop
@@ -300,61 +350,296 @@ public class Helper {
         }
     }
 
+    // array files: header (ARRAY_HEADER_BYTES) + big endian values. The first int is negative to
+    // distinguish it from the old format where the file started with the length
+    private static final int ARRAY_MAGIC = 0xA77A1D5A;
+    private static final int ARRAY_VERSION = 1;
+    public static final int ARRAY_HEADER_BYTES = 24;
+    private static final long NO_CHECKSUM = -1;
+    private static final int IO_BUFFER_BYTES = MB;
+
+    /**
+     * The header of a file written via writeInts or writeFloats.
+     */
+    public static class ArrayHeader {
+
+        /**
+         * 'I' for ints, 'F' for floats or 0 for the old format without type
+         */
+        public final char type;
+        public final int length;
+        public final long checksum;
+        /**
+         * the position of the first value in the file
+         */
+        public final int bytes;
+
+        ArrayHeader(char type, int length, long checksum, int bytes) {
+            this.type = type;
+            this.length = length;
+            this.checksum = checksum;
+            this.bytes = bytes;
+        }
+
+        public boolean hasChecksum() {
+            return checksum != NO_CHECKSUM;
+        }
+    }
+
+    /**
+     * Reads the header and positions the channel to the first value. The file size has to match
+     * the length from the header, which detects files where writing stopped before the header was
+     * written (they start with zeros and would look like an empty array of the old format).
+     */
+    public static ArrayHeader readArrayHeader(FileChannel channel, String file) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(ARRAY_HEADER_BYTES);
+        bb.limit(4);
+        channel.position(0);
+        readFully(channel, bb, file);
+        int first = bb.getInt(0);
+        if (first >= 0) {
+            // old format: only the length
+            if (channel.size() != 4 + 4L * first)
+                throw new IOException("corrupt or incomplete array file " + file + ", length " + first
+                        + " does not match the file size " + channel.size());
+            return new ArrayHeader((char) 0, first, NO_CHECKSUM, 4);
+        }
+
+        if (first != ARRAY_MAGIC)
+            throw new IOException("not an array file " + file);
+
+        bb.limit(ARRAY_HEADER_BYTES);
+        readFully(channel, bb, file);
+        int version = bb.getInt(4);
+        if (version > ARRAY_VERSION)
+            throw new IOException("unsupported version " + version + " of " + file);
+
+        int length = bb.getInt(12);
+        if (length < 0 || channel.size() < ARRAY_HEADER_BYTES + 4L * length)
+            throw new IOException("corrupt or incomplete array file " + file + ", length " + length
+                    + " does not match the file size " + channel.size());
+        return new ArrayHeader((char) bb.getInt(8), length, bb.getLong(16), ARRAY_HEADER_BYTES);
+    }
+
+    private static void writeArrayHeader(FileChannel channel, char type, int length, CRC32 crc) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(ARRAY_HEADER_BYTES);
+        bb.putInt(ARRAY_MAGIC).putInt(ARRAY_VERSION).putInt(type).putInt(length);
+        bb.putLong(crc == null ? NO_CHECKSUM : crc.getValue());
+        bb.flip();
+        int pos = 0;
+        while (bb.hasRemaining()) {
+            pos += channel.write(bb, pos);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer bb, String file) throws IOException {
+        while (bb.hasRemaining()) {
+            if (channel.read(bb) < 0)
+                throw new EOFException("unexpected end of " + file);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer bb) throws IOException {
+        while (bb.hasRemaining()) {
+            channel.write(bb);
+        }
+    }
+
+    /**
+     * Updates the checksum with the remaining bytes of the buffer without changing its position
+     */
+    private static void updateChecksum(CRC32 crc, ByteBuffer bb, byte[] tmp) {
+        int len = bb.remaining();
+        bb.duplicate().get(tmp, 0, len);
+        crc.update(tmp, 0, len);
+    }
+
+    private static void checkType(ArrayHeader header, char type, String file) throws IOException {
+        if (header.type != 0 && header.type != type)
+            throw new IOException("expected type " + type + " but was " + header.type + " in " + file);
+    }
+
+    private static void checkCapacity(ArrayHeader header, int capacity, String file) throws IOException {
+        if (header.length > capacity)
+            throw new IOException("file " + file + " has " + header.length + " values but only "
+                    + capacity + " fit into the array");
+    }
+
+    private static void checkChecksum(ArrayHeader header, CRC32 crc, String file) throws IOException {
+        if (crc != null && crc.getValue() != header.checksum)
+            throw new IOException("checksum mismatch in " + file);
+    }
+
     public static void writeInts(String file, int[] ints) throws IOException {
-        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
-                new FileOutputStream(file), 4 * 1024));
+        writeInts(file, ints, false);
+    }
+
+    /**
+     * Writes the array in chunks via a direct buffer.
+     *
+     * @param checksum if true a CRC32 of the values is stored and verified on read
+     */
+    public static void writeInts(String file, int[] ints, boolean checksum) throws IOException {
+        writeInts(file, ints, 0, ints.length, checksum);
+    }
+
+    /**
+     * Writes len values of the array starting at offset, e.g. one page of a bigger array
+     */
+    public static void writeInts(String file, int[] ints, int offset, int len, boolean checksum) throws IOException {
+        FileChannel channel = new FileOutputStream(file).getChannel();
         try {
-            int len = ints.length;
-            out.writeInt(len);
-            for (int i = 0; i < len; i++) {
-                out.writeInt(ints[i]);
+            ByteBuffer bb = ByteBuffer.allocateDirect((int) Math.min(IO_BUFFER_BYTES, 4L * len + 4));
+            CRC32 crc = checksum ? new CRC32() : null;
+            byte[] tmp = checksum ? new byte[bb.capacity()] : null;
+            channel.position(ARRAY_HEADER_BYTES);
+            for (int off = 0; off < len;) {
+                int n = Math.min(len - off, bb.capacity() / 4);
+                bb.clear();
+                bb.asIntBuffer().put(ints, offset + off, n);
+                bb.limit(4 * n);
+                if (crc != null)
+                    updateChecksum(crc, bb, tmp);
+                writeFully(channel, bb);
+                off += n;
             }
+            writeArrayHeader(channel, 'I', len, crc);
         } finally {
-            out.close();
+            channel.close();
         }
     }
 
     public static void writeFloats(String file, float[] floats) throws IOException {
-        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
-                new FileOutputStream(file), 4 * 1024));
+        writeFloats(file, floats, false);
+    }
+
+    public static void writeFloats(String file, float[] floats, boolean checksum) throws IOException {
+        writeFloats(file, floats, 0, floats.length, checksum);
+    }
+
+    public static void writeFloats(String file, float[] floats, int offset, int len, boolean checksum) throws IOException {
+        FileChannel channel = new FileOutputStream(file).getChannel();
         try {
-            int len = floats.length;
-            out.writeInt(len);
-            for (int i = 0; i < len; i++) {
-                out.writeFloat(floats[i]);
+            ByteBuffer bb = ByteBuffer.allocateDirect((int) Math.min(IO_BUFFER_BYTES, 4L * len + 4));
+            CRC32 crc = checksum ? new CRC32() : null;
+            byte[] tmp = checksum ? new byte[bb.capacity()] : null;
+            channel.position(ARRAY_HEADER_BYTES);
+            for (int off = 0; off < len;) {
+                int n = Math.min(len - off, bb.capacity() / 4);
+                bb.clear();
+                bb.asFloatBuffer().put(floats, offset + off, n);
+                bb.limit(4 * n);
+                if (crc != null)
+                    updateChecksum(crc, bb, tmp);
+                writeFully(channel, bb);
+                off += n;
             }
+            writeArrayHeader(channel, 'F', len, crc);
         } finally {
-            out.close();
+            channel.close();
         }
     }
 
+    /**
+     * Reads an array written via writeInts (or in the old format). A stored checksum is verified.
+     */
     public static int[] readInts(String file) throws IOException {
-        DataInputStream in = new DataInputStream(new BufferedInputStream(
-                new FileInputStream(file), 4 * 1024));
+        FileChannel channel = new FileInputStream(file).getChannel();
         try {
-            int len = in.readInt();
-            int[] ints = new int[len];
-            for (int i = 0; i < len; i++) {
-                ints[i] = in.readInt();
-            }
+            ArrayHeader header = readArrayHeader(channel, file);
+            int[] ints = new int[header.length];
+            readInts(channel, header, file, ints, 0);
             return ints;
         } finally {
-            in.close();
+            channel.close();
+        }
+    }
+
+    /**
+     * Reads the values of the file into the array starting at offset, e.g. one page of a bigger
+     * array.
+     *
+     * @return the number of read values
+     */
+    public static int readInts(String file, int[] ints, int offset) throws IOException {
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            ArrayHeader header = readArrayHeader(channel, file);
+            checkCapacity(header, ints.length - offset, file);
+            readInts(channel, header, file, ints, offset);
+            return header.length;
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static void readInts(FileChannel channel, ArrayHeader header, String file,
+            int[] ints, int offset) throws IOException {
+        checkType(header, 'I', file);
+        int len = header.length;
+        ByteBuffer bb = ByteBuffer.allocateDirect((int) Math.min(IO_BUFFER_BYTES, 4L * len + 4));
+        CRC32 crc = header.hasChecksum() ? new CRC32() : null;
+        byte[] tmp = crc != null ? new byte[bb.capacity()] : null;
+        for (int off = 0; off < len;) {
+            int n = Math.min(len - off, bb.capacity() / 4);
+            bb.clear();
+            bb.limit(4 * n);
+            readFully(channel, bb, file);
+            bb.flip();
+            if (crc != null)
+                updateChecksum(crc, bb, tmp);
+            bb.asIntBuffer().get(ints, offset + off, n);
+            off += n;
         }
+        checkChecksum(header, crc, file);
     }
 
     public static float[] readFloats(String file) throws IOException {
-        DataInputStream in = new DataInputStream(new BufferedInputStream(
-                new FileInputStream(file), 4 * 1024));
+        FileChannel channel = new FileInputStream(file).getChannel();
         try {
-            int len = in.readInt();
-            float[] floats = new float[len];
-            for (int i = 0; i < len; i++) {
-                floats[i] = in.readFloat();
-            }
+            ArrayHeader header = readArrayHeader(channel, file);
+            float[] floats = new float[header.length];
+            readFloats(channel, header, file, floats, 0);
             return floats;
         } finally {
-            in.close();
+            channel.close();
+        }
+    }
+
+    /**
+     * @return the number of read values
+     * @see #readInts(String, int[], int)
+     */
+    public static int readFloats(String file, float[] floats, int offset) throws IOException {
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            ArrayHeader header = readArrayHeader(channel, file);
+            checkCapacity(header, floats.length - offset, file);
+            readFloats(channel, header, file, floats, offset);
+            return header.length;
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static void readFloats(FileChannel channel, ArrayHeader header, String file,
+            float[] floats, int offset) throws IOException {
+        checkType(header, 'F', file);
+        int len = header.length;
+        ByteBuffer bb = ByteBuffer.allocateDirect((int) Math.min(IO_BUFFER_BYTES, 4L * len + 4));
+        CRC32 crc = header.hasChecksum() ? new CRC32() : null;
+        byte[] tmp = crc != null ? new byte[bb.capacity()] : null;
+        for (int off = 0; off < len;) {
+            int n = Math.min(len - off, bb.capacity() / 4);
+            bb.clear();
+            bb.limit(4 * n);
+            readFully(channel, bb, file);
+            bb.flip();
+            if (crc != null)
+                updateChecksum(crc, bb, tmp);
+            bb.asFloatBuffer().get(floats, offset + off, n);
+            off += n;
         }
+        checkChecksum(header, crc, file);
     }
 }
@@ -73,7 +73,14 @@ public class BBox implements Shape {
     public boolean intersect(BBox o) {
         // return (o.minLon < minLon && o.maxLon > minLon || o.minLon < maxLon && o.minLon >= minLon)
         //  && (o.maxLat < maxLat && o.maxLat >= minLat || o.maxLat >= maxLat && o.minLat < maxLat);
-        return minLon < o.maxLon && minLat < o.maxLat && o.minLon < maxLon && o.minLat < maxLat;
+        return intersect(o.minLon, o.maxLon, o.minLat, o.maxLat);
+    }
+
+    /**
+     * Same as intersect(new BBox(minLon, maxLon, minLat, maxLat)) but without creating the box.
+     */
+    public boolean intersect(double minLon, double maxLon, double minLat, double maxLat) {
+        return this.minLon < maxLon && this.minLat < maxLat && minLon < this.maxLon && minLat < this.maxLat;
     }
 
     @Override
@@ -86,29 +86,36 @@ public class Circle implements Shape {
     }
 
     public boolean intersect(BBox b) {
+        return intersect(b.minLon, b.maxLon, b.minLat, b.maxLat);
+    }
+
+    /**
+     * Same as intersect(new BBox(minLon, maxLon, minLat, maxLat)) but without creating the box.
+     */
+    public boolean intersect(double minLon, double maxLon, double minLat, double maxLat) {
         // test top intersect
-        if (lat > b.maxLat) {
-            if (lon < b.minLon)
-                return normDist(b.maxLat, b.minLon) <= normedDist;
-            if (lon > b.maxLon)
-                return normDist(b.maxLat, b.maxLon) <= normedDist;
-            return b.maxLat - bbox.minLat > 0;
+        if (lat > maxLat) {
+            if (lon < minLon)
+                return normDist(maxLat, minLon) <= normedDist;
+            if (lon > maxLon)
+                return normDist(maxLat, maxLon) <= normedDist;
+            return maxLat - bbox.minLat > 0;
         }
 
         // test bottom intersect
-        if (lat < b.minLat) {
-            if (lon < b.minLon)
-                return normDist(b.minLat, b.minLon) <= normedDist;
-            if (lon > b.maxLon)
-                return normDist(b.minLat, b.maxLon) <= normedDist;
-            return bbox.maxLat - b.minLat > 0;
+        if (lat < minLat) {
+            if (lon < minLon)
+                return normDist(minLat, minLon) <= normedDist;
+            if (lon > maxLon)
+                return normDist(minLat, maxLon) <= normedDist;
+            return bbox.maxLat - minLat > 0;
         }
 
         // test middle intersect
-        if (lon < b.minLon)
-            return bbox.maxLon - b.minLon > 0;
-        if (lon > b.maxLon)
-            return b.maxLon - bbox.minLon > 0;
+        if (lon < minLon)
+            return bbox.maxLon - minLon > 0;
+        if (lon > maxLon)
+            return maxLon - bbox.minLon > 0;
         return true;
     }
 